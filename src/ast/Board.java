@@ -4,111 +4,355 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class is used to represent the board state for our implementation of Minesweeper.
  * It has two representation invariants:
  * 1) Size must not be negative.
  * 2) The boards are square.
- * 2) Two threads should not concurrently do anything to modify the board. 
+ * 2) Two threads should not concurrently do anything to modify the same part of the board. 
  *
  *The first is explicitly enforced.
- *The second is ensured by making all methods which modify the board synchronized.
- *In other words, Board utilizes the monitor pattern.
- *All players are sharing the same board, so acquiring the lock on the board will prevent
- * any other synchonized method from being carried out at the same time since there's only one 
- * "this". The methods that aren't synchronized don't need to be, as the players have no way to access
+ *The second used to be ensured by making all methods which modify the board synchronized, so every
+ * player waited for every other one. Now the board is cut into tiles, each with its own lock (see TileLocks),
+ * and a command only takes the tiles it touches: a dig takes the tiles of its square and the squares
+ * around it, and a cascade takes more tiles as it spreads. A flag or deflag takes only the tile of its square,
+ * for a single compare-and-set. Rendering the board takes no lock (see toString), but every tile written since
+ * it started makes it start over, so every board sent back is the board as it was at one moment.
+ * Anything that needs the whole board at once (the setters, the debugging views, and cascades that use
+ * the RegionIndex or parallel reveal, if either has been turned on) takes every tile, in order. A board owned by a BoardActor takes no
+ * lock at all (see setSingleWriter).
+ * The other methods that take no lock don't need to, as the players have no way to access
  * those methods, and even if they did, using them concurrently would be fine, with the exception
  * of the constructor, but there's only one board at any time so that's not an issue.
  * 
  *  @author DeJuan Anderson
  */
-public class Board
+public class Board implements GameBoard
 {
 	private final int size;
-	private ArrayList<ArrayList<Square>> boardState;
-	private int rowCounter = 0;
+	private final CellStore cells;
+	private final FloodFill floodFill;
+	private ParallelFloodFill parallelFill = null;
+	private volatile RegionIndex regions = null;
+	private int revealChunk = 0;
+	private final ArrayDeque<FloodFill> idleFills = new ArrayDeque<FloodFill>();
+	private boolean optimisticReveal = false;
+	private final ArrayDeque<OptimisticFill> idleOptimisticFills = new ArrayDeque<OptimisticFill>();
+	private TileLocks locks;
+	
+	/**
+	 * How many times a reader tries to read the board without locks before it takes their read locks,
+	 * and an optimistic cascade tries to commit before it falls back to holding its tiles.
+	 */
+	private static final int OPTIMISTIC_TRIES = 4;
 	
 	public void checkRep(){
 		assert(this.size >= 2);
-		assert(boardState.get(0).size() == boardState.get(1).size());
-		assert(boardState.get(0).get(0) != null);
+		assert(cells.getCellCount() == this.size*this.size);
 	}
 	/**
 	 * Default constructor: If size not specified, creates a Board instance of size 10x10. 
 	 */
 	
 	public Board(){
-		this.size = 10;
-		this.boardState = new ArrayList<ArrayList<Square>>();
-		for(int r = 0; r < this.size; r++)
-		{
-			this.boardState.add(createRow());
-		}
-		setAllCounts();
-		checkRep();
+		this(10);
 	}
 	
 	/**
 	 * If we do have a size we want, use it to construct the board.
+	 * A quarter of the squares, picked at random, hold a bomb.
 	 * @param int size, used to initialize board of sizexsize squares
 	 */
 	
 	public Board(int size)
 	{	
+		this(size, false);
+	}
+	
+	/**
+	 * Same as Board(int), but if mapped is true the squares are kept in a MappedCellStore, off the heap.
+	 * See Board(File, boolean) for what that changes.
+	 */
+	public Board(int size, boolean mapped)
+	{
+		this(size, -1, new SplittableRandom().nextLong(), mapped);
+	}
+	
+	/**
+	 * Builds a random board with exactly mines bombs, placed by MineLayout, so the same size, mines and seed
+	 * always give the same board.
+	 * @param mines the number of bombs, or a negative number for a quarter of the squares
+	 * @param seed decides where the bombs are
+	 * @param mapped whether to keep the squares in a MappedCellStore, off the heap
+	 */
+	public Board(int size, long mines, long seed, boolean mapped)
+	{
+		this(size, mines, seed, mapped ? Storage.MAPPED : Storage.HEAP);
+	}
+	
+	/**
+	 * Same as Board(int, long, long, boolean), with the squares kept in the given storage.
+	 */
+	public Board(int size, long mines, long seed, Storage storage)
+	{
+		this(randomCells(size, mines, seed, storage), true);
+	}
+	
+	/**
+	 * Builds a board around a cell store whose bombs have already been placed, e.g. by a benchmark or test.
+	 * The counts are (re)computed here.
+	 */
+	Board(CellStore cells)
+	{
+		this(cells, true);
+	}
+	
+	private Board(CellStore cells, boolean countNow)
+	{
+		this.size = cells.getSize();
+		this.cells = cells;
+		this.floodFill = new FloodFill(this.cells);
+		this.locks = new TileLocks(this.size);
+		checkRep();
+		if (countNow)
+		{
+			setAllCounts();
+		}
+	}
+	
+	/**
+	 * Lastly, if we have a particular file we wish to read from disk, we can load that to make our board.
+	 */
+	public Board(File file)
+	{
+		this(file, false);
+	}
+	
+	/**
+	 * Loads a board from a file. If mapped is true, the squares are kept in a MappedCellStore instead of on
+	 * the heap, so the board can be bigger than the heap; the commands behave exactly the same either way.
+	 * 
+	 * A mapped board still keeps a few things on the heap, but nothing close to a byte per square:
+	 * the FloodFill uses one bit per square and the file is read one row at a time. Turning the RegionIndex on
+	 * would add 8 bytes per square on the heap (see setRegionIndex).
+	 * 
+	 * The size is taken from the first row, and the file must have at least that many rows.
+	 */
+	public Board(File file, boolean mapped)
+	{
+		this(file, mapped, false);
+	}
+	
+	/**
+	 * Same as Board(File, boolean), but if lazyCounts is true no count is worked out up front: a square is
+	 * counted the first time a dig or cascade reveals it (see CellStore.getCount), so loading a huge board costs
+	 * little more than reading the file. Turning the RegionIndex on counts every square (see setRegionIndex).
+	 */
+	public Board(File file, boolean mapped, boolean lazyCounts)
+	{
+		this(file, mapped ? Storage.MAPPED : Storage.HEAP, lazyCounts);
+	}
+	
+	/**
+	 * Same as Board(File, boolean, boolean), with the squares kept in the given storage.
+	 */
+	public Board(File file, Storage storage, boolean lazyCounts)
+	{
+		this(loadCells(file, storage), !lazyCounts);
+	}
+	
+	private static CellStore randomCells(int size, long mines, long seed, Storage storage)
+	{
 		if (size <= 1)
 		{
 			throw new IllegalArgumentException("The board cannot have that size!");
 		}
-		this.size = size;
-		this.boardState = new ArrayList<ArrayList<Square>>();
-		for(int r = 0; r < this.size; r++)
+		CellStore cells = newCellStore(size, storage);
+		MineLayout.place(cells, mines < 0 ? MineLayout.minesFor(size, MineLayout.DEFAULT_DENSITY) : mines, seed);
+		return cells;
+	}
+	
+	private static CellStore loadCells(File file, Storage storage)
+	{
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) 
+		{
+			String line = br.readLine();
+			if (line == null)
+			{
+				throw new IllegalArgumentException("The board file is empty!");
+			}
+			int size = 0;
+			for (int i = 0; i < line.length(); i++)
+			{
+				if (!Character.isWhitespace(line.charAt(i)))
+				{
+					size++;
+				}
+			}
+			CellStore cells = newCellStore(size, storage);
+			for (int row = 0; row < size; row++)
+			{
+				if (row > 0)
+				{
+					line = br.readLine();
+					if (line == null)
+					{
+						throw new IllegalArgumentException("The board file has fewer rows than columns!");
+					}
+				}
+				//Reads the values straight out of the line, skipping the spaces between them.
+				int col = 0;
+				for (int i = 0; i < line.length() && col < size; i++)
+				{
+					char value = line.charAt(i);
+					if (!Character.isWhitespace(value))
+					{
+						cells.setBomb(cells.index(row, col++), value == '1');
+					}
+				}
+				assert(col == size);
+			}
+			return cells;
+		}
+		catch(IOException e) 
 		{
-			this.boardState.add(createRow());
+			throw new IllegalArgumentException("Could not read the board file!", e);
 		}
-		setAllCounts();
-		checkRep();
 	}
 	
+	private static CellStore newCellStore(int size, Storage storage)
+	{
+		if (storage == Storage.HEAP)
+		{
+			return new CellStore(size);
+		}
+		if (storage == Storage.PERSISTENT)
+		{
+			return new PersistentCellStore(size);
+		}
+		try
+		{
+			return new MappedCellStore(size);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("Could not map a board of that size!", e);
+		}
+	}
+	
+	
 	/**
-	 * Lastly, if we have a particular file we wish to read from disk, we can load that to make our board.
+	 * Turns on parallel reveal: cascades that grow past ParallelFloodFill.SERIAL_BUDGET squares
+	 * are finished on the given pool. Smaller cascades still run on the digging thread.
+	 * @param pool the pool to use, or null to run every cascade serially again
 	 */
-	public Board(File file)
+	public void setParallelReveal(ForkJoinPool pool)
 	{
-		int count = 0;
-		this.boardState = new ArrayList<ArrayList<Square>>();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) 
-        {
-            String currentLine;
-            while ((currentLine = br.readLine()) != null) 
-            {
-            	ArrayList<Square> row = new ArrayList<Square>();
-            	String output = new String(currentLine);	
-            	output = output.replaceAll("\\s", "");
-            	for (int index = 0; index < output.length(); index++)
-            	{
-            		row.add(new Square(count, index, output.charAt(index)));
-            	}
-            	this.boardState.add(row);
-                count +=1;
-            }
-        }
-            catch(IOException e) 
-            {
-                e.printStackTrace();
-            }
-
-            this.size = count;
-            checkRep();
-            setAllCounts();
-        
-        
-        
+		this.locks.lockAll();
+		try
+		{
+			this.parallelFill = pool == null ? null : new ParallelFloodFill(this.cells, pool);
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
 	}
 	
+	/**
+	 * Turns on incremental reveal: a cascade is carried out chunk squares at a time, and every tile it holds
+	 * is released between chunks so other players' commands can run while a large cascade is in progress.
+	 * 
+	 * Other players may then see a cascade part way through, but never an inconsistent board: the cascade
+	 * grows outwards from the dug square, every square it has revealed so far is one it was going to reveal
+	 * and shows its current count, and nothing it reveals is ever hidden again. A square flagged while the
+	 * cascade is running is treated as if it had been flagged before the dig. The player who dug gets the
+	 * board back once the whole cascade is done. Incremental reveal takes precedence over parallel reveal.
+	 * @param chunk squares per chunk, or 0 to run every cascade in one go again
+	 */
+	public void setIncrementalReveal(int chunk)
+	{
+		if (chunk < 0)
+		{
+			throw new IllegalArgumentException("The chunk size cannot be negative!");
+		}
+		this.locks.lockAll();
+		try
+		{
+			this.revealChunk = chunk;
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
+	}
+	
+	/**
+	 * Turns on optimistic reveal: a dig that cascades works out the whole cascade without holding any tile,
+	 * then takes the tiles it read only to check they haven't changed and to reveal the squares
+	 * (see OptimisticFill). If they have changed, it tries again a few times, and then falls back to a cascade
+	 * holding its tiles throughout. Heavy digs so hold their tiles for a fraction of the time.
+	 * 
+	 * Optimistic reveal takes precedence over the RegionIndex and parallel reveal, but not over incremental reveal,
+	 * which is a different answer to the same problem: holding tiles for a short time in many pieces.
+	 * @param enabled
+	 */
+	public void setOptimisticReveal(boolean enabled)
+	{
+		this.locks.lockAll();
+		try
+		{
+			this.optimisticReveal = enabled;
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
+	}
+	
+	/**
+	 * Makes a copy of the board as it is between two commands, in constant time, if its squares are kept in a
+	 * PersistentCellStore. The copy is a Board of its own: nothing done to either board is seen by the other.
+	 * Read but never played on, it is a snapshot, for spectators, saving or analytics; played on, it is a
+	 * practice game starting from the live one. Either way only the tiles written after the fork are copied.
+	 * 
+	 * The copy starts with every setting at its default, so with the RegionIndex off even if this board has one.
+	 * @throws UnsupportedOperationException if the board wasn't built with Storage.PERSISTENT
+	 */
+	public Board fork()
+	{
+		if (!(this.cells instanceof PersistentCellStore))
+		{
+			throw new UnsupportedOperationException("Only a board kept in persistent storage can be forked!");
+		}
+		this.locks.lockAll();
+		try
+		{
+			return new Board(((PersistentCellStore) this.cells).fork(), false);
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
+	}
+	
+	/**
+	 * Stops taking any lock: from now on the board must only ever be used by one thread at a time, like a
+	 * board owned by a BoardActor. Must be called before the board is shared with other threads.
+	 */
+	public void setSingleWriter()
+	{
+		this.locks = TileLocks.unlocked(this.size);
+		synchronized(this.idleOptimisticFills)
+		{
+			this.idleOptimisticFills.clear();
+		}
+	}
 	
 	/**
 	 * Returns the board size.  We never change size once the board
@@ -121,31 +365,67 @@ public class Board
 	
 	/**
 	 * This method overrides the normal toString for any Object. It creates a StringBuilder object,
-	 * and iterates through each square in the board, collecting the output of that square's 
-	 * toString() method. It adds newlines to itself for each row completed.
+	 * and iterates through each square in the board, appending the character a player should see
+	 * for that square. It adds newlines to itself for each row completed.
 	 * 
 	 * Once the last square has been visited and its response recorded, we return the StringBuilder's
 	 * accumulated String.
 	 * 
+	 * The board is read without taking any lock: the stamps of every tile are read, the whole board is
+	 * rendered, and if any tile was written in the meantime (flags and deflags included, since they take their
+	 * tile) it is rendered again, after OPTIMISTIC_TRIES tries under the read locks of every tile. So the board
+	 * returned is always one the game really was in at some moment, the same snapshot the single Board monitor
+	 * used to give. Writers never wait for a reader that reads optimistically.
+	 * The caller must not hold any tile.
+	 * 
 	 *  @returns A "grid" string representation of the current board as a player should see it.
 	 */
 	@Override
-	public synchronized String toString()
+	public String toString()
+	{
+		StringBuilder boardString = new StringBuilder(this.size*this.size*2 + this.size*2);
+		long[] stamps = new long[this.locks.getTileCount()];
+		for (int tries = 0; tries < OPTIMISTIC_TRIES; tries++)
+		{
+			if (this.locks.tryOptimisticReadAll(stamps))
+			{
+				boardString.setLength(0);
+				render(boardString);
+				if (this.locks.validateAll(stamps))
+				{
+					return boardString.toString();
+				}
+			}
+			Thread.yield();
+		}
+		this.locks.readAll();
+		try
+		{
+			boardString.setLength(0);
+			render(boardString);
+		}
+		finally
+		{
+			this.locks.unreadAll();
+		}
+		return boardString.toString();
+	}
+	
+	private void render(StringBuilder boardString)
 	{
-		StringBuilder boardString = new StringBuilder(this.size*this.size + this.size*2);
 		for(int row = 0; row < this.size; row++)
 		{
+			int index = row*this.size;
 			for(int col = 0; col < this.size; col++)
 			{
-				boardString.append(this.boardState.get(row).get(col).toString());
+				boardString.append(this.cells.statusChar(index++));
 				if (col != (this.size -1))
 				{
-					boardString.append(" ");
+					boardString.append(' ');
 				}
 			}
 			boardString.append("\r\n");
 		}
-		return boardString.toString();
 	}
 	/**
 	 * Returns the state of the board as a String[][] rather than a normal String. 
@@ -153,72 +433,82 @@ public class Board
 	 * "-", "F", etc.
 	 */
 	
-	public synchronized String[][] getBoardState()
+	public String[][] getBoardState()
 	{
 		String[][] boardRep = new String[this.size][this.size];
-		for(int row = 0; row < this.size; row++)
+		this.locks.lockAll();
+		try
 		{
-			for(int col = 0; col < this.size; col++)
+			for(int row = 0; row < this.size; row++)
 			{
-				boardRep[row][col] = this.boardState.get(row).get(col).toString();
+				for(int col = 0; col < this.size; col++)
+				{
+					boardRep[row][col] = this.cells.status(this.cells.index(row, col));
+				}
 			}
 		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
 		return boardRep;
 	}
 	/**
-	 * This method is only used in debugging: it returns the actual arrayList we use to store
-	 * all the board information. This is direct rep exposure and should ONLY be used for debugging.
-	 * It is left here in case future alterations need to be made to the class and then debugged.
+	 * This method is only used in debugging. The board no longer keeps Square objects, so this builds
+	 * a Square for every cell mirroring its current state. Changing the returned squares does NOT
+	 * change the board. It is left here in case future alterations need to be made to the class and then debugged.
 	 * NEVER use this method in the Server class.
-	 * @return ArrayList<ArrayList<Square>> which is the board itself.
+	 * @return ArrayList<ArrayList<Square>> which is a copy of the board.
 	 */
 	public ArrayList<ArrayList<Square>> getActualBoardStateForDebugPurposes()
 	{
-		return this.boardState;
+		ArrayList<ArrayList<Square>> copy = new ArrayList<ArrayList<Square>>();
+		this.locks.lockAll();
+		try
+		{
+			for(int row = 0; row < this.size; row++)
+			{
+				ArrayList<Square> squareRow = new ArrayList<Square>();
+				for(int col = 0; col < this.size; col++)
+				{
+					int index = this.cells.index(row, col);
+					Square square = new Square(row, col, this.cells.isBomb(index) ? '1' : '0');
+					square.setCount(this.cells.getCount(index));
+					if (this.cells.isDug(index))
+					{
+						square.setStatus(" ");
+					}
+					else if (this.cells.isFlagged(index))
+					{
+						square.setStatus("F");
+					}
+					squareRow.add(square);
+				}
+				copy.add(squareRow);
+			}
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
+		return copy;
 	}
 	
 	/**
-	 * This method is only called in the constructor right after we first initialize the board. It executes a 
-	 * BFS starting from the upper left corner of the board, which is position (0,0), 
-	 * and sets the counts for every square in the board as the search expands. 
+	 * This method is only called in the constructor right after we first initialize the board. 
+	 * It sets the count of every square to the number of bombs in the adjacent squares, using the
+	 * row-wise bitboard kernel in NeighborCounter so construction stays linear in the number of squares.
 	 */
 	public void setAllCounts()
 	{
-		Queue<Square> squareQueue = new LinkedBlockingQueue<Square>();
-		ArrayList<ArrayList<Integer>> visited = new ArrayList<ArrayList<Integer>>();
-		squareQueue.add(boardState.get(0).get(0));
-		while (!squareQueue.isEmpty())
-		{
-			Square currentSquare = squareQueue.poll();
-			int bombsFound = 0;
-			int x = (int) currentSquare.getLocation().get(0);
-			int y = (int) currentSquare.getLocation().get(1);
-			ArrayList<Square> currentAdj = adjacentSquares(x,y);
-			for(Square s: currentAdj)
-			{
-				
-				if (s.getDescription() == "bomb")
-				{
-					bombsFound += 1;
-				}
-				
-				if (!visited.contains(s.getLocation()))
-				{
-					squareQueue.add(s);
-					visited.add(s.getLocation()); //If we don't add it here, any adjacents to it will multi-count their adjacents, etc. 
-				}
-			}
-			
-			currentSquare.setCount(bombsFound);
-		}
-			
+		NeighborCounter.countAll(this.cells);
 	}
 	/**
 	 * This method returns the current string representation of the board, as a player should see it.
 	 * This was added just to keep things extremely clear. 
 	 * @return String indicating the current Board state to a player.
 	 */
-	public synchronized String processLook()
+	public String processLook()
 	{
 		return this.toString();
 	}
@@ -228,147 +518,163 @@ public class Board
 	 * for future fun. It allows one to cheat by getting the description of
 	 * the square and its bomb count without digging it.
 	 * 
-	 *  Note, however, that this is the only method that players can issue which does not
-	 *  actually have synchronization. I decided to intentionally leave it unsynchronized to add
-	 *  potential danger to spying; are you actually sure that your information is accurate?
+	 *  It used to be the only command that read the board without synchronization, which added some
+	 *  danger to spying, but it could report a square halfway through being changed. Now it reads the
+	 *  square optimistically like toString does, and if the square's tile was written meanwhile it reads it
+	 *  again under the tile's read lock. The information is accurate, if not for long.
 	 *  
 	 * @param input
 	 * @return Description of desired square.
 	 */
 	public String processSpy(String input)
 	{
-		int locationDataX;
-		int locationDataY;
-		if (input.length() == 7)
-		{
-		locationDataX = Integer.valueOf(input.substring(4,5));
-		locationDataY = Integer.valueOf(input.substring(6,7));
-		
-		}
-		
-		else if (input.length() == 8)//spy_XX_Y or spy_X_YY
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.SPY)
 		{
-			if ((0 <= Integer.valueOf(input.substring(5,6)) && Integer.valueOf(input.substring(5,6)) <= 9 ))
-				{
-				locationDataX = Integer.valueOf(input.substring(4,6));
-				locationDataY = Integer.valueOf(input.substring(7,8));
-				}
-			else
-				{
-					locationDataX = Integer.valueOf(input.substring(4,5));
-					locationDataY = Integer.valueOf(input.substring(6,8));
-				}
-			
+			return this.toString();
 		}
-		else //spy_XX_YY
+		return processSpy(parser.getX(), parser.getY());
+	}
+	
+	/**
+	 * processSpy for the square at column x, row y.
+	 */
+	public String processSpy(int x, int y)
+	{
+		if(x < 0 || x >= this.size || y < 0 || y >= this.size)
 		{
-			locationDataX = Integer.valueOf(input.substring(4,6));
-			locationDataY = Integer.valueOf(input.substring(7,9));
+			return this.toString();
 		}
-		
-		if(locationDataX < 0 || locationDataX >= this.size || locationDataY < 0 || locationDataY >= this.size)
+		int index = this.cells.index(y, x);
+		int tile = this.locks.tileOf(index);
+		String description;
+		int count;
+		long stamp = this.locks.tryOptimisticRead(tile);
+		//Spying doesn't hold the tile's lock, so it mustn't cache a count it had to work out.
+		description = this.cells.description(index);
+		count = this.cells.isCountKnown(index) ? this.cells.getCount(index) : this.cells.countBombsAround(index);
+		if (stamp == 0 || !this.locks.validate(tile, stamp))
 		{
-			return this.toString();
+			this.locks.readLock(tile);
+			try
+			{
+				description = this.cells.description(index);
+				count = this.cells.isCountKnown(index) ? this.cells.getCount(index) : this.cells.countBombsAround(index);
+			}
+			finally
+			{
+				this.locks.unread(tile);
+			}
 		}
-		return "Square description: " + boardState.get(locationDataY).get(locationDataX).getDescription() + "\n\rSquare bombcount: " + boardState.get(locationDataX).get(locationDataY).getCount();
+		return "Square description: " + description + "\n\rSquare bombcount: " + count;
 	}
 	
 	/**
 	 * This method allows a player to mark a square as flagged.
-	 * No actions except for unflagging are available to a flagged square.
+	 * No actions except for unflagging are available to a flagged square. Squares that have
+	 * already been dug cannot be flagged.
+	 * 
+	 * Flagging is a single compare-and-set of the square (see CellStore.tryFlag), made holding only the square's
+	 * tile, so it waits for nothing but a cascade writing that very tile, and a look running meanwhile sees the
+	 * tile change and reads the board again instead of showing this flag without one placed before it.
 	 * @param input: A string in the format "flag X Y" 
 	 * @return String representation of the currentBoard state with the updated Flag.
 	 */
-	public synchronized String processFlag(String input)
+	public String processFlag(String input)
 	{
-		int locationDataX;
-		int locationDataY;
-		if (input.length() ==8)
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.FLAG)
 		{
-		locationDataX = Integer.valueOf(input.substring(5,6));
-		locationDataY = Integer.valueOf(input.substring(7,8));
-		
+			return this.toString();
 		}
-		
-		else if (input.length() == 8)//flag_XX_Y or flag_X_YY
+		return processFlag(parser.getX(), parser.getY());
+	}
+	
+	/**
+	 * processFlag for the square at column x, row y.
+	 */
+	public String processFlag(int x, int y)
+	{
+		flag(x, y);
+		return this.toString();
+	}
+	
+	/**
+	 * processFlag without the board sent back, for callers that only need the square flagged.
+	 */
+	void flag(int x, int y)
+	{
+		if(x < 0 || x >= this.size || y < 0 || y >= this.size)
 		{
-			if ((0 <= Integer.valueOf(input.substring(5,6)) && Integer.valueOf(input.substring(5,6)) <= 9 ))
-				{
-				locationDataX = Integer.valueOf(input.substring(5,7));
-				locationDataY = Integer.valueOf(input.substring(8,9));
-				}
-			else
-				{
-					locationDataX = Integer.valueOf(input.substring(5,6));
-					locationDataY = Integer.valueOf(input.substring(7,9));
-				}
-			
+			return;
 		}
-		else //flag_XX_YY
+		
+		int index = this.cells.index(y, x);
+		int tile = this.locks.tileOf(index);
+		this.locks.lock(tile);
+		try
 		{
-			locationDataX = Integer.valueOf(input.substring(5,7));
-			locationDataY = Integer.valueOf(input.substring(8,10));
+			if (this.cells.tryFlag(index) && this.regions != null)
+			{
+				this.regions.flagChanged(index, true);
+			}
 		}
-
-		if(locationDataX < 0 || locationDataX >= this.size || locationDataY < 0 || locationDataY >= this.size)
+		finally
 		{
-			return this.toString();
+			this.locks.unlock(tile);
 		}
-		
-		boardState.get(locationDataY).get(locationDataX).setStatus("F");
-		return this.toString();
 	}
 	
 	/**
 	 * This method is the only way to return a flagged square to normal.
-	 * It simply removes the flag if there is one, or does nothing otherwise.
-	 * Then it prints the (potentially updated) state of the board.
+	 * It simply removes the flag if there is one, or does nothing otherwise, with a single compare-and-set
+	 * holding the square's tile, like processFlag. Then it prints the (potentially updated) state of the board.
 	 * @param input: String in the format "deflag X Y" 
 	 * @return String: representation of the board state after execution of deflag
 	 */
-	public synchronized String processDeflag(String input)//string is "deflag_X_Y"
+	public String processDeflag(String input)
 	{
-		int locationDataX;
-		int locationDataY;
-		if (input.length() == 10)
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.DEFLAG)
 		{
-		locationDataX = Integer.valueOf(input.substring(7,8));
-		locationDataY = Integer.valueOf(input.substring(9,10));
-		
-		}
-		
-		else if (input.length() == 11)//deflag_XX_Y or deflag_X_YY
-		{
-			if ((0 <= Integer.valueOf(input.substring(7,8)) && Integer.valueOf(input.substring(8,9)) <= 9 ))
-				{
-				locationDataX = Integer.valueOf(input.substring(7,9));
-				locationDataY = Integer.valueOf(input.substring(10,11));
-				}
-			else
-				{
-					locationDataX = Integer.valueOf(input.substring(7,8));
-					locationDataY = Integer.valueOf(input.substring(9,11));
-				}
-			
+			return this.toString();
 		}
-		else //deflag_XX_YY
+		return processDeflag(parser.getX(), parser.getY());
+	}
+	
+	/**
+	 * processDeflag for the square at column x, row y.
+	 */
+	public String processDeflag(int x, int y)
+	{
+		deflag(x, y);
+		return this.toString();
+	}
+	
+	/**
+	 * processDeflag without the board sent back.
+	 */
+	void deflag(int x, int y)
+	{
+		if(x < 0 || x >= this.size || y < 0 || y >= this.size)
 		{
-			locationDataX = Integer.valueOf(input.substring(7,9));
-			locationDataY = Integer.valueOf(input.substring(10,12));
+			return;
 		}
 		
-		//Invalidity
-		if(locationDataX < 0 || locationDataX >= this.size || locationDataY < 0 || locationDataY >= this.size)
+		int index = this.cells.index(y, x);
+		int tile = this.locks.tileOf(index);
+		this.locks.lock(tile);
+		try
 		{
-			return this.toString();
+			if (this.cells.tryDeflag(index) && this.regions != null)
+			{
+				this.regions.flagChanged(index, false);
+			}
 		}
-		
-		Square squareRequested = boardState.get(locationDataY).get(locationDataX);
-		if (squareRequested.getStatus() == "F")
+		finally
 		{
-				squareRequested.setStatus("-");		
+			this.locks.unlock(tile);
 		}
-		return this.toString();
 	}
 	/**
 	 * This method simply returns a String indicating all the valid commands and their syntax.
@@ -389,245 +695,346 @@ public class Board
 	 * If you dig a bomb, some cleanup happens in which it is registered that you hit the bomb, the bomb is removed,
 	 * the states are updated to reflect one less bomb, and a BOOM! message is returned, which should get
 	 * you booted from the server by signaling to terminate your connection.
+	 * 
+	 * Only the tiles the dig touches are locked; see cascade for how a cascade takes more of them as it spreads.
+	 * If incremental reveal is on (see setIncrementalReveal), those tiles are given up between chunks of a cascade.
 	 * @param input String in the format "dig X Y". 
 	 * @return If no bomb, returns updated state of board.
 	 * @return If bomb, returns BOOM!
 	 */
-	public synchronized String processDig(String input)
+	public String processDig(String input)
 	{
-		int locationDataX;
-		int locationDataY;
-		if (input.length() == 7)
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.DIG)
 		{
-		locationDataX = Integer.valueOf(input.substring(4,5));
-		locationDataY = Integer.valueOf(input.substring(6,7));
-		
+			return this.toString();
 		}
+		return processDig(parser.getX(), parser.getY());
+	}
+	
+	/**
+	 * processDig for the square at column x, row y.
+	 */
+	public String processDig(int x, int y)
+	{
+		return dig(x, y) ? "BOOM!" : this.toString();
+	}
+	
+	/**
+	 * processDig without the board sent back.
+	 * @return true if the square held a bomb
+	 */
+	boolean dig(int x, int y)
+	{
+		if(x < 0 || x >= this.size || y < 0 || y >= this.size)
+		{
+			return false;
+		}
+		//At this point, we know the square indicated exists, so this next line is okay to do:
+		int requestedIndex = this.cells.index(y, x);
 		
-		else if (input.length() == 8)//dig_XX_Y or dig_X_YY
+		//A dig that looks like it cascades is first tried without holding tiles. Bombs, flags and squares already
+		//dug are cheap, and dealt with below.
+		if (this.optimisticReveal && this.revealChunk == 0 && !this.cells.isBomb(requestedIndex)
+				&& !this.cells.isFlagged(requestedIndex) && !this.cells.isDug(requestedIndex)
+				&& this.cells.peekCount(requestedIndex) == 0 && optimisticCascade(requestedIndex))
+		{
+			return false;
+		}
+		boolean hitBomb = false;
+		TileLocks.Holder holder = this.locks.newHolder();
+		try
 		{
-			if ((0 <= Integer.valueOf(input.substring(5,6)) && Integer.valueOf(input.substring(5,6)) <= 9 ))
+			//Cascades that use the RegionIndex or parallel reveal need the whole board, but both are off unless
+			//turned on (see setRegionIndex and setParallelReveal). We only find out whether there is a cascade once
+			//the square's tiles are held, so then we start over holding every tile.
+			boolean wholeBoard = false;
+			while (true)
+			{
+				if (wholeBoard)
+				{
+					holder.lockAll();
+				}
+				else
 				{
-				locationDataX = Integer.valueOf(input.substring(4,6));
-				locationDataY = Integer.valueOf(input.substring(7,8));
+					holder.lockArea(y, x);
 				}
-			else
+				
+				//If this is true, we've already dug it or flagged it so leave it be & return current state. 
+				//This is checked again after starting over, by when another dig may have hit the bomb first.
+				if(this.cells.isFlagged(requestedIndex) || this.cells.isDug(requestedIndex))
 				{
-					locationDataX = Integer.valueOf(input.substring(4,5));
-					locationDataY = Integer.valueOf(input.substring(6,8));
+					hitBomb = false;
+					break;
 				}
-			
-		}
-		else //dig_XX_YY
-		{
-			locationDataX = Integer.valueOf(input.substring(4,6));
-			locationDataY = Integer.valueOf(input.substring(7,9));
+				hitBomb = this.cells.isBomb(requestedIndex);
+				boolean cascades = hitBomb || this.cells.getCount(requestedIndex) == 0;
+				if (cascades && !wholeBoard && this.revealChunk == 0 && (this.regions != null || this.parallelFill != null))
+				{
+					holder.releaseAll();
+					wholeBoard = true;
+					continue;
+				}
+				
+				//The square is checked for a flag again by the compare-and-set, in which case we leave it be.
+				if (!this.cells.tryReveal(requestedIndex))
+				{
+					hitBomb = false;
+					break;
+				}
+				
+				//Hard section. What to do if we get a bomb. 
+				if(hitBomb)
+				{
+					//Clear the bomb away. 
+					this.cells.setBomb(requestedIndex, false);
+					this.cells.getCount(requestedIndex);
+
+					//We want to decrement the bomb count for each square adjacent to this one.
+					//Counts that haven't been worked out yet will be counted without the bomb when they are.
+					for(int r = Math.max(y-1, 0); r <= Math.min(y+1, this.size-1); r++)
+					{
+						for(int c = Math.max(x-1, 0); c <= Math.min(x+1, this.size-1); c++)
+						{
+							int adjacent = this.cells.index(r, c);
+							if(adjacent != requestedIndex && this.cells.isCountKnown(adjacent) && this.cells.getCount(adjacent) > 0)
+							{
+								this.cells.setCount(adjacent, this.cells.getCount(adjacent)-1);
+							}
+						}
+					}
+					//Squares whose count just dropped to 0 now belong to a region.
+					if (this.regions != null)
+					{
+						this.regions.bombRemoved(requestedIndex);
+					}
+				}
+				
+				//If its count isn't 0, digging just reveals the count. Otherwise either we hit a bomb or the square
+				//has no adjacent bombs, so we launch the recursive discovery procedure.
+				if (cascades)
+				{
+					if (wholeBoard)
+					{
+						cascadeHoldingEverything(y, x);
+					}
+					else
+					{
+						cascade(requestedIndex, holder);
+					}
+				}
+				break;
+			}
 		}
-		
-		//Invalidity
-		if(locationDataX < 0 || locationDataX >= this.size || locationDataY < 0 || locationDataY >= this.size)
+		finally
 		{
-			return this.toString();
+			holder.releaseAll();
 		}
-		//At this point, we know the square indicated exists, so this next line is okay to do:
-		Square requestedSquare = boardState.get(locationDataY).get(locationDataX);
-		
-		//If this is true, we've already dug it or flagged it so leave it be & return current state. 
-		if(requestedSquare.getStatus() == "F" || (requestedSquare.getDescription() != "untouched" && requestedSquare.getDescription() != "bomb") )
+		return hitBomb;
+	}
+	
+	/**
+	 * Runs the cascade from the dug square at origin with a FloodFill that takes tiles through the holder as
+	 * the cascade spreads. In incremental mode every tile is given up after each chunk of the cascade.
+	 * 
+	 * If the holder gets blocked, it gives up its tiles for a moment to take them back in order, and another
+	 * command may run in between. Like with incremental reveal, a cascade can then be seen part way through,
+	 * and a square flagged in between is treated as if it had been flagged before the dig.
+	 */
+	private void cascade(int origin, TileLocks.Holder holder)
+	{
+		FloodFill fill;
+		synchronized(this.idleFills)
 		{
-			return this.toString();
+			fill = this.idleFills.isEmpty() ? new FloodFill(this.cells) : this.idleFills.pop();
 		}
-		
-		//Hard section. What to do if we get a bomb. 
-		else if(requestedSquare.getDescription() == "bomb")
+		int chunk = this.revealChunk;
+		fill.setHolder(holder);
+		fill.begin(origin);
+		try
 		{
-			//Clear the bomb away. 
-			requestedSquare.setStatus(" ");
-			requestedSquare.setDescription("dug");
-
-			//Compose an array list containing all squares adjacent to this one. 
-			ArrayList<Square> adjacentToThisSquare = adjacentSquares(locationDataY,locationDataX);
-			
-			//We want to decrement the bomb count for each square adjacent to this one.
-			for (Square s: adjacentToThisSquare)
-			{	
-				if(s.getCount() > 0)
+			while (!fill.advance(chunk == 0 ? Integer.MAX_VALUE : chunk))
+			{
+				if (holder.isBlocked())
 				{
-				s.setCount(s.getCount()-1);
+					holder.restart();
+				}
+				else
+				{
+					//In incremental mode the cascade runs a chunk at a time, and other players get its tiles in between.
+					holder.releaseAll();
+					Thread.yield();
 				}
 			}
-			recursiveDig(requestedSquare, locationDataY, locationDataX);
-			return "BOOM!";
 		}
-				
-		//If we haven't dug it yet and its count is 0, we  launch the recursive discovery procedure. It has its own checks.
-		if (requestedSquare.getDescription() == "untouched" && requestedSquare.getCount() == 0)
+		finally
+		{
+			fill.finish();
+			fill.setHolder(null);
+			synchronized(this.idleFills)
 			{
-				requestedSquare.setDescription("dug");
-				requestedSquare.setStatus(" ");
-				recursiveDig(requestedSquare, locationDataY, locationDataX);
+				this.idleFills.push(fill);
 			}
-		
-		//If we haven't dug it yet and it has a count, just reveal the count, update status.
-		else if (requestedSquare.getDescription() == "untouched" && requestedSquare.getCount() != 0){
-			requestedSquare.setStatus(requestedSquare.getCount());
-			requestedSquare.setDescription("dug");
-			return this.toString();
 		}
-		return this.toString();
 	}
 	
-	public String recursiveDig(Square requestedSquare, int locationDataY, int locationDataX)
+	/**
+	 * Reveals the squares around an already dug square at (row, col), and keeps expanding from every
+	 * revealed square with a count of 0. Bombs and flagged squares are never revealed and stop the expansion.
+	 * 
+	 * If every region of squares with count 0 that the cascade enters is free of flags, the precomputed
+	 * regions are revealed whole from the RegionIndex. Otherwise the cascade is discovered square by square;
+	 * see FloodFill and ParallelFloodFill for how.
+	 * 
+	 * This takes every tile of the board; the caller must not hold any.
+	 * @param row
+	 * @param col
+	 */
+	public void recursiveDig(int row, int col)
 	{
-			ArrayList<Square> adjacents = adjacentSquares(locationDataY, locationDataX);
-			Queue<Square> squareQueue = new LinkedBlockingQueue<Square>();
-			squareQueue.addAll(adjacents);
-			ArrayList<ArrayList<Integer>> visited = new ArrayList<ArrayList<Integer>>();
-			while (!squareQueue.isEmpty())
+		//The optimistic cascade only spreads from squares with count 0, the origin included. Counts never go up.
+		if (this.optimisticReveal && this.revealChunk == 0 && this.cells.peekCount(this.cells.index(row, col)) == 0
+				&& !this.cells.isBomb(this.cells.index(row, col)) && optimisticCascade(this.cells.index(row, col)))
+		{
+			return;
+		}
+		this.locks.lockAll();
+		try
+		{
+			cascadeHoldingEverything(row, col);
+		}
+		finally
+		{
+			this.locks.unlockAll();
+		}
+	}
+	
+	/**
+	 * Digs the square at origin and carries out its cascade with an OptimisticFill, trying up to
+	 * OPTIMISTIC_TRIES times. The caller must not hold any tile.
+	 * @return false, having changed nothing, if every try found the board changed under it
+	 */
+	private boolean optimisticCascade(int origin)
+	{
+		OptimisticFill fill;
+		synchronized(this.idleOptimisticFills)
+		{
+			fill = this.idleOptimisticFills.isEmpty() ? new OptimisticFill(this.cells, this.locks) : this.idleOptimisticFills.pop();
+		}
+		try
+		{
+			for (int attempt = 0; attempt < OPTIMISTIC_TRIES; attempt++)
 			{
-				Square s = squareQueue.poll();
-				visited.add(s.getLocation());
-				if (s.getDescription() == "bomb" || s.getStatus() == "F")
-				{
-					continue;
-				}
-				
-				else
+				if (fill.tryFill(origin))
 				{
-					if (s.getCount() != 0)
-					{
-						s.setStatus(s.getCount());
-						s.setDescription("dug");
-						continue;
-					}
-				
-					else if(s.getCount() == 0)
-					{
-						s.setStatus(" ");
-						s.setDescription("dug");
-						int xLoc = (int) s.getLocation().get(1);
-						int yLoc = (int) s.getLocation().get(0);
-						ArrayList<Square> prospects = (adjacentSquares(yLoc,xLoc));
-						for (Square m: prospects)
-						{
-							if(!visited.contains(m.getLocation()))
-								{
-								squareQueue.add(m);
-								visited.add(m.getLocation());
-							}
-						}
-						
-					}
+					return true;
 				}
+				Thread.yield();
 			}
-			
-				return this.toString();	
-			
-	}
-	/**
-	 * This is a helper method created to acquire all the surrounding squares of any one given square.
-	 * The central square is given by the two parameters of the method: The X indicates row from the
-	 * top of the board down, and the Y indicates the column of the board from left to right.
-	 * @param locationDataX
-	 * @param locationDataY
-	 * @return ArrayList<Square> containing all the adjacent squares to the given location
-	 */
-	public ArrayList<Square> adjacentSquares(int locationDataY, int locationDataX)
-	{
-		ArrayList<Square> adjacencyList = new ArrayList<Square>();
-		int rightOne = locationDataY+1;
-		int leftOne = locationDataY-1;
-		int upOne = locationDataX-1;
-		int downOne = locationDataX+1;
-		Square Northwest;
-		Square North;
-		Square Northeast;
-		Square West;
-		Square East;
-		Square Southwest;
-		Square South;
-		Square Southeast;
-		boolean upValid = true;
-		boolean downValid = true;
-		if (upOne < 0)
-		{ 
-			upValid = false;
-		}
-		if (downOne >= this.size)
-		{
-			downValid = false;
-		}
-		//Seems like there's no way around indexing  through the squares. 
-		//Check if they're valid first.
-		if(rightOne < this.size)
-		{
-			
-			East = boardState.get(rightOne).get(locationDataX);
-			adjacencyList.add(East);
-			
-			if(upValid)
-			{
-				Northeast = boardState.get(rightOne).get(upOne);
-				adjacencyList.add(Northeast);
-			}
-			
-			if(downValid)
+			return false;
+		}
+		finally
+		{
+			synchronized(this.idleOptimisticFills)
 			{
-				Southeast = boardState.get(rightOne).get(downOne);
-				adjacencyList.add(Southeast);
+				this.idleOptimisticFills.push(fill);
 			}
 		}
-		
-		if(upValid)
+	}
+	
+	private void cascadeHoldingEverything(int row, int col)
+	{
+		if (this.regions != null && revealRegions(row, col))
 		{
-			North = boardState.get(locationDataY).get(upOne);
-			adjacencyList.add(North);
+			return;
 		}
-		
-		if(downValid)
+		if (this.parallelFill != null)
 		{
-			South = boardState.get(locationDataY).get(downOne);
-			adjacencyList.add(South);
+			this.parallelFill.fill(this.floodFill, this.cells.index(row, col));
 		}
-		
-		if(leftOne >= 0)
+		else
+		{
+			this.floodFill.fill(this.cells.index(row, col));
+		}
+	}
+	
+	/**
+	 * Carries out the cascade from the dug square at (row, col) using the RegionIndex. If the square is in a
+	 * region, that region is revealed. Otherwise (we dug up a bomb) its neighbors are revealed, with the
+	 * whole region of any neighbor that is in one.
+	 * @return false, having changed nothing, if one of those regions contains a flag
+	 */
+	private boolean revealRegions(int row, int col)
+	{
+		int origin = this.cells.index(row, col);
+		if (this.regions.isMember(origin))
 		{
-			
-			West = boardState.get(leftOne).get(locationDataX);
-			adjacencyList.add(West);
-			
-			if(upValid)
+			if (this.regions.hasFlag(origin))
 			{
-				Northwest = boardState.get(leftOne).get(upOne);
-				adjacencyList.add(Northwest);
+				return false;
 			}
-			
-			if(downValid)
+			this.regions.reveal(origin);
+			return true;
+		}
+
+		for(int r = Math.max(row-1, 0); r <= Math.min(row+1, this.size-1); r++)
+		{
+			for(int c = Math.max(col-1, 0); c <= Math.min(col+1, this.size-1); c++)
 			{
-				Southwest = boardState.get(leftOne).get(downOne);
-				adjacencyList.add(Southwest);
-				
+				int adjacent = this.cells.index(r, c);
+				if (this.regions.isMember(adjacent) && this.regions.hasFlag(adjacent))
+				{
+					return false;
+				}
 			}
 		}
-		return adjacencyList;
-		
-		
-		
+		int[] revealedRegions = new int[8];
+		int revealedCount = 0;
+		for(int r = Math.max(row-1, 0); r <= Math.min(row+1, this.size-1); r++)
+		{
+			for(int c = Math.max(col-1, 0); c <= Math.min(col+1, this.size-1); c++)
+			{
+				int adjacent = this.cells.index(r, c);
+				if (this.regions.isMember(adjacent))
+				{
+					//Several neighbors can share a region, which only needs revealing once.
+					int region = this.regions.find(adjacent);
+					boolean seen = false;
+					for (int i = 0; i < revealedCount; i++)
+					{
+						seen |= revealedRegions[i] == region;
+					}
+					if (!seen)
+					{
+						revealedRegions[revealedCount++] = region;
+						this.regions.reveal(adjacent);
+					}
+				}
+				else if (!this.cells.isBomb(adjacent))
+				{
+					this.cells.tryReveal(adjacent);
+				}
+			}
+		}
+		return true;
 	}
+	
 	/**
-	 * Lastly, this method is a helper method used in the constructor. We initialize a new Square
-	 * for every slot in the board, and this method does that for whatever the given size is. 
-	 * @return A row of brand-new squares to be added to the board. 
+	 * Turns the RegionIndex on or off. It makes a dig into a region of squares with count 0 reveal the region
+	 * without searching for it, but costs 8 bytes per square on the heap on top of the square itself, has to be
+	 * rebuilt when turned on, and makes every cascade and bomb hit take every tile. It was also slower than
+	 * FloodFill on the largest regions measured (see BoardBenchmark), so boards start with it off.
 	 */
-	public ArrayList<Square> createRow()
+	public void setRegionIndex(boolean enabled)
 	{
-		
-		ArrayList<Square> row = new ArrayList<Square>();
-		for(int j = 0; j < this.size; j++)
+		this.locks.lockAll();
+		try
+		{
+			this.regions = enabled ? new RegionIndex(this.cells) : null;
+		}
+		finally
 		{
-			row.add(new Square(j, this.rowCounter));
+			this.locks.unlockAll();
 		}
-		this.rowCounter +=1;
-		return row;
 	}
 }
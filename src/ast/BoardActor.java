@@ -0,0 +1,319 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class gives a GameBoard to one thread of its own, the actor, which is the only thread that ever runs a
+ * command against it. Everyone else submits commands and waits for the actor's answer, so the board itself
+ * needs no locking at all (see Board.setSingleWriter).
+ *
+ * Commands travel through a ring buffer of capacity entries, allocated once, in the style of the LMAX Disruptor.
+ * A thread submitting a command claims the next sequence number with a getAndIncrement, waits until the actor has
+ * consumed the command capacity places earlier (so the ring never overwrites a command that hasn't run), fills in
+ * the entry, and publishes it by storing the sequence number in the entry. The actor consumes entries strictly in
+ * sequence: it waits until the entry it wants carries the sequence number it expects, runs the command, and then
+ * advances its own count of consumed commands. No thread ever takes a lock.
+ *
+ * Answers go back through a Completion that belongs to the submitting thread (a server has a thread per
+ * connection, so that is a slot per connection). The actor fills it in and wakes the thread if it went to sleep.
+ *
+ * An actor with nothing to do spins for a while, then sleeps until a thread publishes a command and wakes it.
+ * Both sides announce themselves before checking the other (the actor sets sleeping before looking at the ring
+ * one last time, a thread publishes before looking at sleeping), so a command is never left waiting on a
+ * sleeping actor.
+ *
+ * @author DeJuan Anderson
+ */
+public class BoardActor implements GameBoard
+{
+	/**
+	 * Capacity of the ring when none is given.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * How many times the actor, or a thread waiting for its answer, checks before it goes to sleep.
+	 */
+	private static final int SPINS = 256;
+
+	private final GameBoard board;
+	private final int mask;
+
+	/**
+	 * The entries of the ring. The command, input or coordinates and completion of an entry are plain fields:
+	 * they are written before the entry's sequence number is published and read after it is seen. Commands are
+	 * CommandParser's codes; one issued with its coordinates already read (see CommandParser.AT) has them in xs and
+	 * ys instead of an input.
+	 */
+	private final int[] commands;
+	private final String[] inputs;
+	private final int[] xs;
+	private final int[] ys;
+	private final Completion[] completions;
+	private final AtomicLongArray published;
+
+	/**
+	 * The next sequence number to hand out to a submitting thread.
+	 */
+	private final AtomicLong claimed = new AtomicLong(0);
+
+	/**
+	 * The number of commands the actor has run. Only written by the actor.
+	 */
+	private volatile long consumed = 0;
+
+	private volatile boolean sleeping = false;
+	private volatile boolean running = true;
+	private final Thread actor;
+
+	private final ThreadLocal<Completion> completion = new ThreadLocal<Completion>()
+	{
+		@Override
+		protected Completion initialValue()
+		{
+			return new Completion(Thread.currentThread());
+		}
+	};
+
+	/**
+	 * Where the actor leaves the answer to one thread's command.
+	 */
+	private static class Completion
+	{
+		final Thread waiter;
+		String result;
+		/**
+		 * Anything the command threw, Errors included.
+		 */
+		Throwable failure;
+		volatile boolean done;
+
+		Completion(Thread waiter)
+		{
+			this.waiter = waiter;
+		}
+	}
+
+	public BoardActor(GameBoard board)
+	{
+		this(board, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Starts the actor thread, as a daemon so it doesn't keep the JVM alive.
+	 * @param capacity size of the ring, rounded up to a power of two
+	 */
+	public BoardActor(GameBoard board, int capacity)
+	{
+		if (capacity < 1 || capacity > 1 << 30)
+		{
+			throw new IllegalArgumentException("The ring cannot hold " + capacity + " commands!");
+		}
+		int entries = Integer.highestOneBit(capacity);
+		if (entries < capacity)
+		{
+			entries <<= 1;
+		}
+		this.board = board;
+		this.mask = entries - 1;
+		this.commands = new int[entries];
+		this.inputs = new String[entries];
+		this.xs = new int[entries];
+		this.ys = new int[entries];
+		this.completions = new Completion[entries];
+		this.published = new AtomicLongArray(entries);
+		for (int entry = 0; entry < entries; entry++)
+		{
+			this.published.set(entry, -1);
+		}
+		this.actor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				consume();
+			}
+		}, "board-actor");
+		this.actor.setDaemon(true);
+		this.actor.start();
+	}
+
+	public String processLook()
+	{
+		return submit(CommandParser.LOOK, null, 0, 0);
+	}
+
+	public String processHelp()
+	{
+		return submit(CommandParser.HELP, null, 0, 0);
+	}
+
+	public String processDig(String input)
+	{
+		return submit(CommandParser.DIG, input, 0, 0);
+	}
+
+	public String processDig(int x, int y)
+	{
+		return submit(CommandParser.DIG | CommandParser.AT, null, x, y);
+	}
+
+	public String processFlag(String input)
+	{
+		return submit(CommandParser.FLAG, input, 0, 0);
+	}
+
+	public String processFlag(int x, int y)
+	{
+		return submit(CommandParser.FLAG | CommandParser.AT, null, x, y);
+	}
+
+	public String processDeflag(String input)
+	{
+		return submit(CommandParser.DEFLAG, input, 0, 0);
+	}
+
+	public String processDeflag(int x, int y)
+	{
+		return submit(CommandParser.DEFLAG | CommandParser.AT, null, x, y);
+	}
+
+	public String processSpy(String input)
+	{
+		return submit(CommandParser.SPY, input, 0, 0);
+	}
+
+	public String processSpy(int x, int y)
+	{
+		return submit(CommandParser.SPY | CommandParser.AT, null, x, y);
+	}
+
+	/**
+	 * Stops the actor once it has run every command submitted so far. Commands submitted afterwards throw
+	 * IllegalStateException, or may never be answered if they race with shutdown, so only shut down an actor
+	 * nobody uses any more.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		this.running = false;
+		LockSupport.unpark(this.actor);
+		this.actor.join();
+	}
+
+	private String submit(int command, String input, int x, int y)
+	{
+		if (!this.running)
+		{
+			throw new IllegalStateException("The board actor has been shut down!");
+		}
+		Completion completion = this.completion.get();
+		completion.done = false;
+		long sequence = this.claimed.getAndIncrement();
+		int spins = 0;
+		while (sequence - this.consumed > this.mask)
+		{
+			spins = pause(spins);
+		}
+		int entry = (int) sequence & this.mask;
+		this.commands[entry] = command;
+		this.inputs[entry] = input;
+		this.xs[entry] = x;
+		this.ys[entry] = y;
+		this.completions[entry] = completion;
+		this.published.set(entry, sequence);
+		if (this.sleeping)
+		{
+			LockSupport.unpark(this.actor);
+		}
+		spins = 0;
+		while (!completion.done)
+		{
+			if (++spins > SPINS)
+			{
+				LockSupport.park(this);
+			}
+		}
+		String result = completion.result;
+		Throwable failure = completion.failure;
+		completion.result = null;
+		completion.failure = null;
+		if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error)
+		{
+			throw (Error) failure;
+		}
+		if (failure != null)
+		{
+			throw new IllegalStateException(failure);
+		}
+		return result;
+	}
+
+	/**
+	 * The actor's loop: runs the commands in the ring in sequence until shut down.
+	 */
+	private void consume()
+	{
+		long next = 0;
+		int spins = 0;
+		while (true)
+		{
+			int entry = (int) next & this.mask;
+			if (this.published.get(entry) != next)
+			{
+				if (!this.running && this.claimed.get() == next)
+				{
+					return;
+				}
+				if (++spins < SPINS)
+				{
+					continue;
+				}
+				this.sleeping = true;
+				if (this.published.get(entry) != next && this.running)
+				{
+					LockSupport.park(this);
+				}
+				this.sleeping = false;
+				spins = 0;
+				continue;
+			}
+			spins = 0;
+			Completion completion = this.completions[entry];
+			try
+			{
+				completion.result = CommandParser.run(this.board, this.commands[entry], this.inputs[entry],
+						this.xs[entry], this.ys[entry]);
+			}
+			catch (Throwable e)
+			{
+				//Handed to the thread that submitted the command, Errors included, so one bad command can't kill
+				//the actor and leave every later command waiting for an answer that never comes.
+				completion.failure = e;
+			}
+			this.inputs[entry] = null;
+			this.completions[entry] = null;
+			next++;
+			this.consumed = next;
+			completion.done = true;
+			LockSupport.unpark(completion.waiter);
+		}
+	}
+
+	/**
+	 * Spins SPINS times, then yields, for a thread waiting for room in the ring.
+	 */
+	private static int pause(int spins)
+	{
+		if (spins < SPINS)
+		{
+			return spins + 1;
+		}
+		Thread.yield();
+		return spins;
+	}
+}
@@ -0,0 +1,84 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class BoardActorTest {
+
+	/**
+	 * My testing strategy for the board actor is:
+	 * 1) From one thread it answers exactly like the board it owns.
+	 * 2) Many threads through a ring smaller than their number of commands all get their own answers, and the
+	 *    single writer board ends up consistent.
+	 * 3) A command that throws, even an Error, throws in the thread that submitted it, and the actor keeps working.
+	 */
+
+	@Test
+	public void answersLikeTheBoardItOwns() throws InterruptedException
+	{
+		Board owned = new Board(new CellStore(20));
+		owned.setSingleWriter();
+		BoardActor actor = new BoardActor(owned);
+		TestUtil.assertAnswersLike(new Board(new CellStore(20)), actor);
+		actor.shutdown();
+	}
+
+	@Test
+	public void manyThreadsThroughASmallRing() throws InterruptedException
+	{
+		final int size = 100;
+		final CellStore cells = new CellStore(size);
+		MineLayout.place(cells, 800, 1515);
+		Board owned = new Board(cells);
+		owned.setSingleWriter();
+		final BoardActor actor = new BoardActor(owned, 4);
+		final AtomicInteger wrongAnswers = new AtomicInteger();
+		Thread[] players = new Thread[8];
+		for (int p = 0; p < players.length; p++)
+		{
+			//Every player flags and digs a column of its own, so the answer to each flag must show the square
+			//flagged, or dug by an earlier cascade, but never untouched.
+			final int x = 10*p;
+			players[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int y = 0; y < size; y++)
+					{
+						String reply = actor.processFlag("flag " + x + " " + y);
+						if (reply.charAt(y*(2*size + 1) + 2*x) == '-')
+						{
+							wrongAnswers.incrementAndGet();
+						}
+						actor.processDeflag("deflag " + x + " " + y);
+						actor.processDig("dig " + x + " " + y);
+					}
+				}
+			});
+			players[p].start();
+		}
+		for (Thread player : players)
+		{
+			player.join();
+		}
+		actor.shutdown();
+		assertEquals(0, wrongAnswers.get());
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			assertEquals(cells.countBombsAround(index), cells.getCount(index));
+			assertFalse(cells.isDug(index) && cells.isFlagged(index));
+		}
+	}
+
+	@Test
+	public void failuresGoBackToTheirThread() throws InterruptedException
+	{
+		BoardActor actor = new BoardActor(TestUtil.throwingBoard());
+		TestUtil.assertFailuresGoBack(actor);
+		actor.shutdown();
+	}
+}
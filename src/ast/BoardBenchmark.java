@@ -0,0 +1,1186 @@
+package ast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is not part of the game. It is a small set of measurements I run by hand (it has a main method)
+ * whenever the Board representation changes, so the numbers can be compared before and after.
+ *
+ * Usage: BoardBenchmark (memory | startup | dig | parallel | incremental | chunked | mapped | load | throughput | reads
+ *        | combining | latency | optimistic | snapshots | fair) [SIZE ...]
+ *
+ * memory: for every SIZE given (default 500 1000 2000) reports the heap retained per square by the old
+ * representation, one Square object per square in an ArrayList<ArrayList<Square>>, and by Board.
+ * Run it with a large enough -Xmx for the biggest size, since the old representation needs it.
+ *
+ * startup: for every SIZE given (default 500 1000 2000 4000) reports how long new Board(SIZE) takes,
+ * and how much of that is setAllCounts.
+ *
+ * dig: for every SIZE given (default 500 1000 2000 4000) digs the corner of a board with no bombs, so the
+ * cascade reveals every square, and reports how long the Board lock was held for it, both with the cascade
+ * discovered by FloodFill and with the region revealed from the RegionIndex.
+ *
+ * parallel: for every SIZE given (default 2000 4000) digs the middle of a board with 2% bombs, serially and
+ * then with parallel reveal on pools of 1, 2, 4, ... threads up to the number of cores, and reports the
+ * median cascade time of each.
+ *
+ * incremental: for every SIZE given (default 1000 2000) digs the corner of a board with no bombs while another
+ * thread keeps issuing look, with incremental reveal off and with a few chunk sizes, and reports the latency
+ * percentiles of the looks that ran while the cascade was in progress.
+ *
+ * chunked: for every SIZE given (default 100 1000 10000) flags that many random squares anywhere on a ChunkedBoard
+ * and reports how many tiles exist afterwards and how much heap the board retains.
+ *
+ * mapped: for every SIZE given (default 1000 2000 4000) builds the board as Square objects, as a Board and as a
+ * Board kept in a MappedCellStore, and for each reports the heap it retains and what the garbage collector does
+ * while it is reachable: the longest of a few full collections, and the number and total time of the collections
+ * caused by allocating short-lived garbage, the way the server does while answering commands.
+ *
+ * load: for every SIZE given (default 1000 2000 4000) writes a random board file and reports how long
+ * new Board(file) takes with every count worked out up front and with lazy counts.
+ *
+ * throughput: for every number of players given (default 1 2 4 8 16 32 64) runs that many threads issuing flags,
+ * deflags and digs for a second on a board of 8x8 tiles, and reports commands per second, per player and per
+ * core. Each player works inside a tile of its own, away from its edges, so with up to 64 players no two ever
+ * want the same tile and the only limit is the number of cores. The commands are run through Board.dig, flag
+ * and deflag, without rendering the board afterwards, since a reply reads every tile and would be measuring the
+ * renderer rather than the locks (see reads for that).
+ *
+ * reads: for every number of clients given (default 1 8 64) runs that many threads issuing look, and spy now
+ * and then, for a second on a 100x100 board while one more thread keeps flagging and deflagging, and reports
+ * reads per second and the writer's commands per second, which shouldn't drop as readers are added.
+ *
+ * combining: for every number of players given (default 1 4 16 64) runs that many threads issuing flags, deflags
+ * and digs for a second, each in one quarter of a 100x100 board and getting the board back, against a Board behind one
+ * monitor (every command synchronized on a wrapper, the way Board used to be) and a ChunkedBoard, which
+ * still is, each on its own and behind a CombiningBoard, and reports commands per second for all four.
+ *
+ * latency: for every number of players given (default 1 4 16 64) runs the same players as combining against a
+ * Board behind one monitor, a Board with its tile locks, and a BoardActor owning a single writer Board, and reports
+ * commands per second and the percentiles of the time each command took, from the player's side.
+ *
+ * optimistic: for every SIZE given (default 500 1000 2000 4000) digs near the middle of a board with 2% bombs, once
+ * holding every tile for the whole cascade and once with an OptimisticFill, and reports how long each took and
+ * for how much of it the OptimisticFill held tiles.
+ *
+ * snapshots: for every rate given (default 0 10 100 1000) runs the same players as combining, 4 of them, on a
+ * 100x100 Board kept in a PersistentCellStore while another thread forks it that many times a second, and reports the
+ * commands per second, how long forking took and how many tiles were copied. Then it keeps 1000 snapshots of a
+ * 2000x2000 store with 1, 10 and 100 squares written between each, and reports the heap each snapshot retains.
+ *
+ * fair: for every number of readers given (default 4 16 64) runs that many threads issuing look for a second on a
+ * 100x100 board while one more thread keeps flagging and deflagging, against a Board behind one monitor and behind
+ * a CommandScheduler with one permit and with one per core, and reports reads and writes per second, the
+ * percentiles of the time each write took from the writer's side, and how long the scheduler kept writes waiting.
+ *
+ * @author DeJuan Anderson
+ */
+public class BoardBenchmark
+{
+	public static void main(String[] args)
+	{
+		String mode = args.length > 0 ? args[0] : "memory";
+		if (mode.equals("memory"))
+		{
+			memory(sizes(args, 500, 1000, 2000));
+		}
+		else if (mode.equals("startup"))
+		{
+			startup(sizes(args, 500, 1000, 2000, 4000));
+		}
+		else if (mode.equals("dig"))
+		{
+			dig(sizes(args, 500, 1000, 2000, 4000));
+		}
+		else if (mode.equals("parallel"))
+		{
+			parallel(sizes(args, 2000, 4000));
+		}
+		else if (mode.equals("incremental"))
+		{
+			incremental(sizes(args, 1000, 2000));
+		}
+		else if (mode.equals("chunked"))
+		{
+			chunked(sizes(args, 100, 1000, 10000));
+		}
+		else if (mode.equals("mapped"))
+		{
+			mapped(sizes(args, 1000, 2000, 4000));
+		}
+		else if (mode.equals("load"))
+		{
+			load(sizes(args, 1000, 2000, 4000));
+		}
+		else if (mode.equals("throughput"))
+		{
+			throughput(sizes(args, 1, 2, 4, 8, 16, 32, 64));
+		}
+		else if (mode.equals("combining"))
+		{
+			combining(sizes(args, 1, 4, 16, 64));
+		}
+		else if (mode.equals("optimistic"))
+		{
+			optimistic(sizes(args, 500, 1000, 2000, 4000));
+		}
+		else if (mode.equals("snapshots"))
+		{
+			snapshots(sizes(args, 0, 10, 100, 1000));
+		}
+		else if (mode.equals("latency"))
+		{
+			latency(sizes(args, 1, 4, 16, 64));
+		}
+		else if (mode.equals("fair"))
+		{
+			fair(sizes(args, 4, 16, 64));
+		}
+		else if (mode.equals("reads"))
+		{
+			reads(sizes(args, 1, 8, 64));
+		}
+		else
+		{
+			System.err.println("usage: BoardBenchmark (memory | startup | dig | parallel | incremental | chunked | mapped | load | throughput | reads"
+					+ " | combining | latency | optimistic | snapshots | fair) [SIZE ...]");
+		}
+	}
+
+	/**
+	 * Returns the sizes given after the mode argument, or the defaults if there are none.
+	 */
+	private static int[] sizes(String[] args, int... defaults)
+	{
+		if (args.length <= 1)
+		{
+			return defaults;
+		}
+		int[] sizes = new int[args.length - 1];
+		for (int i = 1; i < args.length; i++)
+		{
+			sizes[i - 1] = Integer.parseInt(args[i]);
+		}
+		return sizes;
+	}
+
+	private static void memory(int[] sizes)
+	{
+		System.out.println("size\tsquares\tSquare bytes/square\tBoard bytes/square");
+		for (int size : sizes)
+		{
+			long squares = (long) size*size;
+			double squareBytes = retainedBytes(new SquareBoardFactory(size)) / (double) squares;
+			double boardBytes = retainedBytes(new PackedBoardFactory(size)) / (double) squares;
+			System.out.printf("%d\t%d\t%.2f\t%.2f%n", size, squares, squareBytes, boardBytes);
+		}
+	}
+
+	private static void startup(int[] sizes)
+	{
+		// Warm up the JIT on a mid-sized board first so the first row of the table isn't all interpreter.
+		for (int i = 0; i < 5; i++)
+		{
+			new Board(300).setAllCounts();
+		}
+		System.out.println("size\tsquares\tnew Board ms\tsetAllCounts ms\tns/square");
+		for (int size : sizes)
+		{
+			long squares = (long) size*size;
+			long start = System.nanoTime();
+			Board board = new Board(size);
+			long constructed = System.nanoTime();
+			board.setAllCounts();
+			long counted = System.nanoTime();
+			System.out.printf("%d\t%d\t%.1f\t%.1f\t%.2f%n", size, squares, (constructed - start) / 1e6,
+					(counted - constructed) / 1e6, (counted - constructed) / (double) squares);
+		}
+	}
+
+	private static void dig(int[] sizes)
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			new Board(new CellStore(300)).processDig("dig 0 0");
+		}
+		System.out.println("size\tsquares revealed\tFloodFill cascade ms\tRegionIndex cascade ms\tprocessDig ms");
+		for (int size : sizes)
+		{
+			long squares = (long) size*size;
+			Board board = new Board(new CellStore(size));
+			long start = System.nanoTime();
+			board.recursiveDig(0, 0);
+			long floodFilled = System.nanoTime() - start;
+
+			board = new Board(new CellStore(size));
+			board.setRegionIndex(true);
+			start = System.nanoTime();
+			board.recursiveDig(0, 0);
+			long regionRevealed = System.nanoTime() - start;
+
+			board = new Board(new CellStore(size));
+			start = System.nanoTime();
+			board.processDig("dig 0 0");
+			long dug = System.nanoTime() - start;
+			System.out.printf("%d\t%d\t%.1f\t%.1f\t%.1f%n", size, squares, floodFilled / 1e6,
+					regionRevealed / 1e6, dug / 1e6);
+		}
+	}
+
+	private static void optimistic(int[] sizes)
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			CellStore warmup = new CellStore(300);
+			new OptimisticFill(warmup, new TileLocks(300)).tryFill(0);
+		}
+		System.out.println("size\tsquares revealed\tlocked cascade ms\toptimistic cascade ms\tof which tiles held ms");
+		for (int size : sizes)
+		{
+			CellStore cells = new CellStore(size);
+			MineLayout.place(cells, (long) size*size / 50, size);
+			//The first square from the middle on with no bombs around it, so there is a cascade.
+			int origin = cells.index(size / 2, size / 2);
+			while (cells.isBomb(origin) || cells.countBombsAround(origin) != 0)
+			{
+				origin++;
+			}
+			Board board = new Board(copy(cells));
+			long start = System.nanoTime();
+			board.recursiveDig(origin / size, origin % size);
+			long locked = System.nanoTime() - start;
+
+			CellStore optimisticCells = copy(cells);
+			OptimisticFill fill = new OptimisticFill(optimisticCells, new TileLocks(size));
+			start = System.nanoTime();
+			boolean committed = fill.tryFill(origin);
+			long optimistic = System.nanoTime() - start;
+			System.out.printf("%d\t%d\t%.1f\t%.1f\t%.1f%s%n", size, fill.getPlannedCount(), locked / 1e6,
+					optimistic / 1e6, fill.getCommitNanos() / 1e6, committed ? "" : "\t(conflict)");
+		}
+	}
+
+	/**
+	 * @return a new CellStore with the same bombs as cells and every count set.
+	 */
+	private static CellStore copy(CellStore cells)
+	{
+		CellStore copy = new CellStore(cells.getSize());
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			copy.setBomb(index, cells.isBomb(index));
+		}
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			copy.setCount(index, copy.countBombsAround(index));
+		}
+		return copy;
+	}
+
+	private static void snapshots(int[] rates)
+	{
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("snapshots/s asked\tsnapshots taken\tcommands/s\tfork p50 us\tfork p99 us\ttiles copied");
+		for (final int rate : rates)
+		{
+			final PersistentCellStore cells = new PersistentCellStore(100);
+			MineLayout.place(cells, 1000, rate);
+			final Board board = new Board(cells);
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final List<Long> forkNanos = new ArrayList<Long>();
+			final List<Board> snapshots = new ArrayList<Board>();
+			Thread snapshotter = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					long interval = rate == 0 ? Long.MAX_VALUE : 1000000000L / rate;
+					long next = System.nanoTime();
+					while (!stop.get() && rate > 0)
+					{
+						long start = System.nanoTime();
+						snapshots.add(board.fork());
+						forkNanos.add(System.nanoTime() - start);
+						next += interval;
+						long wait = next - System.nanoTime();
+						if (wait > 0)
+						{
+							LockSupport.parkNanos(wait);
+						}
+					}
+				}
+			});
+			snapshotter.start();
+			long commands = play(board, 4);
+			stop.set(true);
+			try
+			{
+				snapshotter.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			Collections.sort(forkNanos);
+			System.out.printf("%d\t%d\t%d\t%.1f\t%.1f\t%d%n", rate, snapshots.size(), commands,
+					percentile(forkNanos, 50) / 1e3, percentile(forkNanos, 99) / 1e3,
+					cells.getCopiedTiles());
+		}
+
+		//Memory: many snapshots of a big board, a few squares written between each, the way a live game goes.
+		System.out.println("size\tsnapshots\tsquares written between\tbytes per snapshot\tbytes of the board");
+		final int size = 2000;
+		final int count = 1000;
+		for (final int written : new int[] {1, 10, 100})
+		{
+			final PersistentCellStore live = new PersistentCellStore(size);
+			final Random random = new Random(written);
+			long snapshotBytes = retainedBytes(new Factory()
+			{
+				public Object build()
+				{
+					ArrayList<PersistentCellStore> kept = new ArrayList<PersistentCellStore>();
+					for (int i = 0; i < count; i++)
+					{
+						for (int w = 0; w < written; w++)
+						{
+							live.setFlagged(random.nextInt(live.getCellCount()), true);
+						}
+						kept.add(live.fork());
+					}
+					return kept;
+				}
+			});
+			System.out.printf("%d\t%d\t%d\t%d\t%d%n", size, count, written, snapshotBytes / count, (long) size*size);
+		}
+	}
+
+	private static void parallel(int[] sizes)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("cores available: " + cores);
+		System.out.println("size\tthreads\tsquares revealed\tmedian cascade ms");
+		for (int size : sizes)
+		{
+			CellStore layout = new CellStore(size);
+			Random random = new Random(size);
+			for (int index = 0; index < layout.getCellCount(); index++)
+			{
+				layout.setBomb(index, random.nextDouble() < .02);
+			}
+			int middle = size / 2;
+			layout.setBomb(layout.index(middle, middle), false);
+
+			System.out.printf("%d\tserial\t%s%n", size, timeCascade(layout, middle, null));
+			for (int threads = 1; threads <= cores; threads *= 2)
+			{
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				System.out.printf("%d\t%d\t%s%n", size, threads, timeCascade(layout, middle, pool));
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Digs (middle, middle) on fresh copies of the layout a few times and returns
+	 * "squares revealed<TAB>median milliseconds".
+	 */
+	private static String timeCascade(CellStore layout, int middle, ForkJoinPool pool)
+	{
+		int runs = 5;
+		double[] millis = new double[runs];
+		int revealed = 0;
+		for (int run = 0; run < runs; run++)
+		{
+			CellStore cells = new CellStore(layout.getSize());
+			for (int index = 0; index < cells.getCellCount(); index++)
+			{
+				cells.setBomb(index, layout.isBomb(index));
+			}
+			Board board = new Board(cells);
+			board.setParallelReveal(pool);
+			cells.setDug(cells.index(middle, middle));
+			long start = System.nanoTime();
+			board.recursiveDig(middle, middle);
+			millis[run] = (System.nanoTime() - start) / 1e6;
+			revealed = 0;
+			for (int index = 0; index < cells.getCellCount(); index++)
+			{
+				if (cells.isDug(index))
+				{
+					revealed++;
+				}
+			}
+		}
+		Arrays.sort(millis);
+		return revealed + "\t" + String.format("%.1f", millis[runs / 2]);
+	}
+
+	private static void incremental(int[] sizes)
+	{
+		int[] chunks = {0, 65536, 4096};
+		System.out.println("size\tchunk\tcascade ms\tlooks\tlook p50 ms\tlook p99 ms\tlook max ms");
+		for (int size : sizes)
+		{
+			for (int chunk : chunks)
+			{
+				final Board board = new Board(new CellStore(size));
+				board.setIncrementalReveal(chunk);
+				final AtomicBoolean digging = new AtomicBoolean(true);
+				final long[] cascadeNanos = new long[1];
+				Thread digger = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						long start = System.nanoTime();
+						board.processDig("dig 0 0");
+						cascadeNanos[0] = System.nanoTime() - start;
+						digging.set(false);
+					}
+				});
+				ArrayList<Long> latencies = new ArrayList<Long>();
+				digger.start();
+				while (digging.get())
+				{
+					long start = System.nanoTime();
+					board.processLook();
+					latencies.add(System.nanoTime() - start);
+				}
+				try
+				{
+					digger.join();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				Collections.sort(latencies);
+				System.out.printf("%d\t%s\t%.1f\t%d\t%.2f\t%.2f\t%.2f%n", size, chunk == 0 ? "off" : "" + chunk,
+						cascadeNanos[0] / 1e6, latencies.size(), percentile(latencies, 50) / 1e6,
+						percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6);
+			}
+		}
+	}
+
+	private static void chunked(int[] touches)
+	{
+		System.out.println("squares touched\ttiles\tretained bytes\tbytes/touched square");
+		for (final int touched : touches)
+		{
+			final int[] tiles = new int[1];
+			long bytes = retainedBytes(new Factory()
+			{
+				public Object build()
+				{
+					ChunkedBoard board = new ChunkedBoard(touched, 10);
+					Random random = new Random(touched);
+					for (int i = 0; i < touched; i++)
+					{
+						board.processFlag("flag " + random.nextInt(Integer.MAX_VALUE) + " " + random.nextInt(Integer.MAX_VALUE));
+					}
+					tiles[0] = board.getTileCount();
+					return board;
+				}
+			});
+			System.out.printf("%d\t%d\t%d\t%.0f%n", touched, tiles[0], bytes, bytes / (double) touched);
+		}
+	}
+
+	private static void mapped(int[] sizes)
+	{
+		System.out.println("size\trepresentation\tretained MB\tmax full GC ms\tchurn GCs\tchurn GC ms");
+		for (final int size : sizes)
+		{
+			gcReport(size, "Square", new SquareBoardFactory(size));
+			gcReport(size, "Board", new PackedBoardFactory(size));
+			gcReport(size, "mapped Board", new Factory()
+			{
+				public Object build()
+				{
+					return new Board(size, true);
+				}
+			});
+		}
+	}
+
+	private static void load(int[] sizes)
+	{
+		System.out.println("size\tsquares\teager ms\tlazy ms");
+		for (int size : sizes)
+		{
+			File file;
+			try
+			{
+				file = File.createTempFile("board", ".txt");
+				file.deleteOnExit();
+				try (BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+				{
+					Random random = new Random(size);
+					for (int row = 0; row < size; row++)
+					{
+						for (int col = 0; col < size; col++)
+						{
+							writer.write(random.nextDouble() < .25 ? '1' : '0');
+							writer.write(col == size - 1 ? '\n' : ' ');
+						}
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Could not write the board file", e);
+			}
+			// The first load of each kind warms up the JIT and the page cache; the second is timed.
+			long eager = 0;
+			long lazy = 0;
+			for (int round = 0; round < 2; round++)
+			{
+				long start = System.nanoTime();
+				new Board(file, false, false);
+				long loaded = System.nanoTime();
+				new Board(file, false, true);
+				eager = loaded - start;
+				lazy = System.nanoTime() - loaded;
+			}
+			System.out.printf("%d\t%d\t%.1f\t%.1f%n", size, (long) size*size, eager / 1e6, lazy / 1e6);
+			file.delete();
+		}
+	}
+
+	private static void throughput(int[] playerCounts)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		int size = 8*TileLocks.TILE;
+		System.out.println("cores: " + cores + ", board: " + size + "x" + size);
+		System.out.println("players\tcores used\tcommands/s\tper player\tper core used");
+		for (int players : playerCounts)
+		{
+			if (players > 64)
+			{
+				System.out.println("at most 64 players get a tile of their own");
+				return;
+			}
+			long commands = playInTiles(new Board(size, -1, players, false), players);
+			if (commands < 0)
+			{
+				return;
+			}
+			int used = Math.min(players, cores);
+			System.out.printf("%d\t%d\t%d\t%d\t%d%n", players, used, commands, commands / players, commands / used);
+		}
+	}
+
+	/**
+	 * Runs players threads issuing flags, deflags and digs on board for a second, player p inside tile p, never on
+	 * its outermost squares so a dig's neighbors stay in the tile too, and returns the number of commands carried
+	 * out, or -1 if interrupted. A cascade may still spread into the next tile now and then.
+	 */
+	private static long playInTiles(final Board board, int players)
+	{
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] commands = new long[players];
+		final int tilesPerRow = board.getBoardSize() >> TileLocks.TILE_SHIFT;
+		Thread[] threads = new Thread[players];
+		for (int p = 0; p < players; p++)
+		{
+			final int player = p;
+			final int firstX = (p % tilesPerRow)*TileLocks.TILE + 1;
+			final int firstY = (p / tilesPerRow)*TileLocks.TILE + 1;
+			threads[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Random random = new Random(player);
+					//Counted locally, so the players don't share a cache line of commands while they play.
+					long issued = 0;
+					while (!stop.get())
+					{
+						int x = firstX + random.nextInt(TileLocks.TILE - 2);
+						int y = firstY + random.nextInt(TileLocks.TILE - 2);
+						int command = random.nextInt(10);
+						if (command < 3)
+						{
+							board.flag(x, y);
+						}
+						else if (command < 6)
+						{
+							board.deflag(x, y);
+						}
+						else
+						{
+							board.dig(x, y);
+						}
+						issued++;
+					}
+					commands[player] = issued;
+				}
+			});
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		try
+		{
+			Thread.sleep(1000);
+			stop.set(true);
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		long total = 0;
+		for (long count : commands)
+		{
+			total += count;
+		}
+		return total;
+	}
+
+	private static void combining(int[] playerCounts)
+	{
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("players\tsynchronized Board\tcombining Board\tChunkedBoard\tcombining ChunkedBoard");
+		for (int players : playerCounts)
+		{
+			long[] commands = {
+				play(new SynchronizedBoard(new Board(100, 1000, players, false)), players),
+				play(new CombiningBoard(new Board(100, 1000, players, false)), players),
+				play(new ChunkedBoard(players, 100), players),
+				play(new CombiningBoard(new ChunkedBoard(players, 100)), players)
+			};
+			for (long count : commands)
+			{
+				if (count < 0)
+				{
+					return;
+				}
+			}
+			System.out.printf("%d\t%d\t%d\t%d\t%d%n", players, commands[0], commands[1], commands[2], commands[3]);
+		}
+	}
+
+	private static void latency(int[] playerCounts)
+	{
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("players\tengine\tcommands/s\tp50 us\tp90 us\tp99 us\tp99.9 us\tmax us");
+		for (int players : playerCounts)
+		{
+			Board actorBoard = new Board(100, 1000, players, false);
+			actorBoard.setSingleWriter();
+			BoardActor actor = new BoardActor(actorBoard);
+			latencyReport(players, "monitor", new SynchronizedBoard(new Board(100, 1000, players, false)));
+			latencyReport(players, "tile locks", new Board(100, 1000, players, false));
+			latencyReport(players, "actor", actor);
+			try
+			{
+				actor.shutdown();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static void latencyReport(int players, String engine, GameBoard board)
+	{
+		List<Long> latencies = new ArrayList<Long>();
+		long commands = play(board, players, latencies);
+		Collections.sort(latencies);
+		System.out.printf("%d\t%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f%n", players, engine, commands,
+				percentile(latencies, 50) / 1e3, percentile(latencies, 90) / 1e3, percentile(latencies, 99) / 1e3,
+				percentile(latencies, 99.9) / 1e3, percentile(latencies, 100) / 1e3);
+	}
+
+	private static void fair(int[] readerCounts)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("cores: " + cores);
+		System.out.println("readers\tengine\treads/s\twrites/s\twrite p50 us\twrite p99 us\twrite max us\twrite waits");
+		for (int readers : readerCounts)
+		{
+			CommandScheduler single = new CommandScheduler(new Board(100, 1000, readers, false), 1,
+					CommandScheduler.DEFAULT_READER_PATIENCE_MILLIS, TimeUnit.MILLISECONDS);
+			CommandScheduler perCore = new CommandScheduler(new Board(100, 1000, readers, false));
+			if (!fairReport(readers, "monitor", new SynchronizedBoard(new Board(100, 1000, readers, false)), null)
+					|| !fairReport(readers, "scheduler, 1 permit", single, single.getWriteDelays())
+					|| !fairReport(readers, "scheduler, permit per core", perCore, perCore.getWriteDelays()))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs readers threads issuing look on board for a second while one more thread flags and deflags, and prints
+	 * a row of the fair table. waits is how long the scheduler kept writes waiting, if board is one.
+	 * @return false if interrupted
+	 */
+	private static boolean fairReport(int readers, String engine, final GameBoard board, DelayHistogram waits)
+	{
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] reads = new long[readers];
+		final List<Long> writes = new ArrayList<Long>();
+		Thread[] threads = new Thread[readers + 1];
+		for (int r = 0; r < readers; r++)
+		{
+			final int reader = r;
+			threads[r] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					while (!stop.get())
+					{
+						board.processLook();
+						reads[reader]++;
+					}
+				}
+			});
+		}
+		threads[readers] = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				Random random = new Random(-1);
+				while (!stop.get())
+				{
+					String location = random.nextInt(100) + " " + random.nextInt(100);
+					long start = System.nanoTime();
+					board.processFlag("flag " + location);
+					writes.add(System.nanoTime() - start);
+					start = System.nanoTime();
+					board.processDeflag("deflag " + location);
+					writes.add(System.nanoTime() - start);
+				}
+			}
+		});
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		try
+		{
+			Thread.sleep(1000);
+			stop.set(true);
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		long total = 0;
+		for (long count : reads)
+		{
+			total += count;
+		}
+		Collections.sort(writes);
+		System.out.printf("%d\t%s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%s%n", readers, engine, total, writes.size(),
+				percentile(writes, 50) / 1e3, percentile(writes, 99) / 1e3, percentile(writes, 100) / 1e3,
+				waits == null ? "-" : waits.toString());
+		return true;
+	}
+
+	private static long play(GameBoard board, int players)
+	{
+		return play(board, players, null);
+	}
+
+	/**
+	 * Runs players threads issuing flags, deflags and digs on board for a second, each player in one quarter of
+	 * a 100x100 board, and returns the number of commands carried out, or -1 if interrupted. If latencies isn't
+	 * null, the time every command took, in nanoseconds, is added to it.
+	 */
+	private static long play(final GameBoard board, int players, List<Long> latencies)
+	{
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final long[] commands = new long[players];
+		final boolean timed = latencies != null;
+		final List<List<Long>> timings = new ArrayList<List<Long>>();
+		for (int p = 0; p < players; p++)
+		{
+			timings.add(new ArrayList<Long>());
+		}
+		Thread[] threads = new Thread[players];
+		for (int p = 0; p < players; p++)
+		{
+			final int player = p;
+			final int firstX = 50 * (p & 1);
+			final int firstY = 50 * ((p >> 1) & 1);
+			threads[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Random random = new Random(player);
+					while (!stop.get())
+					{
+						String location = (firstX + random.nextInt(50)) + " " + (firstY + random.nextInt(50));
+						int command = random.nextInt(10);
+						long start = timed ? System.nanoTime() : 0;
+						if (command < 3)
+						{
+							board.processFlag("flag " + location);
+						}
+						else if (command < 6)
+						{
+							board.processDeflag("deflag " + location);
+						}
+						else
+						{
+							board.processDig("dig " + location);
+						}
+						if (timed)
+						{
+							timings.get(player).add(System.nanoTime() - start);
+						}
+						commands[player]++;
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		try
+		{
+			Thread.sleep(1000);
+			stop.set(true);
+			for (Thread thread : threads)
+			{
+				thread.join();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		if (timed)
+		{
+			for (List<Long> timing : timings)
+			{
+				latencies.addAll(timing);
+			}
+		}
+		long total = 0;
+		for (long count : commands)
+		{
+			total += count;
+		}
+		return total;
+	}
+
+	private static void reads(int[] clientCounts)
+	{
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("clients\treads/s\twrites/s");
+		for (int clients : clientCounts)
+		{
+			final Board board = new Board(100, 1000, clients, false);
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final long[] reads = new long[clients];
+			final long[] writes = new long[1];
+			Thread[] threads = new Thread[clients + 1];
+			for (int c = 0; c < clients; c++)
+			{
+				final int client = c;
+				threads[c] = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						Random random = new Random(client);
+						while (!stop.get())
+						{
+							if (random.nextInt(10) == 0)
+							{
+								board.processSpy("spy " + random.nextInt(100) + " " + random.nextInt(100));
+							}
+							else
+							{
+								board.processLook();
+							}
+							reads[client]++;
+						}
+					}
+				});
+			}
+			threads[clients] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Random random = new Random(-1);
+					while (!stop.get())
+					{
+						String location = random.nextInt(100) + " " + random.nextInt(100);
+						board.processFlag("flag " + location);
+						board.processDeflag("deflag " + location);
+						writes[0] += 2;
+					}
+				}
+			});
+			for (Thread thread : threads)
+			{
+				thread.start();
+			}
+			try
+			{
+				Thread.sleep(1000);
+				stop.set(true);
+				for (Thread thread : threads)
+				{
+					thread.join();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			long total = 0;
+			for (long count : reads)
+			{
+				total += count;
+			}
+			System.out.printf("%d\t%d\t%d%n", clients, total, writes[0]);
+		}
+	}
+
+	private static void gcReport(int size, String representation, Factory factory)
+	{
+		long before = usedHeap();
+		Object built = factory.build();
+		long retained = usedHeap() - before;
+
+		long longestFull = 0;
+		for (int i = 0; i < 5; i++)
+		{
+			long start = System.nanoTime();
+			System.gc();
+			longestFull = Math.max(longestFull, System.nanoTime() - start);
+		}
+
+		long collectionsBefore = collectionCount();
+		long timeBefore = collectionMillis();
+		long sink = 0;
+		for (int i = 0; i < 1 << 20; i++)
+		{
+			// 1M short-lived 1KB arrays, about what answering a few thousand looks on a 20x20 board allocates.
+			byte[] garbage = new byte[1024];
+			sink += garbage.length;
+		}
+		long collections = collectionCount() - collectionsBefore;
+		long millis = collectionMillis() - timeBefore;
+
+		if (System.identityHashCode(built) == 42 && sink == 0) // keeps the board reachable until here
+		{
+			System.out.print("");
+		}
+		System.out.printf("%d\t%s\t%.1f\t%.1f\t%d\t%d%n", size, representation, retained / 1e6, longestFull / 1e6,
+				collections, millis);
+	}
+
+	private static long collectionCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long collectionMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * Returns the given percentile of an already sorted list of nanosecond latencies.
+	 */
+	private static long percentile(List<Long> sorted, double percent)
+	{
+		if (sorted.isEmpty())
+		{
+			return 0;
+		}
+		int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	/**
+	 * Builds something to measure. The object is kept reachable until after the measurement.
+	 */
+	private interface Factory
+	{
+		Object build();
+	}
+
+	/**
+	 * A GameBoard that runs every command of the board it wraps under one monitor.
+	 */
+	private static class SynchronizedBoard implements GameBoard
+	{
+		private final GameBoard board;
+
+		SynchronizedBoard(GameBoard board)
+		{
+			this.board = board;
+		}
+
+		public synchronized String processLook()
+		{
+			return this.board.processLook();
+		}
+
+		public synchronized String processHelp()
+		{
+			return this.board.processHelp();
+		}
+
+		public synchronized String processDig(String input)
+		{
+			return this.board.processDig(input);
+		}
+
+		public synchronized String processDig(int x, int y)
+		{
+			return this.board.processDig(x, y);
+		}
+
+		public synchronized String processFlag(String input)
+		{
+			return this.board.processFlag(input);
+		}
+
+		public synchronized String processFlag(int x, int y)
+		{
+			return this.board.processFlag(x, y);
+		}
+
+		public synchronized String processDeflag(String input)
+		{
+			return this.board.processDeflag(input);
+		}
+
+		public synchronized String processDeflag(int x, int y)
+		{
+			return this.board.processDeflag(x, y);
+		}
+
+		public synchronized String processSpy(String input)
+		{
+			return this.board.processSpy(input);
+		}
+
+		public synchronized String processSpy(int x, int y)
+		{
+			return this.board.processSpy(x, y);
+		}
+	}
+
+	/**
+	 * The representation Board used before the cell store: every square is a Square object.
+	 */
+	private static class SquareBoardFactory implements Factory
+	{
+		private final int size;
+
+		SquareBoardFactory(int size)
+		{
+			this.size = size;
+		}
+
+		public Object build()
+		{
+			ArrayList<ArrayList<Square>> boardState = new ArrayList<ArrayList<Square>>();
+			for (int r = 0; r < size; r++)
+			{
+				ArrayList<Square> row = new ArrayList<Square>();
+				for (int j = 0; j < size; j++)
+				{
+					row.add(new Square(j, r));
+				}
+				boardState.add(row);
+			}
+			return boardState;
+		}
+	}
+
+	private static class PackedBoardFactory implements Factory
+	{
+		private final int size;
+
+		PackedBoardFactory(int size)
+		{
+			this.size = size;
+		}
+
+		public Object build()
+		{
+			return new Board(size);
+		}
+	}
+
+	/**
+	 * Returns how much more heap is in use while the built object is reachable than before it was built.
+	 */
+	private static long retainedBytes(Factory factory)
+	{
+		long before = usedHeap();
+		Object built = factory.build();
+		long after = usedHeap();
+		if (System.identityHashCode(built) == 42) // keeps the object reachable across the second measurement
+		{
+			System.out.print("");
+		}
+		return after - before;
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
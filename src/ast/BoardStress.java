@@ -0,0 +1,302 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ast.LinearizabilityChecker.Operation;
+import ast.LinearizabilityChecker.Replies;
+
+/**
+ * This class is not part of the game. It is a stress harness I run by hand (it has a main method) before
+ * trusting a new way of running commands concurrently: it has many threads play on one board at once, records
+ * when every command was issued and answered and what it answered, and has a LinearizabilityChecker decide
+ * whether the board could have run the commands one at a time. The same run reports how many commands a second
+ * the board got through, so correctness and performance come from one measurement.
+ *
+ * Usage: BoardStress [ROUNDS [PLAYERS [COMMANDS]]]
+ *
+ * For every engine (a Board with its tile locks, with optimistic reveal, behind a CombiningBoard, a BoardActor,
+ * and a CommandScheduler with one permit and with one per core) it plays ROUNDS games (default 50), each on a new
+ * 10x10 board with 10 bombs, with PLAYERS threads (default 8) issuing COMMANDS random commands each (default 100):
+ * digs, flags and deflags, looks and spies. Every game is checked as strictly as the engine allows (see
+ * LinearizabilityChecker.Replies), and the report gives the commands per second, how long checking took, and the
+ * strictest level every game passed. An engine that falls short of the level it promises is reported as FAILED,
+ * with the command the checker got stuck on, and the exit status is 1. The board is only 10x10 so that the
+ * players keep running into each other's squares.
+ *
+ * @author DeJuan Anderson
+ */
+public class BoardStress
+{
+	private static final int SIZE = 10;
+	private static final int MINES = 10;
+
+	/**
+	 * A way of running commands on a Board, and how strictly it promises to be linearizable.
+	 */
+	private static abstract class Engine
+	{
+		final String name;
+		final Replies promised;
+
+		Engine(String name, Replies promised)
+		{
+			this.name = name;
+			this.promised = promised;
+		}
+
+		/**
+		 * @return what the players play on, given a fresh board.
+		 */
+		abstract GameBoard start(Board board);
+
+		/**
+		 * Lets go of whatever start set up.
+		 */
+		void stop() throws InterruptedException
+		{
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int players = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int commands = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("engine\tgames\tcommands\tcommands/s\tcheck ms\tstates\tlinearizable\tpromised");
+		boolean failed = false;
+		for (Engine engine : engines())
+		{
+			failed |= !stress(engine, rounds, players, commands);
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Plays the rounds on the engine and prints its row of the report.
+	 * @return false if a game fell short of what the engine promises
+	 */
+	private static boolean stress(Engine engine, int rounds, int players, int commands) throws InterruptedException
+	{
+		long issued = 0;
+		long playNanos = 0;
+		long checkNanos = 0;
+		long states = 0;
+		Replies passed = Replies.ATOMIC;
+		String failure = null;
+		for (int round = 0; round < rounds; round++)
+		{
+			Board board = new Board(SIZE, MINES, round, Storage.HEAP);
+			GameBoard played = engine.start(board);
+			List<Operation> history = play(played, players, commands, round);
+			String end = played.processLook();
+			engine.stop();
+			issued += history.size();
+			playNanos += elapsedNanos(history);
+
+			Board initial = new Board(SIZE, MINES, round, Storage.PERSISTENT);
+			long start = System.nanoTime();
+			//Try the strictest level that hasn't failed yet, then each weaker one.
+			for (Replies replies : Replies.values())
+			{
+				if (passed == null || replies.ordinal() < passed.ordinal())
+				{
+					continue;
+				}
+				LinearizabilityChecker checker = new LinearizabilityChecker(initial, replies);
+				boolean linearizable = checker.check(history, end);
+				states += checker.getStatesExplored();
+				if (linearizable)
+				{
+					break;
+				}
+				if (replies == engine.promised && failure == null)
+				{
+					failure = "game " + round + ": " + checker.getFailure();
+				}
+				passed = replies.ordinal() + 1 < Replies.values().length ? Replies.values()[replies.ordinal() + 1] : null;
+			}
+			checkNanos += System.nanoTime() - start;
+		}
+		System.out.printf("%s\t%d\t%d\t%.0f\t%d\t%d\t%s\t%s%n", engine.name, rounds, issued, issued / (playNanos / 1e9),
+				TimeUnit.NANOSECONDS.toMillis(checkNanos), states, passed == null ? "NO" : passed, engine.promised);
+		if (failure != null)
+		{
+			System.out.println("FAILED " + failure);
+		}
+		return failure == null;
+	}
+
+	/**
+	 * Has players threads issue commands random commands each on board, all starting at once.
+	 * @return every command issued, with when it was issued and answered, and its answer
+	 */
+	public static List<Operation> play(final GameBoard board, int players, final int commands, long seed)
+			throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<List<Operation>> histories = new ArrayList<List<Operation>>();
+		Thread[] threads = new Thread[players];
+		for (int p = 0; p < players; p++)
+		{
+			final int player = p;
+			final Random random = new Random(seed*31 + p);
+			final List<Operation> history = new ArrayList<Operation>(commands);
+			histories.add(history);
+			threads[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int command = 0; command < commands; command++)
+					{
+						String input = randomCommand(random);
+						Operation operation = new Operation(player, input, System.nanoTime());
+						String output = issue(board, input);
+						operation.finish(output, System.nanoTime());
+						history.add(operation);
+					}
+				}
+			});
+			threads[p].start();
+		}
+		start.countDown();
+		List<Operation> all = new ArrayList<Operation>();
+		for (int p = 0; p < players; p++)
+		{
+			threads[p].join();
+			all.addAll(histories.get(p));
+		}
+		return all;
+	}
+
+	private static String randomCommand(Random random)
+	{
+		String location = random.nextInt(SIZE) + " " + random.nextInt(SIZE);
+		int command = random.nextInt(20);
+		if (command < 5)
+		{
+			return "dig " + location;
+		}
+		else if (command < 10)
+		{
+			return "flag " + location;
+		}
+		else if (command < 15)
+		{
+			return "deflag " + location;
+		}
+		else if (command < 18)
+		{
+			return "look";
+		}
+		return "spy " + location;
+	}
+
+	private static String issue(GameBoard board, String input)
+	{
+		if (input.startsWith("dig"))
+		{
+			return board.processDig(input);
+		}
+		else if (input.startsWith("flag"))
+		{
+			return board.processFlag(input);
+		}
+		else if (input.startsWith("deflag"))
+		{
+			return board.processDeflag(input);
+		}
+		else if (input.startsWith("spy"))
+		{
+			return board.processSpy(input);
+		}
+		return board.processLook();
+	}
+
+	/**
+	 * @return the time from the first command being issued to the last one answering.
+	 */
+	private static long elapsedNanos(List<Operation> history)
+	{
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (Operation operation : history)
+		{
+			first = Math.min(first, operation.getInvoked());
+			last = Math.max(last, operation.getReturned());
+		}
+		return last - first;
+	}
+
+	private static List<Engine> engines()
+	{
+		List<Engine> engines = new ArrayList<Engine>();
+		engines.add(new Engine("tile locks", Replies.LATER)
+		{
+			GameBoard start(Board board)
+			{
+				return board;
+			}
+		});
+		engines.add(new Engine("optimistic", Replies.LATER)
+		{
+			GameBoard start(Board board)
+			{
+				board.setOptimisticReveal(true);
+				return board;
+			}
+		});
+		engines.add(new Engine("combining", Replies.ATOMIC)
+		{
+			GameBoard start(Board board)
+			{
+				return new CombiningBoard(board);
+			}
+		});
+		engines.add(new Engine("actor", Replies.ATOMIC)
+		{
+			BoardActor actor;
+
+			GameBoard start(Board board)
+			{
+				board.setSingleWriter();
+				this.actor = new BoardActor(board);
+				return this.actor;
+			}
+
+			@Override
+			void stop() throws InterruptedException
+			{
+				this.actor.shutdown();
+			}
+		});
+		engines.add(new Engine("scheduler, 1 permit", Replies.ATOMIC)
+		{
+			GameBoard start(Board board)
+			{
+				return new CommandScheduler(board, 1, CommandScheduler.DEFAULT_READER_PATIENCE_MILLIS,
+						TimeUnit.MILLISECONDS);
+			}
+		});
+		engines.add(new Engine("scheduler, permit per core", Replies.LATER)
+		{
+			GameBoard start(Board board)
+			{
+				return new CommandScheduler(board);
+			}
+		});
+		return engines;
+	}
+}
@@ -1,6 +1,12 @@
 package ast;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -254,4 +260,378 @@ public class BoardTest {
 		assertArrayEquals(expectation, testBoard.getBoardState());
 		assertEquals("BOOM!", result);
 	}
+	
+	/**
+	 * The counts come from a bitboard kernel working on 64 columns at a time, so check them against
+	 * a plain count of the adjacent bombs on boards whose rows span several words.
+	 */
+	@Test
+	public void testCountsMatchAdjacentBombs()
+	{
+		int[] sizes = {2, 63, 64, 65, 130};
+		for (int size : sizes)
+		{
+			Board testBoard = new Board(size);
+			ArrayList<ArrayList<Square>> state = testBoard.getActualBoardStateForDebugPurposes();
+			for (int row = 0; row < size; row++)
+			{
+				for (int col = 0; col < size; col++)
+				{
+					int bombs = 0;
+					for (int r = Math.max(row-1, 0); r <= Math.min(row+1, size-1); r++)
+					{
+						for (int c = Math.max(col-1, 0); c <= Math.min(col+1, size-1); c++)
+						{
+							if ((r != row || c != col) && state.get(r).get(c).getDescription().equals("bomb"))
+							{
+								bombs += 1;
+							}
+						}
+					}
+					assertEquals(bombs, state.get(row).get(col).getCount());
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testCascadeRevealsEverythingButFlags()
+	{
+		Board testBoard = new Board(new CellStore(5)); //no bombs at all
+		testBoard.processFlag("flag 2 3");
+		testBoard.processDig("dig 0 0");
+		String[][] expectation = new String[5][5];
+		for (int i = 0; i < 5; i++)
+		{
+			for(int j = 0; j < 5; j++)
+			{
+				expectation[i][j] = " ";
+			}
+		}
+		expectation[3][2] = "F";
+		assertArrayEquals(expectation, testBoard.getBoardState());
+	}
+	
+	/**
+	 * A cascade big enough to leave the serial fill must reveal exactly what the serial fill reveals.
+	 */
+	@Test
+	public void testParallelRevealMatchesSerial()
+	{
+		int size = 600;
+		CellStore serialCells = new CellStore(size);
+		CellStore parallelCells = new CellStore(size);
+		Random random = new Random(6005);
+		for (int index = 0; index < serialCells.getCellCount(); index++)
+		{
+			boolean bomb = index != 0 && random.nextDouble() < .02;
+			serialCells.setBomb(index, bomb);
+			parallelCells.setBomb(index, bomb);
+		}
+		Board serialBoard = new Board(serialCells);
+		Board parallelBoard = new Board(parallelCells);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		parallelBoard.setParallelReveal(pool);
+		serialBoard.processDig("dig 0 0");
+		parallelBoard.processDig("dig 0 0");
+		pool.shutdown();
+		assertArrayEquals(serialBoard.getBoardState(), parallelBoard.getBoardState());
+	}
+	
+	@Test
+	public void testIncrementalRevealMatchesSerial()
+	{
+		Board serialBoard = new Board(new CellStore(20));
+		Board incrementalBoard = new Board(new CellStore(20));
+		incrementalBoard.setIncrementalReveal(7);
+		serialBoard.processFlag("flag 4 4");
+		incrementalBoard.processFlag("flag 4 4");
+		assertEquals(serialBoard.processDig("dig 10 10"), incrementalBoard.processDig("dig 10 10"));
+	}
+	
+	/**
+	 * Random digs, flags and deflags (bombs included) on two boards with the same layout, one revealing
+	 * regions from the RegionIndex and one discovering every cascade square by square, must always agree.
+	 */
+	@Test
+	public void testRegionIndexMatchesFloodFill()
+	{
+		Random random = new Random(6006);
+		for (int game = 0; game < 20; game++)
+		{
+			int size = 10;
+			CellStore indexedCells = new CellStore(size);
+			CellStore plainCells = new CellStore(size);
+			for (int index = 0; index < indexedCells.getCellCount(); index++)
+			{
+				boolean bomb = random.nextDouble() < .12;
+				indexedCells.setBomb(index, bomb);
+				plainCells.setBomb(index, bomb);
+			}
+			Board indexedBoard = new Board(indexedCells);
+			indexedBoard.setRegionIndex(true);
+			Board plainBoard = new Board(plainCells);
+			String[] commands = {"dig", "dig", "dig", "flag", "deflag"};
+			for (int move = 0; move < 60; move++)
+			{
+				String command = commands[random.nextInt(commands.length)] + " " + random.nextInt(size) + " " + random.nextInt(size);
+				String expected;
+				String actual;
+				if (command.startsWith("dig"))
+				{
+					expected = plainBoard.processDig(command);
+					actual = indexedBoard.processDig(command);
+				}
+				else if (command.startsWith("flag"))
+				{
+					expected = plainBoard.processFlag(command);
+					actual = indexedBoard.processFlag(command);
+				}
+				else
+				{
+					expected = plainBoard.processDeflag(command);
+					actual = indexedBoard.processDeflag(command);
+				}
+				assertEquals(command, expected, actual);
+			}
+		}
+	}
+	
+	/**
+	 * A board loaded into a MappedCellStore must play exactly like the same board loaded onto the heap.
+	 */
+	@Test
+	public void testMappedBoardMatchesHeapBoard() throws IOException
+	{
+		Random random = new Random(8008);
+		File file = randomBoardFile(random, 10);
+		playSameGame(random, 10, new Board(file), new Board(file, true));
+	}
+	
+	/**
+	 * A board whose counts are worked out as squares are revealed must play exactly like one counted up front,
+	 * including around bombs that are dug before their neighbors' counts are known.
+	 */
+	@Test
+	public void testLazyCountsMatchEagerCounts() throws IOException
+	{
+		Random random = new Random(1010);
+		for (int game = 0; game < 10; game++)
+		{
+			File file = randomBoardFile(random, 10);
+			playSameGame(random, 10, new Board(file), new Board(file, false, true));
+		}
+	}
+	
+	/**
+	 * Cascades worked out optimistically must reveal exactly what cascades holding the board's locks reveal,
+	 * with counts known up front or not.
+	 */
+	@Test
+	public void testOptimisticRevealMatchesLockedReveal() throws IOException
+	{
+		Random random = new Random(1616);
+		for (int game = 0; game < 10; game++)
+		{
+			File file = randomBoardFile(random, 10);
+			Board optimistic = new Board(file, false, game % 2 == 0);
+			optimistic.setOptimisticReveal(true);
+			playSameGame(random, 10, new Board(file), optimistic);
+		}
+	}
+	
+	/**
+	 * An optimistic cascade that finds a tile being written must give up without changing anything.
+	 */
+	@Test
+	public void testOptimisticFillGivesUpOnTilesBeingWritten()
+	{
+		CellStore cells = new CellStore(200);
+		TileLocks locks = new TileLocks(200);
+		OptimisticFill fill = new OptimisticFill(cells, locks);
+		int farTile = locks.tileOf(cells.index(199, 199));
+		locks.lock(farTile);
+		assertFalse(fill.tryFill(0));
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			assertFalse(cells.isDug(index));
+		}
+		locks.unlock(farTile);
+		assertTrue(fill.tryFill(0));
+		assertEquals(cells.getCellCount(), fill.getPlannedCount());
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			assertTrue(cells.isDug(index));
+		}
+	}
+	
+	/**
+	 * An optimistic cascade from a square that is already dug must do nothing, like a dig on a dug square,
+	 * even if a flag kept the squares around it hidden when it was first dug.
+	 */
+	@Test
+	public void testOptimisticFillLeavesDugSquaresAlone()
+	{
+		CellStore cells = new CellStore(10);
+		Board board = new Board(cells);
+		board.processFlag("flag 1 1");
+		board.processDig("dig 0 0");
+		board.processDeflag("deflag 1 1");
+		assertFalse(cells.isDug(cells.index(1, 1)));
+		OptimisticFill fill = new OptimisticFill(cells, new TileLocks(10));
+		assertFalse(fill.tryFill(0));
+		assertFalse(cells.isDug(cells.index(1, 1)));
+	}
+	
+	private static File randomBoardFile(Random random, int size) throws IOException
+	{
+		File file = File.createTempFile("board", ".txt");
+		file.deleteOnExit();
+		try (FileWriter writer = new FileWriter(file))
+		{
+			for (int row = 0; row < size; row++)
+			{
+				for (int col = 0; col < size; col++)
+				{
+					writer.write((random.nextDouble() < .15 ? "1" : "0") + (col == size - 1 ? "\n" : " "));
+				}
+			}
+		}
+		return file;
+	}
+	
+	/**
+	 * Plays the same random digs, flags and spies on two boards, which must answer every one the same way.
+	 */
+	private static void playSameGame(Random random, int size, Board expected, Board actual)
+	{
+		assertEquals(expected.processLook(), actual.processLook());
+		for (int move = 0; move < 60; move++)
+		{
+			String location = random.nextInt(size) + " " + random.nextInt(size);
+			if (move % 4 == 3)
+			{
+				assertEquals(expected.processFlag("flag " + location), actual.processFlag("flag " + location));
+			}
+			else
+			{
+				assertEquals(expected.processDig("dig " + location), actual.processDig("dig " + location));
+			}
+			assertEquals(expected.processSpy("spy " + location), actual.processSpy("spy " + location));
+		}
+	}
+	
+	/**
+	 * Players digging and flagging all over a board with many tiles at the same time must leave it as some
+	 * serial order of their commands could: counts match the bombs left, no square is both dug and flagged,
+	 * and every dug square with count 0 has all its neighbors dug or flagged.
+	 */
+	@Test
+	public void testConcurrentCommandsKeepBoardConsistent() throws InterruptedException
+	{
+		checkConcurrentCommands(false, false);
+		checkConcurrentCommands(true, false);
+		checkConcurrentCommands(false, true);
+	}
+	
+	private static void checkConcurrentCommands(boolean regionIndex, boolean optimistic) throws InterruptedException
+	{
+		final int size = 100;
+		final CellStore cells = new CellStore(size);
+		MineLayout.place(cells, 800, 1111);
+		final Board board = new Board(cells);
+		board.setRegionIndex(regionIndex);
+		board.setOptimisticReveal(optimistic);
+		final AtomicInteger malformedReplies = new AtomicInteger();
+		Thread[] players = new Thread[4];
+		for (int p = 0; p < players.length; p++)
+		{
+			final Random random = new Random(p);
+			players[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int move = 0; move < 300; move++)
+					{
+						String location = random.nextInt(size) + " " + random.nextInt(size);
+						String reply;
+						if (random.nextInt(4) == 0)
+						{
+							reply = board.processFlag("flag " + location);
+						}
+						else
+						{
+							reply = board.processDig("dig " + location);
+						}
+						//Boards are read without locks while others write, but must always come out whole.
+						if (!reply.equals("BOOM!") && reply.length() != size*(2*size + 1))
+						{
+							malformedReplies.incrementAndGet();
+						}
+					}
+				}
+			});
+			players[p].start();
+		}
+		for (Thread player : players)
+		{
+			player.join();
+		}
+		assertEquals(0, malformedReplies.get());
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			assertEquals(cells.countBombsAround(index), cells.getCount(index));
+			assertFalse(cells.isDug(index) && cells.isFlagged(index));
+			if (cells.isDug(index) && cells.getCount(index) == 0)
+			{
+				int row = index / size;
+				int col = index % size;
+				for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, size - 1); r++)
+				{
+					for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, size - 1); c++)
+					{
+						assertTrue(cells.isDug(cells.index(r, c)) || cells.isFlagged(cells.index(r, c)));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Flags placed while a cascade sweeps over an empty board must all survive it: a cascade never reveals
+	 * (and so unflags) a square flagged before it got there.
+	 */
+	@Test
+	public void testFlagsRacingCascadeAreNeverRevealed() throws InterruptedException
+	{
+		for (int round = 0; round < 6; round++)
+		{
+			final CellStore cells = new CellStore(200);
+			Board board = new Board(cells);
+			board.setRegionIndex(round % 3 == 0);
+			board.setOptimisticReveal(round % 3 == 2);
+			final ArrayList<Integer> flagged = new ArrayList<Integer>();
+			Thread flagger = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int index = cells.getCellCount() - 1; index >= 0; index -= 7)
+					{
+						if (cells.tryFlag(index))
+						{
+							flagged.add(index);
+						}
+					}
+				}
+			});
+			flagger.start();
+			board.processDig("dig 0 0");
+			flagger.join();
+			for (int index : flagged)
+			{
+				assertTrue(cells.isFlagged(index));
+				assertFalse(cells.isDug(index));
+			}
+		}
+	}
 }
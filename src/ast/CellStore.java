@@ -0,0 +1,361 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class holds the state of every square of a Board packed into a single byte per square,
+ * instead of one Square object (with its Strings and location list) per square.
+ * Squares are stored row by row, so the square at (row, col) lives at index row*size + col.
+ *
+ * The layout of one byte is:
+ * bit 0: the square holds a bomb.
+ * bit 1: the square has been dug.
+ * bit 2: the square is flagged.
+ * bit 3: bits 4-7 hold the square's count. Until it is set, getCount works the count out from the bombs
+ *        around the square the first time it is asked for and caches it, so a board doesn't have to count
+ *        every square up front (see Board(File, boolean, boolean)).
+ * bits 4-7: the number of bombs in the adjacent squares, 0 through 8.
+ *
+ * The bytes live on the heap, packed four to an int of an AtomicIntegerArray, so a square can be changed
+ * with a compare-and-set. Every write is a compare-and-set of the int holding the square (set retries until
+ * it succeeds), so writes to the other three squares of the int are never lost. Subclasses can keep the bytes
+ * elsewhere by overriding get, set and compareAndSet, which every other method goes through (see MappedCellStore).
+ *
+ * The store does no locking. tryFlag, tryDeflag and tryReveal are atomic on their own, so a cascade can never
+ * reveal a square flagged while it runs, whatever lock the flag was placed under; Board guards every change,
+ * flags included, with its tile locks.
+ *
+ * @author DeJuan Anderson
+ */
+public class CellStore
+{
+	public static final int BOMB = 1;
+	public static final int DUG = 2;
+	public static final int FLAGGED = 4;
+	public static final int COUNT_KNOWN = 8;
+	public static final int COUNT_SHIFT = 4;
+
+	/**
+	 * The bits a count is kept in: COUNT_KNOWN and the count itself.
+	 */
+	private static final int COUNT_BITS = 0xff & ~((1 << COUNT_SHIFT) - 1) | COUNT_KNOWN;
+
+	private static final String[] COUNT_STATUS = {" ", "1", "2", "3", "4", "5", "6", "7", "8"};
+
+	private final int size;
+	private final AtomicIntegerArray cells;
+
+	/**
+	 * Creates a store for a sizexsize board in which every square is untouched, unflagged and has no bomb.
+	 * @param size the side length of the board
+	 */
+	public CellStore(int size)
+	{
+		this(size, true);
+	}
+
+	/**
+	 * For subclasses that keep the bytes somewhere other than the heap.
+	 * @param onHeap whether to allocate the array that get, set and compareAndSet use
+	 */
+	protected CellStore(int size, boolean onHeap)
+	{
+		if ((long) size*size > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("The board cannot have that size!");
+		}
+		this.size = size;
+		this.cells = onHeap ? new AtomicIntegerArray((int) (((long) size*size + 3) >>> 2)) : null;
+	}
+
+	/**
+	 * Returns the raw byte of a square, as an int from 0 to 255.
+	 */
+	protected int get(int index)
+	{
+		return (this.cells.get(index >>> 2) >>> ((index & 3) << 3)) & 0xff;
+	}
+
+	/**
+	 * Replaces the raw byte of a square with the low 8 bits of value.
+	 */
+	protected void set(int index, int value)
+	{
+		int slot = index >>> 2;
+		int shift = (index & 3) << 3;
+		while (true)
+		{
+			int word = this.cells.get(slot);
+			if (this.cells.compareAndSet(slot, word, (word & ~(0xff << shift)) | ((value & 0xff) << shift)))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the raw byte of a square with value if it is still expected, atomically.
+	 * @return false, having changed nothing, if the byte wasn't expected
+	 */
+	protected boolean compareAndSet(int index, int expected, int value)
+	{
+		int slot = index >>> 2;
+		int shift = (index & 3) << 3;
+		while (true)
+		{
+			int word = this.cells.get(slot);
+			if (((word >>> shift) & 0xff) != expected)
+			{
+				return false;
+			}
+			if (this.cells.compareAndSet(slot, word, (word & ~(0xff << shift)) | ((value & 0xff) << shift)))
+			{
+				return true;
+			}
+			//Another square of the same int changed; ours may still be as expected.
+		}
+	}
+
+	/**
+	 * @return the side length of the board this store holds.
+	 */
+	public int getSize()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @return the total number of squares in the store.
+	 */
+	public int getCellCount()
+	{
+		return this.size*this.size;
+	}
+
+	/**
+	 * Converts a (row, col) location into the index used by every other method of this class.
+	 */
+	public int index(int row, int col)
+	{
+		return row*this.size + col;
+	}
+
+	public boolean isBomb(int index)
+	{
+		return (get(index) & BOMB) != 0;
+	}
+
+	public boolean isDug(int index)
+	{
+		return (get(index) & DUG) != 0;
+	}
+
+	public boolean isFlagged(int index)
+	{
+		return (get(index) & FLAGGED) != 0;
+	}
+
+	/**
+	 * Returns the number of bombs in the squares adjacent to this one. If it hasn't been set yet it is
+	 * counted now and cached, so like the setters this writes to the store.
+	 */
+	public int getCount(int index)
+	{
+		int cell = get(index);
+		if ((cell & COUNT_KNOWN) == 0)
+		{
+			int count = countBombsAround(index);
+			update(index, COUNT_BITS, COUNT_KNOWN | (count << COUNT_SHIFT));
+			return count;
+		}
+		return cell >>> COUNT_SHIFT;
+	}
+
+	/**
+	 * Same as getCount, but counts the bombs without caching the count if it isn't known, so it never writes.
+	 */
+	public int peekCount(int index)
+	{
+		int cell = get(index);
+		return (cell & COUNT_KNOWN) != 0 ? cell >>> COUNT_SHIFT : countBombsAround(index);
+	}
+
+	/**
+	 * @return true if the count of this square has been set or cached, so getCount won't have to count it.
+	 */
+	public boolean isCountKnown(int index)
+	{
+		return (get(index) & COUNT_KNOWN) != 0;
+	}
+
+	/**
+	 * Counts the bombs in the squares adjacent to this one from scratch, without caching anything.
+	 */
+	public int countBombsAround(int index)
+	{
+		int row = index / this.size;
+		int col = index - row*this.size;
+		int count = 0;
+		for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, this.size - 1); r++)
+		{
+			for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, this.size - 1); c++)
+			{
+				if ((r != row || c != col) && isBomb(r*this.size + c))
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	public void setBomb(int index, boolean bomb)
+	{
+		setBit(index, BOMB, bomb);
+	}
+
+	/**
+	 * Marks the square as dug. A dug square can never be flagged, so any flag is cleared.
+	 */
+	public void setDug(int index)
+	{
+		update(index, DUG | FLAGGED, DUG);
+	}
+
+	public void setFlagged(int index, boolean flagged)
+	{
+		setBit(index, FLAGGED, flagged);
+	}
+
+	/**
+	 * Atomically flags the square if it is neither dug nor flagged.
+	 * @return true if this call flagged it
+	 */
+	public boolean tryFlag(int index)
+	{
+		while (true)
+		{
+			int cell = get(index);
+			if ((cell & (DUG | FLAGGED)) != 0)
+			{
+				return false;
+			}
+			if (compareAndSet(index, cell, cell | FLAGGED))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Atomically removes the square's flag, if it has one.
+	 * @return true if this call removed it
+	 */
+	public boolean tryDeflag(int index)
+	{
+		while (true)
+		{
+			int cell = get(index);
+			if ((cell & FLAGGED) == 0)
+			{
+				return false;
+			}
+			if (compareAndSet(index, cell, cell & ~FLAGGED))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Atomically marks the square as dug unless it is flagged. Unlike setDug this never removes a flag,
+	 * however late the flag arrives.
+	 * @return false if the square is flagged, true if it is dug now (or already was)
+	 */
+	public boolean tryReveal(int index)
+	{
+		while (true)
+		{
+			int cell = get(index);
+			if ((cell & FLAGGED) != 0)
+			{
+				return false;
+			}
+			if ((cell & DUG) != 0 || compareAndSet(index, cell, cell | DUG))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Sets the adjacent bomb count of a square.
+	 * @param count must be between 0 and 8 inclusive.
+	 */
+	public void setCount(int index, int count)
+	{
+		update(index, COUNT_BITS, COUNT_KNOWN | (count << COUNT_SHIFT));
+	}
+
+	/**
+	 * Returns the character a player should see for this square: '-' if untouched, 'F' if flagged,
+	 * ' ' if dug with no adjacent bombs, or the adjacent bomb count otherwise.
+	 * This never writes to the store, so it is safe for readers that don't hold a lock.
+	 */
+	public char statusChar(int index)
+	{
+		int cell = get(index);
+		if ((cell & DUG) == 0)
+		{
+			return (cell & FLAGGED) != 0 ? 'F' : '-';
+		}
+		int count = (cell & COUNT_KNOWN) != 0 ? cell >>> COUNT_SHIFT : countBombsAround(index);
+		return count == 0 ? ' ' : (char) ('0' + count);
+	}
+
+	/**
+	 * Same as statusChar, but returns one of a fixed set of Strings so nothing is allocated per square.
+	 */
+	public String status(int index)
+	{
+		int cell = get(index);
+		if ((cell & DUG) == 0)
+		{
+			return (cell & FLAGGED) != 0 ? "F" : "-";
+		}
+		return COUNT_STATUS[(cell & COUNT_KNOWN) != 0 ? cell >>> COUNT_SHIFT : countBombsAround(index)];
+	}
+
+	/**
+	 * Returns the description a Square would have had for this square: "bomb", "dug" or "untouched".
+	 */
+	public String description(int index)
+	{
+		if (isBomb(index))
+		{
+			return "bomb";
+		}
+		return isDug(index) ? "dug" : "untouched";
+	}
+
+	private void setBit(int index, int bit, boolean value)
+	{
+		update(index, bit, value ? bit : 0);
+	}
+
+	/**
+	 * Replaces the bits of the square in mask with bits, atomically, leaving its other bits as they are at that
+	 * moment: a flag placed while a count is being cached by a reader holding no tile must not be lost.
+	 */
+	private void update(int index, int mask, int bits)
+	{
+		while (true)
+		{
+			int cell = get(index);
+			if (compareAndSet(index, cell, (cell & ~mask) | bits))
+			{
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a board with no fixed size: any square with coordinates from 0 to Integer.MAX_VALUE can be
+ * dug, flagged or spied on. Squares live in tiles of TILE x TILE, and a tile only comes into existence the
+ * first time a command touches it, so memory grows with the area players have touched rather than with the
+ * nominal size of the board.
+ *
+ * Where the bombs of a tile are is decided when the tile is created, by a Random seeded from the board's seed
+ * and the tile's coordinates, so every tile is the same no matter in which order tiles get created. Each square
+ * holds a bomb with probability 1/4, like a Board. A tile's counts need the bombs of the tiles around it, so
+ * those tiles are created (bombs only) when its counts are first needed.
+ *
+ * The whole board can't be sent back to a player, so every command answers with a window of viewSize x viewSize
+ * squares instead. The windows form a fixed grid: the window for a command with coordinates is the one containing
+ * that square, i.e. the one whose top-left square is at (X - X % viewSize, Y - Y % viewSize), and look answers
+ * with the window at (0, 0).
+ *
+ * The squares use the same encoding as CellStore, and digging behaves exactly as it does on a Board, except that
+ * a cascade visits at most CASCADE_LIMIT squares so that a very sparse board cannot reveal forever. Once it has,
+ * it still reveals the squares it has already queued, but queues no more, so the rest of the region stays hidden
+ * until a player digs into it, which starts a cascade of its own from there.
+ *
+ * Like FloodFill on a Board, a cascade allocates nothing per square: its queue is a long[] kept between cascades,
+ * and the squares it has visited are marked in a bitset on their tile, allocated the first time a cascade reaches
+ * the tile and cleared when the cascade is done. The tile looked up last is remembered, so the squares of one
+ * tile don't each look it up in the map of tiles.
+ *
+ * Every method a player can reach that reads or changes squares holds the board's lock for its whole run. The lock
+ * is a ReentrantLock rather than the board's monitor: a cascade can hold it a long time, and a player served by a
+ * virtual thread (see MinesweeperServer's --virtual-threads) waiting on a monitor would pin its carrier thread,
+ * while one waiting on a ReentrantLock just parks.
+ *
+ * @author DeJuan Anderson
+ */
+public class ChunkedBoard implements GameBoard
+{
+	public static final int TILE_SHIFT = 6;
+	public static final int TILE = 1 << TILE_SHIFT;
+	public static final int CASCADE_LIMIT = 1 << 20;
+
+	private static final double BOMB_PROBABILITY = .25;
+	private static final int MAX = Integer.MAX_VALUE;
+
+	private final long seed;
+	private final int viewSize;
+	private final HashMap<Long, Tile> tiles = new HashMap<Long, Tile>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The tile looked up last and its key, or a key no tile has. Only used while holding the lock.
+	 */
+	private long lastKey = -1;
+	private Tile lastTile = null;
+
+	/**
+	 * The squares queued by the cascade in progress, packed like key, and the tiles whose visited bits it set.
+	 * Only used while holding the lock.
+	 */
+	private long[] queue = new long[64];
+	private final ArrayList<Tile> visitedTiles = new ArrayList<Tile>();
+
+	/**
+	 * One TILE x TILE piece of the board. Its counts are only valid once counted is true.
+	 */
+	private static class Tile
+	{
+		final CellStore cells = new CellStore(TILE);
+		boolean counted = false;
+		/**
+		 * One bit per square the cascade in progress has visited, or null if no cascade has reached the tile yet.
+		 * visiting is true if the cascade in progress has set any of them.
+		 */
+		long[] visited = null;
+		boolean visiting = false;
+	}
+
+	/**
+	 * @param seed decides where all the bombs are
+	 * @param viewSize side of the window of the board sent back to players
+	 */
+	public ChunkedBoard(long seed, int viewSize)
+	{
+		if (viewSize <= 1)
+		{
+			throw new IllegalArgumentException("The view cannot have that size!");
+		}
+		this.seed = seed;
+		this.viewSize = viewSize;
+	}
+
+	/**
+	 * @return the number of tiles created so far, a measure of how much memory the board uses.
+	 */
+	public int getTileCount()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.tiles.size();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	public String processLook()
+	{
+		this.lock.lock();
+		try
+		{
+			return window(0, 0);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	public String processHelp()
+	{
+		return "Valid Commands are: (LOOK :== \"look\"  | DIG :== \"dig\" SPACE X SPACE Y  | FLAG  :== \"flag\" SPACE X SPACE Y | DEFLAG :== \"deflag\" SPACE X SPACE Y | HELP_REQ :== \"help\" | BYE :== \"bye\" ) NEWLINE. X and Y are ints."
+				+ " The board has no edge on the right or bottom; each command shows the " + this.viewSize + "x" + this.viewSize
+				+ " window containing its square, and look shows the window at 0 0.";
+	}
+
+	public String processSpy(String input)
+	{
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.SPY)
+		{
+			return processLook();
+		}
+		return processSpy(parser.getX(), parser.getY());
+	}
+
+	public String processSpy(int x, int y)
+	{
+		if (x < 0 || y < 0)
+		{
+			return processLook();
+		}
+		this.lock.lock();
+		try
+		{
+			int row = y;
+			int col = x;
+			Tile tile = countedTile(row, col);
+			int index = tile.cells.index(row & (TILE - 1), col & (TILE - 1));
+			return "Square description: " + tile.cells.description(index) + "\n\rSquare bombcount: " + tile.cells.getCount(index);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	public String processFlag(String input)
+	{
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.FLAG)
+		{
+			return processLook();
+		}
+		return processFlag(parser.getX(), parser.getY());
+	}
+
+	public String processFlag(int x, int y)
+	{
+		if (x < 0 || y < 0)
+		{
+			return processLook();
+		}
+		this.lock.lock();
+		try
+		{
+			int row = y;
+			int col = x;
+			Tile tile = countedTile(row, col);
+			int index = tile.cells.index(row & (TILE - 1), col & (TILE - 1));
+			if (!tile.cells.isDug(index))
+			{
+				tile.cells.setFlagged(index, true);
+			}
+			return windowAround(row, col);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	public String processDeflag(String input)
+	{
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.DEFLAG)
+		{
+			return processLook();
+		}
+		return processDeflag(parser.getX(), parser.getY());
+	}
+
+	public String processDeflag(int x, int y)
+	{
+		if (x < 0 || y < 0)
+		{
+			return processLook();
+		}
+		this.lock.lock();
+		try
+		{
+			int row = y;
+			int col = x;
+			Tile tile = countedTile(row, col);
+			tile.cells.setFlagged(tile.cells.index(row & (TILE - 1), col & (TILE - 1)), false);
+			return windowAround(row, col);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Digs a square exactly like Board.processDig does, including the cleanup when a bomb is hit.
+	 */
+	public String processDig(String input)
+	{
+		CommandParser parser = new CommandParser();
+		if (parser.parse(input) != CommandParser.DIG)
+		{
+			return processLook();
+		}
+		return processDig(parser.getX(), parser.getY());
+	}
+
+	public String processDig(int x, int y)
+	{
+		if (x < 0 || y < 0)
+		{
+			return processLook();
+		}
+		this.lock.lock();
+		try
+		{
+			int row = y;
+			int col = x;
+			Tile tile = countedTile(row, col);
+			CellStore cells = tile.cells;
+			int index = cells.index(row & (TILE - 1), col & (TILE - 1));
+			if (cells.isFlagged(index) || cells.isDug(index))
+			{
+				return windowAround(row, col);
+			}
+			if (cells.isBomb(index))
+			{
+				cells.setBomb(index, false);
+				cells.setDug(index);
+				for (long r = Math.max(row - 1L, 0); r <= Math.min(row + 1L, MAX); r++)
+				{
+					for (long c = Math.max(col - 1L, 0); c <= Math.min(col + 1L, MAX); c++)
+					{
+						// Tiles whose counts haven't been computed yet will see the bomb is gone when they are.
+						Tile adjacentTile = this.tiles.get(key((int) r >> TILE_SHIFT, (int) c >> TILE_SHIFT));
+						if ((r != row || c != col) && adjacentTile != null && adjacentTile.counted)
+						{
+							int adjacent = adjacentTile.cells.index((int) r & (TILE - 1), (int) c & (TILE - 1));
+							if (adjacentTile.cells.getCount(adjacent) > 0)
+							{
+								adjacentTile.cells.setCount(adjacent, adjacentTile.cells.getCount(adjacent) - 1);
+							}
+						}
+					}
+				}
+				cascade(row, col);
+				return "BOOM!";
+			}
+			cells.setDug(index);
+			if (cells.getCount(index) == 0)
+			{
+				cascade(row, col);
+			}
+			return windowAround(row, col);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Reveals the squares around the dug square at (row, col) and keeps expanding from every revealed square
+	 * with a count of 0, the same way FloodFill does on a Board, until CASCADE_LIMIT squares have been visited.
+	 * Squares are packed into longs as row << 32 | col.
+	 */
+	private void cascade(int row, int col)
+	{
+		long origin = key(row, col);
+		try
+		{
+			int head = 0;
+			int tail = visit(origin, 0);
+			while (head < tail)
+			{
+				long current = this.queue[head++];
+				int currentRow = (int) (current >>> 32);
+				int currentCol = (int) current;
+				if (current != origin)
+				{
+					Tile tile = countedTile(currentRow, currentCol);
+					int index = tile.cells.index(currentRow & (TILE - 1), currentCol & (TILE - 1));
+					if (tile.cells.isBomb(index) || tile.cells.isFlagged(index))
+					{
+						continue;
+					}
+					tile.cells.setDug(index);
+					if (tile.cells.getCount(index) != 0)
+					{
+						continue;
+					}
+				}
+				for (long r = Math.max(currentRow - 1L, 0); r <= Math.min(currentRow + 1L, MAX) && tail < CASCADE_LIMIT; r++)
+				{
+					for (long c = Math.max(currentCol - 1L, 0); c <= Math.min(currentCol + 1L, MAX) && tail < CASCADE_LIMIT; c++)
+					{
+						tail = visit(key((int) r, (int) c), tail);
+					}
+				}
+			}
+		}
+		finally
+		{
+			for (Tile tile : this.visitedTiles)
+			{
+				Arrays.fill(tile.visited, 0);
+				tile.visiting = false;
+			}
+			this.visitedTiles.clear();
+		}
+	}
+
+	/**
+	 * Queues the square at tail unless the cascade has visited it already.
+	 * @return the new tail of the queue
+	 */
+	private int visit(long square, int tail)
+	{
+		int row = (int) (square >>> 32);
+		int col = (int) square;
+		Tile tile = tile(row >> TILE_SHIFT, col >> TILE_SHIFT);
+		if (tile.visited == null)
+		{
+			tile.visited = new long[(TILE*TILE) >>> 6];
+		}
+		int bit = ((row & (TILE - 1)) << TILE_SHIFT) | (col & (TILE - 1));
+		long mask = 1L << bit;
+		if ((tile.visited[bit >>> 6] & mask) != 0)
+		{
+			return tail;
+		}
+		if (!tile.visiting)
+		{
+			tile.visiting = true;
+			this.visitedTiles.add(tile);
+		}
+		tile.visited[bit >>> 6] |= mask;
+		if (tail == this.queue.length)
+		{
+			this.queue = Arrays.copyOf(this.queue, Math.min(tail*2, CASCADE_LIMIT));
+		}
+		this.queue[tail] = square;
+		return tail + 1;
+	}
+
+	/**
+	 * Renders the window containing the square at (row, col).
+	 */
+	private String windowAround(int row, int col)
+	{
+		return window(row - row % this.viewSize, col - col % this.viewSize);
+	}
+
+	/**
+	 * Renders viewSize x viewSize squares starting at (firstRow, firstCol), the same way Board.toString does.
+	 * Squares of tiles that don't exist yet are untouched, so rendering never creates a tile.
+	 */
+	private String window(int firstRow, int firstCol)
+	{
+		StringBuilder boardString = new StringBuilder(this.viewSize*this.viewSize*2 + this.viewSize*2);
+		for (long row = firstRow; row < (long) firstRow + this.viewSize; row++)
+		{
+			for (long col = firstCol; col < (long) firstCol + this.viewSize; col++)
+			{
+				char status = '-';
+				if (row <= MAX && col <= MAX)
+				{
+					Tile tile = this.tiles.get(key((int) row >> TILE_SHIFT, (int) col >> TILE_SHIFT));
+					if (tile != null)
+					{
+						status = tile.cells.statusChar(tile.cells.index((int) row & (TILE - 1), (int) col & (TILE - 1)));
+					}
+				}
+				boardString.append(status);
+				if (col != (long) firstCol + this.viewSize - 1)
+				{
+					boardString.append(' ');
+				}
+			}
+			boardString.append("\r\n");
+		}
+		return boardString.toString();
+	}
+
+	/**
+	 * Returns the tile containing the square at (row, col), with its counts computed.
+	 */
+	private Tile countedTile(int row, int col)
+	{
+		int tileRow = row >> TILE_SHIFT;
+		int tileCol = col >> TILE_SHIFT;
+		Tile tile = tile(tileRow, tileCol);
+		if (!tile.counted)
+		{
+			// The bombs of this tile plus a one square border taken from the tiles around it.
+			boolean[][] bombs = new boolean[TILE + 2][TILE + 2];
+			long firstRow = ((long) tileRow << TILE_SHIFT) - 1;
+			long firstCol = ((long) tileCol << TILE_SHIFT) - 1;
+			for (int r = 0; r < TILE + 2; r++)
+			{
+				for (int c = 0; c < TILE + 2; c++)
+				{
+					bombs[r][c] = isBomb(firstRow + r, firstCol + c);
+				}
+			}
+			for (int r = 0; r < TILE; r++)
+			{
+				for (int c = 0; c < TILE; c++)
+				{
+					int count = 0;
+					for (int dr = 0; dr < 3; dr++)
+					{
+						for (int dc = 0; dc < 3; dc++)
+						{
+							if ((dr != 1 || dc != 1) && bombs[r + dr][c + dc])
+							{
+								count++;
+							}
+						}
+					}
+					tile.cells.setCount(tile.cells.index(r, c), count);
+				}
+			}
+			tile.counted = true;
+		}
+		return tile;
+	}
+
+	private boolean isBomb(long row, long col)
+	{
+		if (row < 0 || col < 0 || row > MAX || col > MAX)
+		{
+			return false;
+		}
+		Tile tile = tile((int) row >> TILE_SHIFT, (int) col >> TILE_SHIFT);
+		return tile.cells.isBomb(tile.cells.index((int) row & (TILE - 1), (int) col & (TILE - 1)));
+	}
+
+	/**
+	 * Returns the tile at (tileRow, tileCol), creating it and placing its bombs if it doesn't exist yet.
+	 */
+	private Tile tile(int tileRow, int tileCol)
+	{
+		long key = key(tileRow, tileCol);
+		if (key == this.lastKey)
+		{
+			return this.lastTile;
+		}
+		Tile tile = this.tiles.get(key);
+		if (tile == null)
+		{
+			tile = new Tile();
+			Random random = new Random(this.seed ^ (key * 0x9E3779B97F4A7C15L));
+			for (int index = 0; index < tile.cells.getCellCount(); index++)
+			{
+				tile.cells.setBomb(index, random.nextDouble() < BOMB_PROBABILITY);
+			}
+			this.tiles.put(key, tile);
+		}
+		this.lastKey = key;
+		this.lastTile = tile;
+		return tile;
+	}
+
+	private static long key(int high, int low)
+	{
+		return ((long) high << 32) | (low & 0xffffffffL);
+	}
+}
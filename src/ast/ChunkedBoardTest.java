@@ -0,0 +1,64 @@
+package ast;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ChunkedBoardTest {
+	
+	/**
+	 * My testing strategy for the chunked board is:
+	 * 1) Commands far from the origin only create the tiles around the square they touch.
+	 * 2) The same seed gives the same bombs whatever order the tiles are created in.
+	 * 3) Digging reveals the same counts a player would compute from the bombs around the square.
+	 */
+	
+	@Test
+	public void farCommandsOnlyCreateNearbyTiles()
+	{
+		ChunkedBoard testBoard = new ChunkedBoard(7, 10);
+		testBoard.processFlag("flag 2000000000 2000000000");
+		//The flagged square's tile plus the tiles around it, whose bombs its counts need.
+		assertTrue(testBoard.getTileCount() <= 9);
+		assertEquals(0, testBoard.processLook().replaceAll("[-\\s]", "").length());
+	}
+	
+	@Test
+	public void sameSeedSameBoardInAnyOrder()
+	{
+		ChunkedBoard first = new ChunkedBoard(42, 10);
+		ChunkedBoard second = new ChunkedBoard(42, 10);
+		second.processSpy("spy 5000 70");
+		for (int x = 60; x < 70; x++)
+		{
+			assertEquals(first.processSpy("spy " + x + " 3"), second.processSpy("spy " + x + " 3"));
+		}
+	}
+	
+	@Test
+	public void dugCountMatchesAdjacentBombs()
+	{
+		ChunkedBoard testBoard = new ChunkedBoard(3, 10);
+		for (int x = 1; x < 9; x++)
+		{
+			String spied = testBoard.processSpy("spy " + x + " 64");
+			if (spied.contains("bomb"))
+			{
+				continue;
+			}
+			int bombs = 0;
+			for (int dx = -1; dx <= 1; dx++)
+			{
+				for (int dy = -1; dy <= 1; dy++)
+				{
+					if ((dx != 0 || dy != 0) && testBoard.processSpy("spy " + (x + dx) + " " + (64 + dy)).contains("bomb"))
+					{
+						bombs++;
+					}
+				}
+			}
+			assertTrue(spied.endsWith("bombcount: " + bombs));
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs the commands of many threads against one GameBoard by flat combining, instead of making
+ * every thread take the board's lock for itself.
+ *
+ * A thread with a command publishes it in a slot of its own and then tries to become the combiner. Only one
+ * thread is the combiner at a time: it runs every command it finds published, its own and everyone else's, one
+ * after the other, and hands each result back through its slot. The other threads just wait for their result to
+ * appear, and try to become the combiner themselves if the current one lets go before getting to them. A burst
+ * of commands is so carried out in one go by one thread that keeps the board in its cache, instead of the board's
+ * lock (and the board) being handed from thread to thread, with a context switch each time.
+ *
+ * Since the combiner runs every command, the board underneath never sees two commands at the same time. That is
+ * what a board using the monitor pattern, like ChunkedBoard, wants anyway; a Board still takes its tile locks,
+ * but never has to wait for them.
+ *
+ * There is a fixed number of slots, so threads that come and go (one per connection) don't leave anything
+ * behind. A thread claims a free slot for the duration of one command, starting its search at a slot picked from
+ * its id so it usually finds the same slot free. If every slot is taken, it waits for one to be freed.
+ *
+ * look and help don't read anything a command can change halfway on a Board, but they do on a ChunkedBoard, so
+ * they go through the combiner too.
+ *
+ * @author DeJuan Anderson
+ */
+public class CombiningBoard implements GameBoard
+{
+	/**
+	 * Number of slots when none is given.
+	 */
+	public static final int DEFAULT_SLOTS = 64;
+
+	/**
+	 * How many times the combiner goes over the slots before giving up its role, as long as it keeps finding
+	 * commands.
+	 */
+	private static final int COMBINE_PASSES = 4;
+
+	/**
+	 * How many times a waiting thread spins before it starts parking between checks of its slot.
+	 */
+	private static final int SPINS = 64;
+
+	private static final int FREE = 0;
+	private static final int CLAIMED = 1;
+	private static final int PENDING = 2;
+	private static final int DONE = 3;
+
+	private final GameBoard board;
+	private final AtomicBoolean combining = new AtomicBoolean(false);
+
+	/**
+	 * The state of each slot. The command, input or coordinates, result and failure of a slot are plain fields:
+	 * they are written before the state is set and read after it is read, so the state publishes them. Commands
+	 * are CommandParser's codes; one issued with its coordinates already read (see CommandParser.AT) has them in
+	 * xs and ys instead of an input. A failure is anything the command threw, Errors included.
+	 */
+	private final AtomicIntegerArray states;
+	private final int[] commands;
+	private final String[] inputs;
+	private final int[] xs;
+	private final int[] ys;
+	private final String[] results;
+	private final Throwable[] failures;
+
+	public CombiningBoard(GameBoard board)
+	{
+		this(board, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param slots the number of commands that can be published at once, which should be about the number
+	 *              of threads expected to issue commands at the same time
+	 */
+	public CombiningBoard(GameBoard board, int slots)
+	{
+		if (slots < 1)
+		{
+			throw new IllegalArgumentException("A CombiningBoard needs at least one slot!");
+		}
+		this.board = board;
+		this.states = new AtomicIntegerArray(slots);
+		this.commands = new int[slots];
+		this.inputs = new String[slots];
+		this.xs = new int[slots];
+		this.ys = new int[slots];
+		this.results = new String[slots];
+		this.failures = new Throwable[slots];
+	}
+
+	public String processLook()
+	{
+		return execute(CommandParser.LOOK, null, 0, 0);
+	}
+
+	public String processHelp()
+	{
+		return execute(CommandParser.HELP, null, 0, 0);
+	}
+
+	public String processDig(String input)
+	{
+		return execute(CommandParser.DIG, input, 0, 0);
+	}
+
+	public String processDig(int x, int y)
+	{
+		return execute(CommandParser.DIG | CommandParser.AT, null, x, y);
+	}
+
+	public String processFlag(String input)
+	{
+		return execute(CommandParser.FLAG, input, 0, 0);
+	}
+
+	public String processFlag(int x, int y)
+	{
+		return execute(CommandParser.FLAG | CommandParser.AT, null, x, y);
+	}
+
+	public String processDeflag(String input)
+	{
+		return execute(CommandParser.DEFLAG, input, 0, 0);
+	}
+
+	public String processDeflag(int x, int y)
+	{
+		return execute(CommandParser.DEFLAG | CommandParser.AT, null, x, y);
+	}
+
+	public String processSpy(String input)
+	{
+		return execute(CommandParser.SPY, input, 0, 0);
+	}
+
+	public String processSpy(int x, int y)
+	{
+		return execute(CommandParser.SPY | CommandParser.AT, null, x, y);
+	}
+
+	/**
+	 * Publishes a command, waits until some combiner (maybe this thread) has run it, and returns its result.
+	 */
+	private String execute(int command, String input, int x, int y)
+	{
+		int slot = claimSlot();
+		this.commands[slot] = command;
+		this.inputs[slot] = input;
+		this.xs[slot] = x;
+		this.ys[slot] = y;
+		this.states.set(slot, PENDING);
+		int spins = 0;
+		while (this.states.get(slot) != DONE)
+		{
+			if (!this.combining.get() && this.combining.compareAndSet(false, true))
+			{
+				try
+				{
+					combine();
+				}
+				finally
+				{
+					this.combining.set(false);
+				}
+			}
+			else if (++spins > SPINS)
+			{
+				LockSupport.parkNanos(1000);
+			}
+			else
+			{
+				Thread.yield();
+			}
+		}
+		String result = this.results[slot];
+		Throwable failure = this.failures[slot];
+		this.inputs[slot] = null;
+		this.results[slot] = null;
+		this.failures[slot] = null;
+		this.states.set(slot, FREE);
+		if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error)
+		{
+			throw (Error) failure;
+		}
+		if (failure != null)
+		{
+			throw new IllegalStateException(failure);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of a slot this thread now owns, waiting for one to be freed if they are all taken.
+	 */
+	private int claimSlot()
+	{
+		int slots = this.states.length();
+		int start = (int) (Thread.currentThread().getId() % slots);
+		while (true)
+		{
+			for (int i = 0; i < slots; i++)
+			{
+				int slot = start + i < slots ? start + i : start + i - slots;
+				if (this.states.get(slot) == FREE && this.states.compareAndSet(slot, FREE, CLAIMED))
+				{
+					return slot;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Runs every published command, going over the slots again as long as it keeps finding some (up to
+	 * COMBINE_PASSES times). Only called by the combiner.
+	 */
+	private void combine()
+	{
+		for (int pass = 0; pass < COMBINE_PASSES; pass++)
+		{
+			boolean found = false;
+			for (int slot = 0; slot < this.states.length(); slot++)
+			{
+				if (this.states.get(slot) == PENDING)
+				{
+					found = true;
+					try
+					{
+						this.results[slot] = CommandParser.run(this.board, this.commands[slot], this.inputs[slot],
+								this.xs[slot], this.ys[slot]);
+					}
+					catch (Throwable e)
+					{
+						//Handed to the thread that issued the command, Errors included, so one bad command can't
+						//be thrown at whichever thread is combining, leaving its own slot and this one taken.
+						this.failures[slot] = e;
+					}
+					this.states.set(slot, DONE);
+				}
+			}
+			if (!found)
+			{
+				return;
+			}
+		}
+	}
+}
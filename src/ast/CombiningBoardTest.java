@@ -0,0 +1,83 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CombiningBoardTest {
+
+	/**
+	 * My testing strategy for the combining board is:
+	 * 1) From one thread it answers exactly like the board it wraps.
+	 * 2) More threads than slots all get their commands run, each exactly once, and get their own answers back.
+	 * 3) A command that throws, even an Error, throws in the thread that issued it, and the board keeps working.
+	 */
+
+	@Test
+	public void answersLikeTheBoardItWraps()
+	{
+		TestUtil.assertAnswersLike(new Board(new CellStore(20)), new CombiningBoard(new Board(new CellStore(20))));
+	}
+
+	@Test
+	public void moreThreadsThanSlots() throws InterruptedException
+	{
+		final int size = 100;
+		final CellStore cells = new CellStore(size);
+		final AtomicInteger commandsRun = new AtomicInteger();
+		final GameBoard combined = new CombiningBoard(new Board(cells)
+		{
+			@Override
+			public String processFlag(String input)
+			{
+				commandsRun.incrementAndGet();
+				return super.processFlag(input);
+			}
+		}, 2);
+		final AtomicInteger wrongAnswers = new AtomicInteger();
+		Thread[] players = new Thread[8];
+		for (int p = 0; p < players.length; p++)
+		{
+			//Every player flags a column of its own, so each answer must show that player's latest flag.
+			final int x = 10*p;
+			players[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int y = 0; y < size; y++)
+					{
+						String reply = combined.processFlag("flag " + x + " " + y);
+						if (reply.charAt(y*(2*size + 1) + 2*x) != 'F')
+						{
+							wrongAnswers.incrementAndGet();
+						}
+					}
+				}
+			});
+			players[p].start();
+		}
+		for (Thread player : players)
+		{
+			player.join();
+		}
+		assertEquals(0, wrongAnswers.get());
+		assertEquals(players.length*size, commandsRun.get());
+		for (int p = 0; p < players.length; p++)
+		{
+			for (int y = 0; y < size; y++)
+			{
+				assertTrue(cells.isFlagged(cells.index(y, 10*p)));
+			}
+		}
+	}
+
+	@Test
+	public void failuresGoBackToTheirThread()
+	{
+		//One slot, so a slot left taken by a failure would make the next command wait forever.
+		TestUtil.assertFailuresGoBack(new CombiningBoard(TestUtil.throwingBoard(), 1));
+	}
+}
@@ -0,0 +1,348 @@
+package ast;
+
+/**
+ * This class reads a line a player typed and says which command it is, along with the X and Y it names, if any.
+ * It understands exactly the grammar the server always has:
+ *
+ *   "look" | "help" | "bye" | ("dig" | "flag" | "deflag" | "spy") SPACE X SPACE Y
+ *
+ * where X and Y are an optional minus sign followed by any number of digits. Anything else is INVALID, which a
+ * server answers with the board like it always has.
+ *
+ * The line is read in one pass, one character at a time, and nothing is allocated: the command comes back as one
+ * of the int codes below and X and Y are kept in the parser until the next line is parsed. So a server keeps one
+ * parser per connection and hands the numbers straight to the board (see GameBoard.processDig(int, int)), instead
+ * of matching a regular expression, splitting the line and having the board read the numbers again.
+ *
+ * Numbers can have any width. One too large for an int can't be on any board, so it is read as -1, which is off
+ * every board too, and the board answers it as it does any square that isn't there.
+ *
+ * The line "v2" asks the server to switch the connection to protocol v2, in which every line starts with an ID
+ * the answer is tagged with (see minesweeper.server.ProtocolV2); parseTagged reads such lines, ID and all.
+ *
+ * A parser holds the numbers of the last line it read, so it must only be used by one thread at a time.
+ *
+ * @author DeJuan Anderson
+ */
+public class CommandParser
+{
+	public static final int INVALID = 0;
+	public static final int LOOK = 1;
+	public static final int HELP = 2;
+	public static final int BYE = 3;
+	public static final int DIG = 4;
+	public static final int FLAG = 5;
+	public static final int DEFLAG = 6;
+	public static final int SPY = 7;
+	public static final int V2 = 8;
+	/**
+	 * Added to DIG, FLAG, DEFLAG or SPY by a caller of run whose command comes with its X and Y already read,
+	 * instead of the line the player typed.
+	 */
+	public static final int AT = 16;
+
+	/**
+	 * The most digits an ID read by parseTagged may have, so that it always fits in a long.
+	 */
+	public static final int LONGEST_ID = 18;
+
+	/**
+	 * What is being parsed: either a CharSequence, or bytes holding one character each (ISO-8859-1).
+	 */
+	private CharSequence chars;
+	private byte[] bytes;
+	private int offset;
+	private int length;
+
+	/**
+	 * Where the next character to read is, and the last number read.
+	 */
+	private int position;
+	private int number;
+
+	private int x;
+	private int y;
+	private long id;
+
+	/**
+	 * @return which command line is, one of the codes of this class.
+	 */
+	public int parse(CharSequence line)
+	{
+		this.chars = line;
+		this.bytes = null;
+		this.offset = 0;
+		this.length = line.length();
+		int command = parse(0);
+		this.chars = null;
+		return command;
+	}
+
+	/**
+	 * Parses a line of protocol v2: an ID of 1 to LONGEST_ID digits, a space, and a command.
+	 * @return which command follows the ID, or INVALID if it isn't one or the line doesn't start with an ID;
+	 *         getId then returns the ID, or -1 if there is none.
+	 */
+	public int parseTagged(CharSequence line)
+	{
+		this.chars = line;
+		this.bytes = null;
+		this.offset = 0;
+		this.length = line.length();
+		int command = parseTagged();
+		this.chars = null;
+		return command;
+	}
+
+	/**
+	 * Parses the line held in bytes[offset] to bytes[offset + length - 1], without its line terminator.
+	 * @return which command it is, one of the codes of this class.
+	 */
+	public int parse(byte[] bytes, int offset, int length)
+	{
+		this.chars = null;
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+		int command = parse(0);
+		this.bytes = null;
+		return command;
+	}
+
+	/**
+	 * parseTagged for the line held in bytes[offset] to bytes[offset + length - 1], without its line terminator.
+	 */
+	public int parseTagged(byte[] bytes, int offset, int length)
+	{
+		this.chars = null;
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+		int command = parseTagged();
+		this.bytes = null;
+		return command;
+	}
+
+	/**
+	 * @return the X (column) of the last line parsed, if it was a command with coordinates.
+	 */
+	public int getX()
+	{
+		return this.x;
+	}
+
+	/**
+	 * @return the Y (row) of the last line parsed, if it was a command with coordinates.
+	 */
+	public int getY()
+	{
+		return this.y;
+	}
+
+	/**
+	 * @return the ID of the last line read by parseTagged, or -1 if it had none.
+	 */
+	public long getId()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return true if the command changes the board: dig, flag and deflag.
+	 */
+	public static boolean isWrite(int command)
+	{
+		return command == DIG || command == FLAG || command == DEFLAG;
+	}
+
+	/**
+	 * Runs command, one of LOOK, HELP, DIG, FLAG, DEFLAG or SPY, against board: on input, the line the player
+	 * typed, or if AT was added to the command, on the square at column x, row y. For classes that queue commands
+	 * to run them later (see CombiningBoard and BoardActor), so they all dispatch them the same way.
+	 * @return the board's answer
+	 */
+	public static String run(GameBoard board, int command, String input, int x, int y)
+	{
+		switch (command)
+		{
+			case LOOK:
+				return board.processLook();
+			case HELP:
+				return board.processHelp();
+			case DIG:
+				return board.processDig(input);
+			case FLAG:
+				return board.processFlag(input);
+			case DEFLAG:
+				return board.processDeflag(input);
+			case SPY:
+				return board.processSpy(input);
+			case DIG | AT:
+				return board.processDig(x, y);
+			case FLAG | AT:
+				return board.processFlag(x, y);
+			case DEFLAG | AT:
+				return board.processDeflag(x, y);
+			case SPY | AT:
+				return board.processSpy(x, y);
+			default:
+				throw new IllegalArgumentException("Command " + command + " is not run against a board!");
+		}
+	}
+
+	private int parseTagged()
+	{
+		long tag = 0;
+		int digits = 0;
+		while (digits < this.length && digits <= LONGEST_ID)
+		{
+			char c = charAt(digits);
+			if (c < '0' || c > '9')
+			{
+				break;
+			}
+			tag = tag*10 + (c - '0');
+			digits++;
+		}
+		if (digits == 0 || digits > LONGEST_ID || digits == this.length || charAt(digits) != ' ')
+		{
+			this.id = -1;
+			return INVALID;
+		}
+		this.id = tag;
+		return parse(digits + 1);
+	}
+
+	/**
+	 * Parses the command starting at start.
+	 */
+	private int parse(int start)
+	{
+		this.position = start;
+		int command;
+		if (keyword("look"))
+		{
+			return this.position == this.length ? LOOK : INVALID;
+		}
+		else if (keyword("help"))
+		{
+			return this.position == this.length ? HELP : INVALID;
+		}
+		else if (keyword("bye"))
+		{
+			return this.position == this.length ? BYE : INVALID;
+		}
+		else if (keyword("v2"))
+		{
+			return this.position == this.length ? V2 : INVALID;
+		}
+		else if (keyword("dig"))
+		{
+			command = DIG;
+		}
+		else if (keyword("flag"))
+		{
+			command = FLAG;
+		}
+		else if (keyword("deflag"))
+		{
+			command = DEFLAG;
+		}
+		else if (keyword("spy"))
+		{
+			command = SPY;
+		}
+		else
+		{
+			return INVALID;
+		}
+		if (!space() || !number())
+		{
+			return INVALID;
+		}
+		int first = this.number;
+		if (!space() || !number() || this.position != this.length)
+		{
+			return INVALID;
+		}
+		this.x = first;
+		this.y = this.number;
+		return command;
+	}
+
+	/**
+	 * Reads word if the line goes on with it.
+	 */
+	private boolean keyword(String word)
+	{
+		if (this.length - this.position < word.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++)
+		{
+			if (charAt(this.position + i) != word.charAt(i))
+			{
+				return false;
+			}
+		}
+		this.position += word.length();
+		return true;
+	}
+
+	private boolean space()
+	{
+		if (this.position < this.length && charAt(this.position) == ' ')
+		{
+			this.position++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads an optional minus sign and at least one digit into number.
+	 */
+	private boolean number()
+	{
+		boolean negative = this.position < this.length && charAt(this.position) == '-';
+		if (negative)
+		{
+			this.position++;
+		}
+		int start = this.position;
+		long value = 0;
+		boolean tooLarge = false;
+		while (this.position < this.length)
+		{
+			char c = charAt(this.position);
+			if (c < '0' || c > '9')
+			{
+				break;
+			}
+			value = value*10 + (c - '0');
+			if (value > Integer.MAX_VALUE)
+			{
+				//Keep reading the digits, but the number is off every board.
+				tooLarge = true;
+				value = 0;
+			}
+			this.position++;
+		}
+		if (this.position == start)
+		{
+			return false;
+		}
+		this.number = tooLarge ? -1 : (int) (negative ? -value : value);
+		return true;
+	}
+
+	private char charAt(int index)
+	{
+		if (this.bytes != null)
+		{
+			return (char) (this.bytes[this.offset + index] & 0xff);
+		}
+		return this.chars.charAt(this.offset + index);
+	}
+}
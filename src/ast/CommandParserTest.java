@@ -0,0 +1,127 @@
+package ast;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CommandParserTest {
+
+	/**
+	 * My testing strategy for the command parser is:
+	 * 1) Every command of the grammar, with coordinates of one digit, several digits, mixed widths, leading zeros
+	 *    and minus signs.
+	 * 2) Lines that are almost commands: extra or missing spaces, missing or extra numbers, wrong case, trailing
+	 *    text, and the empty line, are all INVALID.
+	 * 3) Numbers too large for an int come out as -1.
+	 * 4) Parsing bytes from the middle of a buffer gives the same as parsing the String.
+	 * 5) A Board reached through its String methods takes coordinates of any width, which the fixed offsets it
+	 *    used to read them at got wrong past two digits and for mixed widths.
+	 * 6) Tagged lines of protocol v2: IDs of one digit and of LONGEST_ID digits, from a String and from bytes;
+	 *    lines with no ID, an ID too long, or no space after it have ID -1, and "v2" is a command of its own.
+	 */
+
+	@Test
+	public void readsEveryCommand()
+	{
+		CommandParser parser = new CommandParser();
+		assertEquals(CommandParser.LOOK, parser.parse("look"));
+		assertEquals(CommandParser.HELP, parser.parse("help"));
+		assertEquals(CommandParser.BYE, parser.parse("bye"));
+		assertCommand(parser, "dig 3 4", CommandParser.DIG, 3, 4);
+		assertCommand(parser, "flag 12 7", CommandParser.FLAG, 12, 7);
+		assertCommand(parser, "deflag 7 12", CommandParser.DEFLAG, 7, 12);
+		assertCommand(parser, "spy 1234567 89", CommandParser.SPY, 1234567, 89);
+		assertCommand(parser, "dig 007 -3", CommandParser.DIG, 7, -3);
+		assertCommand(parser, "dig -0 2147483647", CommandParser.DIG, 0, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void rejectsAlmostCommands()
+	{
+		CommandParser parser = new CommandParser();
+		String[] lines = {"", "look ", " look", "lookk", "LOOK", "dig", "dig 1", "dig 1 ", "dig 1  2", "dig  1 2",
+				"dig 1 2 3", "dig a b", "dig 1 b", "dig - 2", "dig 1 2x", "digs 1 2", "flag 1 -", "bye bye", "hello"};
+		for (String line : lines)
+		{
+			assertEquals("\"" + line + "\"", CommandParser.INVALID, parser.parse(line));
+		}
+	}
+
+	@Test
+	public void hugeNumbersAreOffTheBoard()
+	{
+		CommandParser parser = new CommandParser();
+		assertCommand(parser, "dig 2147483648 5", CommandParser.DIG, -1, 5);
+		assertCommand(parser, "flag 5 99999999999999999999999999", CommandParser.FLAG, 5, -1);
+		assertCommand(parser, "spy -2147483648 1", CommandParser.SPY, -1, 1);
+	}
+
+	@Test
+	public void bytesParseLikeStrings()
+	{
+		CommandParser parser = new CommandParser();
+		byte[] buffer = "xxdeflag 31 415\r\nlook".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(CommandParser.DEFLAG, parser.parse(buffer, 2, 13));
+		assertEquals(31, parser.getX());
+		assertEquals(415, parser.getY());
+		assertEquals(CommandParser.LOOK, parser.parse(buffer, 17, 4));
+		assertEquals(CommandParser.INVALID, parser.parse(buffer, 17, 3));
+	}
+
+	@Test
+	public void boardTakesAnyWidth()
+	{
+		Board typed = new Board(new CellStore(150));
+		Board parsed = new Board(new CellStore(150));
+		//Mixed widths used to be read at the wrong offsets, and three digits not at all.
+		assertEquals(parsed.processFlag(5, 12), typed.processFlag("flag 5 12"));
+		assertEquals(parsed.processFlag(12, 5), typed.processFlag("flag 12 5"));
+		assertEquals(parsed.processFlag(120, 140), typed.processFlag("flag 120 140"));
+		String look = typed.processLook();
+		int rowLength = 2*150 + 1;
+		assertEquals('F', look.charAt(12*rowLength + 2*5));
+		assertEquals('F', look.charAt(5*rowLength + 2*12));
+		assertEquals('F', look.charAt(140*rowLength + 2*120));
+		assertEquals(parsed.processDeflag(120, 140), typed.processDeflag("deflag 120 140"));
+		assertEquals('-', typed.processLook().charAt(140*rowLength + 2*120));
+		//Off the board or not a command at all: just the board.
+		assertEquals(typed.processLook(), typed.processDig("dig 150 3"));
+		assertEquals(typed.processLook(), typed.processDig("dig 3"));
+	}
+
+	@Test
+	public void readsTaggedLines()
+	{
+		CommandParser parser = new CommandParser();
+		assertEquals(CommandParser.DIG, parser.parseTagged("7 dig 3 4"));
+		assertEquals(7, parser.getId());
+		assertEquals(3, parser.getX());
+		assertEquals(4, parser.getY());
+		assertEquals(CommandParser.LOOK, parser.parseTagged("999999999999999999 look"));
+		assertEquals(999999999999999999L, parser.getId());
+		byte[] buffer = "x0042 flag 1 2\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(CommandParser.FLAG, parser.parseTagged(buffer, 1, 13));
+		assertEquals(42, parser.getId());
+		//A tagged line that isn't a command still has its ID.
+		assertEquals(CommandParser.INVALID, parser.parseTagged("5 dig 1"));
+		assertEquals(5, parser.getId());
+		String[] untagged = {"", "look", "7", "-7 look", "7look", "1000000000000000000 look", " 7 look"};
+		for (String line : untagged)
+		{
+			assertEquals("\"" + line + "\"", CommandParser.INVALID, parser.parseTagged(line));
+			assertEquals("\"" + line + "\"", -1, parser.getId());
+		}
+		assertEquals(CommandParser.V2, parser.parse("v2"));
+		assertEquals(CommandParser.INVALID, parser.parse("v2 "));
+	}
+
+	private static void assertCommand(CommandParser parser, String line, int command, int x, int y)
+	{
+		assertEquals(line, command, parser.parse(line));
+		assertEquals(line, x, parser.getX());
+		assertEquals(line, y, parser.getY());
+	}
+}
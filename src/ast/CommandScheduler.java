@@ -0,0 +1,311 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class decides in which order players' commands get to run against a GameBoard, so that commands that
+ * change the board keep a short, predictable wait however many players keep looking at it.
+ *
+ * Commands are either reads (look, spy and help) or writes (dig, flag and deflag). At most permits commands run
+ * at once; the others wait in one queue per class, in the order they arrived. Whenever a command finishes, the
+ * next one to run is the oldest waiting write, unless the oldest waiting read has already waited longer than
+ * readerPatience, in which case it goes first. So a write only ever waits for the writes ahead of it, the commands
+ * running when it arrived, and at most one read per readerPatience; and a flood of writes still can't keep reads
+ * out forever. Without anyone waiting, a command runs straight away.
+ *
+ * How long commands of each class waited to run is recorded in a DelayHistogram (see getReadDelays and
+ * getWriteDelays), which can be read at any time.
+ *
+ * A thread-per-connection server wants permits close to the number of cores: a Board lets commands run in parallel
+ * but there is no point in more of them running than there are cores. With a permit of 1 this is the old Board
+ * monitor, but fair.
+ *
+ * @author DeJuan Anderson
+ */
+public class CommandScheduler implements GameBoard
+{
+	/**
+	 * How long the oldest read may wait before it goes ahead of waiting writes, when no patience is given.
+	 */
+	public static final long DEFAULT_READER_PATIENCE_MILLIS = 50;
+
+	private final GameBoard board;
+	private final int permits;
+	private final long readerPatienceNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ArrayDeque<Waiter> readers = new ArrayDeque<Waiter>();
+	private final ArrayDeque<Waiter> writers = new ArrayDeque<Waiter>();
+	private int running = 0;
+
+	private final DelayHistogram readDelays = new DelayHistogram();
+	private final DelayHistogram writeDelays = new DelayHistogram();
+
+	/**
+	 * A command waiting for its turn.
+	 */
+	private static class Waiter
+	{
+		final Thread thread = Thread.currentThread();
+		final long arrived = System.nanoTime();
+		volatile boolean admitted = false;
+	}
+
+	/**
+	 * Schedules with as many permits as there are cores, and the default reader patience.
+	 */
+	public CommandScheduler(GameBoard board)
+	{
+		this(board, Runtime.getRuntime().availableProcessors(), DEFAULT_READER_PATIENCE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param permits how many commands may run at once
+	 * @param readerPatience how long the oldest read waits behind writes before it goes first
+	 */
+	public CommandScheduler(GameBoard board, int permits, long readerPatience, TimeUnit unit)
+	{
+		if (permits < 1)
+		{
+			throw new IllegalArgumentException("At least one command must be able to run!");
+		}
+		this.board = board;
+		this.permits = permits;
+		this.readerPatienceNanos = unit.toNanos(readerPatience);
+	}
+
+	public String processLook()
+	{
+		acquire(false);
+		try
+		{
+			return this.board.processLook();
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processHelp()
+	{
+		acquire(false);
+		try
+		{
+			return this.board.processHelp();
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processSpy(String input)
+	{
+		acquire(false);
+		try
+		{
+			return this.board.processSpy(input);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processSpy(int x, int y)
+	{
+		acquire(false);
+		try
+		{
+			return this.board.processSpy(x, y);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processDig(String input)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processDig(input);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processDig(int x, int y)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processDig(x, y);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processFlag(String input)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processFlag(input);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processFlag(int x, int y)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processFlag(x, y);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processDeflag(String input)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processDeflag(input);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	public String processDeflag(int x, int y)
+	{
+		acquire(true);
+		try
+		{
+			return this.board.processDeflag(x, y);
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	/**
+	 * @return how long reads (look, spy, help) waited for their turn.
+	 */
+	public DelayHistogram getReadDelays()
+	{
+		return this.readDelays;
+	}
+
+	/**
+	 * @return how long writes (dig, flag, deflag) waited for their turn.
+	 */
+	public DelayHistogram getWriteDelays()
+	{
+		return this.writeDelays;
+	}
+
+	/**
+	 * @return the number of commands waiting for their turn right now, reads and writes.
+	 */
+	public int getWaiting()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.readers.size() + this.writers.size();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the command may run, and records how long that took.
+	 */
+	private void acquire(boolean write)
+	{
+		Waiter waiter = new Waiter();
+		this.lock.lock();
+		try
+		{
+			if (this.running < this.permits && this.writers.isEmpty() && this.readers.isEmpty())
+			{
+				this.running++;
+				waiter.admitted = true;
+			}
+			else
+			{
+				(write ? this.writers : this.readers).addLast(waiter);
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+		boolean interrupted = false;
+		while (!waiter.admitted)
+		{
+			//Interrupts are kept for the caller: a command that has been queued must still run, or be given up on
+			//by whoever admits it, which would lose its permit.
+			LockSupport.park(this);
+			interrupted |= Thread.interrupted();
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		(write ? this.writeDelays : this.readDelays).record(System.nanoTime() - waiter.arrived);
+	}
+
+	/**
+	 * Gives the command's permit to the next waiting command, if any.
+	 */
+	private void release()
+	{
+		this.lock.lock();
+		try
+		{
+			this.running--;
+			while (this.running < this.permits && !(this.readers.isEmpty() && this.writers.isEmpty()))
+			{
+				Waiter next;
+				Waiter oldestReader = this.readers.peekFirst();
+				if (this.writers.isEmpty()
+						|| (oldestReader != null && System.nanoTime() - oldestReader.arrived > this.readerPatienceNanos))
+				{
+					next = this.readers.pollFirst();
+				}
+				else
+				{
+					next = this.writers.pollFirst();
+				}
+				this.running++;
+				next.admitted = true;
+				LockSupport.unpark(next.thread);
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+}
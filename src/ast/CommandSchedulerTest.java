@@ -0,0 +1,162 @@
+package ast;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class CommandSchedulerTest {
+
+	/**
+	 * My testing strategy for the command scheduler is:
+	 * 1) From one thread it answers exactly like the board it wraps, and no command waits.
+	 * 2) With one permit and a flood of slow reads, a write only waits for the read that is running, not for the
+	 *    reads that arrived before it; and with a flood of slow writes, a read still runs within its patience.
+	 * 3) The delay histogram reports percentiles within its bucket width.
+	 */
+
+	@Test
+	public void answersLikeTheBoardItWraps()
+	{
+		CommandScheduler scheduled = new CommandScheduler(new Board(new CellStore(20)));
+		TestUtil.assertAnswersLike(new Board(new CellStore(20)), scheduled);
+		assertEquals(0, scheduled.getWaiting());
+		assertEquals(101, scheduled.getWriteDelays().getCount());
+		assertEquals(52, scheduled.getReadDelays().getCount());
+	}
+
+	@Test
+	public void writesGoAheadOfWaitingReads() throws InterruptedException
+	{
+		//Every look takes 2ms, and 8 players keep looking, so a write queued behind them would wait about 16ms.
+		final CommandScheduler scheduled = new CommandScheduler(slowBoard(2, 0), 1, 10, TimeUnit.SECONDS);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread[] readers = startPlayers(8, done, new Runnable()
+		{
+			public void run()
+			{
+				scheduled.processLook();
+			}
+		});
+		Thread.sleep(50);
+		for (int write = 0; write < 20; write++)
+		{
+			scheduled.processFlag("flag 10 10");
+		}
+		done.set(true);
+		joinAll(readers);
+		assertEquals(20, scheduled.getWriteDelays().getCount());
+		//Only the look running when the write arrived is waited for; a generous margin is left for slow machines.
+		assertTrue(scheduled.getWriteDelays().toString(), scheduled.getWriteDelays().getPercentileNanos(50) < 8000000L);
+	}
+
+	@Test
+	public void readsAreNotStarvedByWrites() throws InterruptedException
+	{
+		final CommandScheduler scheduled = new CommandScheduler(slowBoard(0, 2), 1, 5, TimeUnit.MILLISECONDS);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger flags = new AtomicInteger();
+		Thread[] writers = startPlayers(8, done, new Runnable()
+		{
+			public void run()
+			{
+				scheduled.processFlag("flag " + (10 + flags.incrementAndGet() % 90) + " 10");
+			}
+		});
+		Thread.sleep(50);
+		for (int read = 0; read < 20; read++)
+		{
+			scheduled.processLook();
+		}
+		done.set(true);
+		joinAll(writers);
+		//Writes always go first, so every read waits out its patience, but not the whole queue of writes after it.
+		DelayHistogram reads = scheduled.getReadDelays();
+		assertEquals(20, reads.getCount());
+		assertTrue(reads.toString(), reads.getPercentileNanos(50) < 40000000L);
+	}
+
+	@Test
+	public void histogramPercentiles()
+	{
+		DelayHistogram histogram = new DelayHistogram();
+		assertEquals(0, histogram.getPercentileNanos(99));
+		for (long value = 1; value <= 1000; value++)
+		{
+			histogram.record(value*1000);
+		}
+		histogram.record(-5);
+		assertEquals(1001, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertEquals(0, histogram.getPercentileNanos(0));
+		long median = histogram.getPercentileNanos(50);
+		assertTrue(median >= 500000 && median <= 500000*9/8);
+		long p99 = histogram.getPercentileNanos(99);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+		assertEquals(1000000, histogram.getPercentileNanos(100));
+	}
+
+	/**
+	 * @return a board whose looks and flags take the given number of milliseconds.
+	 */
+	private static GameBoard slowBoard(final long lookMillis, final long flagMillis)
+	{
+		return new Board(new CellStore(100))
+		{
+			@Override
+			public String processLook()
+			{
+				pause(lookMillis);
+				return super.processLook();
+			}
+
+			@Override
+			public String processFlag(String input)
+			{
+				pause(flagMillis);
+				return super.processFlag(input);
+			}
+		};
+	}
+
+	private static void pause(long millis)
+	{
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (System.nanoTime() < end)
+		{
+			Thread.yield();
+		}
+	}
+
+	private static Thread[] startPlayers(int count, final AtomicBoolean done, final Runnable command)
+	{
+		Thread[] players = new Thread[count];
+		for (int p = 0; p < players.length; p++)
+		{
+			players[p] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					while (!done.get())
+					{
+						command.run();
+					}
+				}
+			});
+			players[p].start();
+		}
+		return players;
+	}
+
+	private static void joinAll(Thread[] threads) throws InterruptedException
+	{
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts how long things took (e.g. how long a command waited in a queue), in buckets, so that any
+ * number of threads can record into it at once without locking and the percentiles can still be read at any
+ * time without keeping every value.
+ *
+ * Buckets grow with the value: every power of two is split into SUB_BUCKETS buckets of equal width, so a
+ * percentile is reported at most 1/SUB_BUCKETS too high, whatever its magnitude, from a nanosecond to hours.
+ *
+ * @author DeJuan Anderson
+ */
+public class DelayHistogram
+{
+	private static final int SUB_BUCKET_SHIFT = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_SHIFT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_SHIFT)*SUB_BUCKETS + SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value, in nanoseconds. Negative values count as 0.
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(nanos, 0);
+		this.buckets.incrementAndGet(bucketOf(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+		long seen = this.max.get();
+		while (value > seen && !this.max.compareAndSet(seen, value))
+		{
+			seen = this.max.get();
+		}
+	}
+
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	public long getMaxNanos()
+	{
+		return this.max.get();
+	}
+
+	public double getMeanNanos()
+	{
+		long recorded = this.count.get();
+		return recorded == 0 ? 0 : this.total.get() / (double) recorded;
+	}
+
+	/**
+	 * @return a value that at least percent percent of the recorded values are at most, and which is at most
+	 *         1/SUB_BUCKETS above the smallest such value; 0 if nothing was recorded.
+	 */
+	public long getPercentileNanos(double percent)
+	{
+		long recorded = 0;
+		for (int bucket = 0; bucket < this.buckets.length(); bucket++)
+		{
+			recorded += this.buckets.get(bucket);
+		}
+		if (recorded == 0)
+		{
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(percent / 100 * recorded));
+		long seen = 0;
+		for (int bucket = 0; bucket < this.buckets.length(); bucket++)
+		{
+			seen += this.buckets.get(bucket);
+			if (seen >= wanted)
+			{
+				return Math.min(highestIn(bucket), getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * @return the count, mean, 50th, 99th and 99.9th percentiles and maximum, in microseconds.
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", getCount(),
+				getMeanNanos() / 1e3, getPercentileNanos(50) / 1e3, getPercentileNanos(99) / 1e3,
+				getPercentileNanos(99.9) / 1e3, getMaxNanos() / 1e3);
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get a bucket each. Above, the bucket is picked by the position of the highest bit
+	 * and the SUB_BUCKET_SHIFT bits below it.
+	 */
+	private static int bucketOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_SHIFT)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_SHIFT + 1)*SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the highest value that falls in the bucket.
+	 */
+	private static long highestIn(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_SHIFT - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lowest = (1L << exponent) + (sub << (exponent - SUB_BUCKET_SHIFT));
+		return lowest + (1L << (exponent - SUB_BUCKET_SHIFT)) - 1;
+	}
+}
@@ -0,0 +1,201 @@
+package ast;
+
+/**
+ * This class carries out the cascade that happens when a square with no adjacent bombs is dug.
+ *
+ * Starting from an already dug square, it reveals the adjacent squares and keeps expanding from every
+ * revealed square whose count is 0. Bombs and flagged squares are never revealed and stop the expansion.
+ * Squares that were dug earlier are expanded through again, which matters if a flag that used to block
+ * the cascade has since been removed.
+ *
+ * The work queue is a plain int[] of square indices and the visited set is a bitset, both kept between
+ * cascades, so a cascade allocates nothing per square. Every square that is visited is pushed on the queue
+ * exactly once, and the queue entries are also what is used to clear the visited bits at the end,
+ * so a cascade costs time proportional to the region it reveals rather than to the board size.
+ *
+ * A cascade can be run in one go with fill, or in steps with begin, advance and finish, which lets
+ * a caller stop after a bounded amount of work and hand the rest over (see ParallelFloodFill).
+ *
+ * A FloodFill is not threadsafe; the Board that owns it only lets one thread at a time use it. That thread
+ * either holds every tile of the board, or gives the FloodFill a TileLocks.Holder with setHolder, and the
+ * FloodFill then takes the tile of every square before processing it (see advance).
+ *
+ * @author DeJuan Anderson
+ */
+public class FloodFill
+{
+	private static final int INITIAL_QUEUE = 64;
+
+	private final CellStore cells;
+	private final int size;
+	private final long[] visited;
+	private int[] queue = new int[INITIAL_QUEUE];
+	private int origin;
+	private int head;
+	private int tail;
+	private TileLocks.Holder holder = null;
+
+	public FloodFill(CellStore cells)
+	{
+		this.cells = cells;
+		this.size = cells.getSize();
+		this.visited = new long[(cells.getCellCount() + 63) >>> 6];
+	}
+
+	/**
+	 * Sets the Holder through which the tiles of the squares processed from now on are taken, or null if
+	 * the caller holds every tile.
+	 */
+	public void setHolder(TileLocks.Holder holder)
+	{
+		this.holder = holder;
+	}
+
+	/**
+	 * Runs the cascade from the square at origin, which the caller has already dug.
+	 * Its adjacent squares are revealed whatever its own count is.
+	 * @param origin index of the dug square in the cell store
+	 * @return the number of squares visited, including the origin
+	 */
+	public int fill(int origin)
+	{
+		begin(origin);
+		advance(Integer.MAX_VALUE);
+		return finish();
+	}
+
+	/**
+	 * Starts a cascade from the square at origin without doing any of its work yet.
+	 */
+	public void begin(int origin)
+	{
+		this.origin = origin;
+		this.head = 0;
+		this.tail = 0;
+		visit(origin);
+	}
+
+	/**
+	 * Processes at most budget queued squares of the cascade started by begin.
+	 * If there is a Holder, this also stops at the first square whose tile the Holder can't take; the caller
+	 * must then restart the Holder and call advance again.
+	 * @return true if the cascade is complete
+	 */
+	public boolean advance(int budget)
+	{
+		while (this.head < this.tail && budget > 0)
+		{
+			int current = this.queue[this.head];
+			if (this.holder != null && !this.holder.cover(current))
+			{
+				return false;
+			}
+			this.head++;
+			expand(current);
+			budget--;
+		}
+		return this.head == this.tail;
+	}
+
+	/**
+	 * Ends the cascade started by begin, whether or not it is complete, and resets the visited set.
+	 * @return the number of squares visited, including the origin
+	 */
+	public int finish()
+	{
+		int visitedCount = this.tail;
+		clearVisited();
+		return visitedCount;
+	}
+
+	/**
+	 * @return the number of squares visited so far by the current cascade.
+	 */
+	public int getVisitedCount()
+	{
+		return this.tail;
+	}
+
+	/**
+	 * Returns the i-th square visited by the current cascade. The squares from getProcessedCount() on
+	 * have been visited but not processed yet; they are the frontier of the cascade.
+	 */
+	public int getVisited(int i)
+	{
+		return this.queue[i];
+	}
+
+	/**
+	 * @return the number of visited squares that have already been processed.
+	 */
+	public int getProcessedCount()
+	{
+		return this.head;
+	}
+
+	/**
+	 * Reveals one visited square and, if it has no adjacent bombs, visits its neighbors.
+	 */
+	private void expand(int current)
+	{
+		if (current != this.origin)
+		{
+			if (this.cells.isBomb(current))
+			{
+				return;
+			}
+			//A square is only revealed if it is still unflagged at that moment, whichever tiles are held.
+			int adjacentBombs = this.cells.getCount(current);
+			if (!this.cells.tryReveal(current) || adjacentBombs != 0)
+			{
+				return;
+			}
+		}
+		int row = current / this.size;
+		int col = current - row*this.size;
+		int firstRow = row > 0 ? row - 1 : row;
+		int lastRow = row < this.size - 1 ? row + 1 : row;
+		int firstCol = col > 0 ? col - 1 : col;
+		int lastCol = col < this.size - 1 ? col + 1 : col;
+		for (int r = firstRow; r <= lastRow; r++)
+		{
+			int rowStart = r*this.size;
+			for (int c = firstCol; c <= lastCol; c++)
+			{
+				visit(rowStart + c);
+			}
+		}
+	}
+
+	/**
+	 * Queues the square unless it has already been visited in this cascade.
+	 */
+	private void visit(int index)
+	{
+		long bit = 1L << index;
+		int word = index >>> 6;
+		if ((this.visited[word] & bit) != 0)
+		{
+			return;
+		}
+		this.visited[word] |= bit;
+		if (this.tail == this.queue.length)
+		{
+			int[] grown = new int[Math.min(this.queue.length*2, Math.max(this.cells.getCellCount(), INITIAL_QUEUE))];
+			System.arraycopy(this.queue, 0, grown, 0, this.tail);
+			this.queue = grown;
+		}
+		this.queue[this.tail++] = index;
+	}
+
+	private void clearVisited()
+	{
+		for (int i = 0; i < this.tail; i++)
+		{
+			int index = this.queue[i];
+			this.visited[index >>> 6] = 0;
+		}
+		this.head = 0;
+		this.tail = 0;
+	}
+}
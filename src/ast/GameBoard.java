@@ -0,0 +1,65 @@
+package ast;
+
+/**
+ * The commands a player can issue against a Minesweeper board. The server only talks to boards through
+ * this interface, so it can serve either a Board or a ChunkedBoard.
+ *
+ * Every method that takes an input String takes the whole command line the player typed, e.g. "dig 3 4",
+ * where the first number is the column (X) and the second the row (Y). Each of them also comes with the X and Y
+ * already read, for a caller that has parsed the line itself (see CommandParser). Coordinates off the board are
+ * answered with the board, like any invalid input.
+ *
+ * @author DeJuan Anderson
+ */
+public interface GameBoard
+{
+	/**
+	 * @return the board as the player should see it.
+	 */
+	String processLook();
+
+	/**
+	 * @return a message describing the valid commands.
+	 */
+	String processHelp();
+
+	/**
+	 * Digs a square. @return "BOOM!" if it held a bomb, otherwise the board as the player should see it.
+	 */
+	String processDig(String input);
+
+	/**
+	 * processDig for the square at column x, row y.
+	 */
+	String processDig(int x, int y);
+
+	/**
+	 * Flags a square that hasn't been dug. @return the board as the player should see it.
+	 */
+	String processFlag(String input);
+
+	/**
+	 * processFlag for the square at column x, row y.
+	 */
+	String processFlag(int x, int y);
+
+	/**
+	 * Removes the flag from a square, if any. @return the board as the player should see it.
+	 */
+	String processDeflag(String input);
+
+	/**
+	 * processDeflag for the square at column x, row y.
+	 */
+	String processDeflag(int x, int y);
+
+	/**
+	 * The debugging cheat: @return the description and bomb count of a square without digging it.
+	 */
+	String processSpy(String input);
+
+	/**
+	 * processSpy for the square at column x, row y.
+	 */
+	String processSpy(int x, int y);
+}
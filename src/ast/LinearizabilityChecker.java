@@ -0,0 +1,484 @@
+package ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * This class checks whether what a set of players saw while playing on one board at the same time could have
+ * happened if their commands had run one at a time, each at some moment between when it was issued and when it
+ * answered; that is, whether the board behaved linearizably. It is the judge of the stress harness (see
+ * BoardStress), which records such histories from many threads.
+ *
+ * The commands are replayed against a sequential model: a Board built the same way as the one played on, kept
+ * in a PersistentCellStore so every step of the search can fork it instead of undoing commands. The search is
+ * the one of Wing and Gong, as improved by Lowe: the calls and returns of all commands are put in one list in
+ * time order, and the checker repeatedly picks a command that has been called, applies it to the model and checks
+ * its answer, going back and trying another one whenever a command returns before being picked. Every set of
+ * commands picked together with the board it led to is remembered, so no such pair is searched twice. That is
+ * what keeps the search close to linear in the length of the history, however many threads there were.
+ *
+ * How strictly the answers are held to the model is set by Replies. A Board answers dig, flag and deflag with
+ * a look taken after the command, once its tiles are let go, so a Board is expected to pass with Replies.LATER;
+ * a board that runs one command at a time should pass with ATOMIC.
+ *
+ * A checker keeps the state of its last search, so it must only be used by one thread at a time.
+ *
+ * @author DeJuan Anderson
+ */
+public class LinearizabilityChecker
+{
+	/**
+	 * How the answers to commands are checked against the model.
+	 */
+	public enum Replies
+	{
+		/**
+		 * Every command, with its answer, happens at one moment.
+		 */
+		ATOMIC,
+		/**
+		 * Every command happens at one moment, but the board that dig, flag and deflag answer with may be looked at
+		 * any time after that, before the command returns. BOOM! must still be answered exactly when a bomb was dug.
+		 */
+		LATER,
+		/**
+		 * Only the effects of dig, flag and deflag are checked: BOOM! must be answered exactly when a bomb was dug,
+		 * and the board at the end must be one the commands could have left. look and spy aren't checked.
+		 */
+		IGNORED
+	}
+
+	/**
+	 * One command issued by a player, with when it was issued and when and how it was answered.
+	 */
+	public static class Operation
+	{
+		private final int player;
+		private final String input;
+		private final long invoked;
+		private long returned;
+		private String output;
+
+		/**
+		 * @param invoked the System.nanoTime() just before the command was issued
+		 */
+		public Operation(int player, String input, long invoked)
+		{
+			this.player = player;
+			this.input = input;
+			this.invoked = invoked;
+		}
+
+		/**
+		 * @param returned the System.nanoTime() just after the command answered
+		 */
+		public void finish(String output, long returned)
+		{
+			this.output = output;
+			this.returned = returned;
+		}
+
+		public int getPlayer()
+		{
+			return this.player;
+		}
+
+		public String getInput()
+		{
+			return this.input;
+		}
+
+		public String getOutput()
+		{
+			return this.output;
+		}
+
+		public long getInvoked()
+		{
+			return this.invoked;
+		}
+
+		public long getReturned()
+		{
+			return this.returned;
+		}
+
+		boolean isWrite()
+		{
+			return this.input.startsWith("dig") || this.input.startsWith("flag") || this.input.startsWith("deflag");
+		}
+
+		@Override
+		public String toString()
+		{
+			return "player " + this.player + ": \"" + this.input + "\" from " + this.invoked + " to " + this.returned;
+		}
+	}
+
+	/**
+	 * What gets linearized: a whole command, only its effect, or only the look it answered with.
+	 */
+	private static class Step
+	{
+		final int id;
+		final Operation operation;
+		final boolean effect;
+		final boolean reply;
+
+		/**
+		 * The step that must be linearized before this one, if any: the effect of the command this is the reply of.
+		 */
+		Step after;
+
+		Step(int id, Operation operation, boolean effect, boolean reply)
+		{
+			this.id = id;
+			this.operation = operation;
+			this.effect = effect;
+			this.reply = reply;
+		}
+	}
+
+	/**
+	 * A call or a return of a step, in a doubly linked list kept in time order.
+	 */
+	private static class Entry
+	{
+		final Step step;
+		final boolean call;
+		final long time;
+		Entry match;
+		Entry prev;
+		Entry next;
+
+		Entry(Step step, boolean call, long time)
+		{
+			this.step = step;
+			this.call = call;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The model after some steps, with its look, which is also what tells two models apart.
+	 */
+	private static class State
+	{
+		final Board board;
+		final String look;
+
+		State(Board board)
+		{
+			this.board = board;
+			this.look = board.processLook();
+		}
+	}
+
+	/**
+	 * A set of linearized steps and the look of the model they led to, remembered so it's only searched once.
+	 */
+	private static class Visit
+	{
+		final BitSet linearized;
+		final String look;
+
+		Visit(BitSet linearized, String look)
+		{
+			this.linearized = linearized;
+			this.look = look;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Visit))
+			{
+				return false;
+			}
+			Visit visit = (Visit) other;
+			return this.linearized.equals(visit.linearized) && this.look.equals(visit.look);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.linearized.hashCode()*31 + this.look.hashCode();
+		}
+	}
+
+	private final Board initial;
+	private final Replies replies;
+	private long statesExplored;
+	private String failure;
+
+	/**
+	 * @param initial the board as it was before the first command, built with Storage.PERSISTENT so it can be
+	 *        forked. It is never changed.
+	 */
+	public LinearizabilityChecker(Board initial, Replies replies)
+	{
+		this.initial = initial;
+		this.replies = replies;
+	}
+
+	/**
+	 * Searches for an order of the commands in history that respects their times and explains their answers.
+	 * @param history every command issued, each finished
+	 * @param finalLook the look of the board after every command returned, or null not to check it
+	 * @return true if there is one
+	 */
+	public boolean check(List<Operation> history, String finalLook)
+	{
+		this.statesExplored = 0;
+		this.failure = null;
+		List<Step> steps = steps(history);
+		Entry head = entries(steps);
+		BitSet linearized = new BitSet(steps.size());
+		HashSet<Visit> visited = new HashSet<Visit>();
+		ArrayDeque<Entry> picked = new ArrayDeque<Entry>();
+		ArrayDeque<State> before = new ArrayDeque<State>();
+		State state = new State(this.initial.fork());
+		int deepest = -1;
+		Entry entry = head.next;
+		while (true)
+		{
+			if (head.next == null)
+			{
+				if (finalLook == null || finalLook.equals(state.look))
+				{
+					this.failure = null;
+					return true;
+				}
+				if (picked.size() > deepest)
+				{
+					deepest = picked.size();
+					this.failure = "every command fits, but no order of them leaves the board that was seen at the end";
+				}
+				entry = null;
+			}
+			else if (picked.size() > deepest)
+			{
+				deepest = picked.size();
+				this.failure = "no order fits " + head.next.step.operation + ", answered with\n"
+						+ head.next.step.operation.output;
+			}
+			if (entry != null && entry.call)
+			{
+				Step step = entry.step;
+				State next = null;
+				if (step.after == null || linearized.get(step.after.id))
+				{
+					next = apply(state, step);
+				}
+				if (next != null)
+				{
+					linearized.set(step.id);
+					this.statesExplored++;
+					if (visited.add(new Visit((BitSet) linearized.clone(), next.look)))
+					{
+						picked.push(entry);
+						before.push(state);
+						state = next;
+						lift(entry);
+						entry = head.next;
+						continue;
+					}
+					linearized.clear(step.id);
+				}
+				entry = entry.next;
+				continue;
+			}
+			//A step returned without being picked, or there are none left but the end doesn't fit: go back.
+			if (picked.isEmpty())
+			{
+				return false;
+			}
+			entry = picked.pop();
+			state = before.pop();
+			linearized.clear(entry.step.id);
+			unlift(entry);
+			entry = entry.next;
+		}
+	}
+
+	/**
+	 * @return the number of steps tried by the last check that fit the model.
+	 */
+	public long getStatesExplored()
+	{
+		return this.statesExplored;
+	}
+
+	/**
+	 * @return why the last check failed, as of the furthest it got; null if it didn't fail.
+	 */
+	public String getFailure()
+	{
+		return this.failure;
+	}
+
+	/**
+	 * Applies the step to a fork of the model, or to the model itself if it only looks.
+	 * @return the model after the step, or null if the answer the step got doesn't fit it
+	 */
+	private State apply(State state, Step step)
+	{
+		Operation operation = step.operation;
+		if (!step.effect)
+		{
+			//A look or spy, or the reply of a write, which is a look.
+			String expected = operation.isWrite() ? state.look : run(state.board, operation.input);
+			return expected.equals(operation.output) ? state : null;
+		}
+		Board board = state.board.fork();
+		String output = run(board, operation.input);
+		boolean boom = output.equals("BOOM!");
+		if (step.reply ? !output.equals(operation.output) : boom != operation.output.equals("BOOM!"))
+		{
+			return null;
+		}
+		return new State(board);
+	}
+
+	private static String run(GameBoard board, String input)
+	{
+		if (input.startsWith("dig"))
+		{
+			return board.processDig(input);
+		}
+		else if (input.startsWith("flag"))
+		{
+			return board.processFlag(input);
+		}
+		else if (input.startsWith("deflag"))
+		{
+			return board.processDeflag(input);
+		}
+		else if (input.startsWith("spy"))
+		{
+			return board.processSpy(input);
+		}
+		else if (input.equals("help"))
+		{
+			return board.processHelp();
+		}
+		return board.processLook();
+	}
+
+	/**
+	 * @return the steps to linearize for the history, as Replies says.
+	 */
+	private List<Step> steps(List<Operation> history)
+	{
+		List<Step> steps = new ArrayList<Step>();
+		for (Operation operation : history)
+		{
+			if (!operation.isWrite())
+			{
+				if (this.replies != Replies.IGNORED)
+				{
+					steps.add(new Step(steps.size(), operation, false, true));
+				}
+			}
+			else if (this.replies == Replies.ATOMIC || operation.output.equals("BOOM!"))
+			{
+				steps.add(new Step(steps.size(), operation, true, true));
+			}
+			else
+			{
+				Step effect = new Step(steps.size(), operation, true, false);
+				steps.add(effect);
+				if (this.replies == Replies.LATER)
+				{
+					Step reply = new Step(steps.size(), operation, false, true);
+					reply.after = effect;
+					steps.add(reply);
+				}
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * @return a sentinel heading the list of the calls and returns of the steps, in time order. A call and a
+	 *         return at the same time are taken as overlapping, so calls come first.
+	 */
+	private static Entry entries(List<Step> steps)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Step step : steps)
+		{
+			Entry call = new Entry(step, true, step.operation.invoked);
+			Entry ret = new Entry(step, false, step.operation.returned);
+			call.match = ret;
+			ret.match = call;
+			entries.add(call);
+			entries.add(ret);
+		}
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			public int compare(Entry a, Entry b)
+			{
+				if (a.time != b.time)
+				{
+					return a.time < b.time ? -1 : 1;
+				}
+				if (a.call != b.call)
+				{
+					return a.call ? -1 : 1;
+				}
+				return a.step.id - b.step.id;
+			}
+		});
+		Entry head = new Entry(null, false, Long.MIN_VALUE);
+		Entry last = head;
+		for (Entry entry : entries)
+		{
+			last.next = entry;
+			entry.prev = last;
+			last = entry;
+		}
+		return head;
+	}
+
+	/**
+	 * Takes the call and its return out of the list.
+	 */
+	private static void lift(Entry call)
+	{
+		unlink(call);
+		unlink(call.match);
+	}
+
+	/**
+	 * Puts back the call and its return lifted last.
+	 */
+	private static void unlift(Entry call)
+	{
+		relink(call.match);
+		relink(call);
+	}
+
+	private static void unlink(Entry entry)
+	{
+		entry.prev.next = entry.next;
+		if (entry.next != null)
+		{
+			entry.next.prev = entry.prev;
+		}
+	}
+
+	private static void relink(Entry entry)
+	{
+		entry.prev.next = entry;
+		if (entry.next != null)
+		{
+			entry.next.prev = entry;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ast.LinearizabilityChecker.Operation;
+import ast.LinearizabilityChecker.Replies;
+
+import static org.junit.Assert.*;
+
+
+public class LinearizabilityCheckerTest {
+
+	/**
+	 * My testing strategy for the linearizability checker is:
+	 * 1) Histories written by hand: commands one after another that fit the board pass; a look that can't be
+	 *    explained fails; overlapping commands pass in whichever order explains them, but not in an order their
+	 *    times forbid.
+	 * 2) The levels of Replies: a reply looked at after the command's effect fails ATOMIC but passes LATER.
+	 * 3) Stress histories from many threads pass on the engines that run one command at a time with ATOMIC, and
+	 *    on a Board with tile locks with LATER, including two digs racing for the same bomb (which used to both
+	 *    answer BOOM! when one of them started over holding every tile).
+	 * 4) A board that answers with stale looks is caught.
+	 */
+
+	private static final int SIZE = 10;
+	private static final int MINES = 10;
+
+	@Test
+	public void sequentialHistoryFits()
+	{
+		Board played = new Board(SIZE, MINES, 20, Storage.HEAP);
+		List<Operation> history = new ArrayList<Operation>();
+		long time = 0;
+		for (String input : new String[] {"flag 1 1", "look", "dig 5 5", "deflag 1 1", "spy 2 2", "dig 1 1"})
+		{
+			time = record(history, 0, played, input, time + 1, time + 2);
+		}
+		LinearizabilityChecker checker = new LinearizabilityChecker(initial(20), Replies.ATOMIC);
+		assertTrue(checker.check(history, played.processLook()));
+		assertNull(checker.getFailure());
+		//The same commands, but the end is a board they couldn't have left.
+		assertFalse(checker.check(history, initial(20).processLook()));
+	}
+
+	@Test
+	public void orderMustRespectTime()
+	{
+		Board played = new Board(SIZE, MINES, 20, Storage.HEAP);
+		String before = played.processLook();
+		String flagged = played.processFlag("flag 3 3");
+		List<Operation> history = new ArrayList<Operation>();
+		//A look overlapping the flag may see it either way.
+		history.add(operation(0, "flag 3 3", flagged, 10, 20));
+		history.add(operation(1, "look", before, 15, 25));
+		LinearizabilityChecker checker = new LinearizabilityChecker(initial(20), Replies.ATOMIC);
+		assertTrue(checker.check(history, flagged));
+		//A look that starts after the flag returned must see it.
+		history.set(1, operation(1, "look", before, 21, 25));
+		assertFalse(checker.check(history, flagged));
+		assertTrue(checker.getFailure().contains("look"));
+	}
+
+	@Test
+	public void laterRepliesOnlyFitLater()
+	{
+		Board played = new Board(SIZE, MINES, 20, Storage.HEAP);
+		played.processFlag("flag 3 3");
+		String both = played.processFlag("flag 4 4");
+		//Both overlapping flags answer with both flags, which only fits if the replies are looked at after both.
+		List<Operation> history = new ArrayList<Operation>();
+		history.add(operation(0, "flag 3 3", both, 10, 30));
+		history.add(operation(1, "flag 4 4", both, 20, 40));
+		assertFalse(new LinearizabilityChecker(initial(20), Replies.ATOMIC).check(history, both));
+		assertTrue(new LinearizabilityChecker(initial(20), Replies.LATER).check(history, both));
+		//Once player 1 only flags after player 0's flag returned, player 0 can't have seen it at all.
+		history.set(1, operation(1, "flag 4 4", both, 31, 40));
+		assertFalse(new LinearizabilityChecker(initial(20), Replies.LATER).check(history, both));
+		assertTrue(new LinearizabilityChecker(initial(20), Replies.IGNORED).check(history, both));
+	}
+
+	@Test
+	public void serialEnginesAreAtomic() throws InterruptedException
+	{
+		for (int round = 0; round < 5; round++)
+		{
+			checkStress(new CombiningBoard(new Board(SIZE, MINES, round, Storage.HEAP)), round, Replies.ATOMIC);
+			Board owned = new Board(SIZE, MINES, round, Storage.HEAP);
+			owned.setSingleWriter();
+			BoardActor actor = new BoardActor(owned);
+			checkStress(actor, round, Replies.ATOMIC);
+			actor.shutdown();
+		}
+	}
+
+	@Test
+	public void tileLockedBoardKeepsItsEffects() throws InterruptedException
+	{
+		for (int round = 0; round < 10; round++)
+		{
+			checkStress(new Board(SIZE, MINES, round, Storage.HEAP), round, Replies.LATER);
+		}
+	}
+
+	@Test
+	public void staleLooksAreCaught() throws InterruptedException
+	{
+		final String first = new Board(SIZE, MINES, 7, Storage.HEAP).processLook();
+		GameBoard stale = new CombiningBoard(new Board(SIZE, MINES, 7, Storage.HEAP)
+		{
+			@Override
+			public String processLook()
+			{
+				return first;
+			}
+		});
+		List<Operation> history = BoardStress.play(stale, 4, 100, 7);
+		LinearizabilityChecker checker = new LinearizabilityChecker(initial(7), Replies.ATOMIC);
+		assertFalse(checker.check(history, null));
+		assertNotNull(checker.getFailure());
+	}
+
+	private static void checkStress(GameBoard board, long seed, Replies replies) throws InterruptedException
+	{
+		List<Operation> history = BoardStress.play(board, 8, 100, seed);
+		LinearizabilityChecker checker = new LinearizabilityChecker(initial(seed), replies);
+		assertTrue(checker.getFailure(), checker.check(history, board.processLook()));
+	}
+
+	private static Board initial(long seed)
+	{
+		return new Board(SIZE, MINES, seed, Storage.PERSISTENT);
+	}
+
+	private static long record(List<Operation> history, int player, Board board, String input, long invoked,
+			long returned)
+	{
+		String output;
+		if (input.startsWith("dig"))
+		{
+			output = board.processDig(input);
+		}
+		else if (input.startsWith("flag"))
+		{
+			output = board.processFlag(input);
+		}
+		else if (input.startsWith("deflag"))
+		{
+			output = board.processDeflag(input);
+		}
+		else if (input.startsWith("spy"))
+		{
+			output = board.processSpy(input);
+		}
+		else
+		{
+			output = board.processLook();
+		}
+		history.add(operation(player, input, output, invoked, returned));
+		return returned;
+	}
+
+	private static Operation operation(int player, String input, String output, long invoked, long returned)
+	{
+		Operation operation = new Operation(player, input, invoked);
+		operation.finish(output, returned);
+		return operation;
+	}
+}
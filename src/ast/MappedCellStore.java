@@ -0,0 +1,80 @@
+package ast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class is a CellStore whose bytes live in a memory-mapped file instead of a byte[], so a board can be
+ * bigger than the Java heap: the operating system pages squares in and out as they are touched, and the
+ * garbage collector never sees them. The encoding is exactly that of CellStore.
+ *
+ * A MappedByteBuffer has no compare-and-set, so set and compareAndSet synchronize on the store instead:
+ * every write is still atomic with respect to every other, just not lock-free.
+ *
+ * A mapping can hold at most Integer.MAX_VALUE bytes, which CellStore already requires of every board.
+ * The mapping stays valid after the file is closed, and is released once the store itself is collected.
+ *
+ * @author DeJuan Anderson
+ */
+public class MappedCellStore extends CellStore
+{
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Creates a store backed by a temporary file, which is deleted when the JVM exits.
+	 */
+	public MappedCellStore(int size) throws IOException
+	{
+		this(size, temporaryFile());
+	}
+
+	/**
+	 * Creates a store backed by the given file, which is truncated or extended to size*size bytes.
+	 * Every square starts out untouched, unflagged and without a bomb.
+	 */
+	public MappedCellStore(int size, File backingFile) throws IOException
+	{
+		super(size, false);
+		long length = (long) size*size;
+		try (RandomAccessFile file = new RandomAccessFile(backingFile, "rw"))
+		{
+			// Truncating first makes sure any old contents are gone; the extension reads back as zeros.
+			file.setLength(0);
+			file.setLength(length);
+			this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+	}
+
+	@Override
+	protected int get(int index)
+	{
+		return this.buffer.get(index) & 0xff;
+	}
+
+	@Override
+	protected synchronized void set(int index, int value)
+	{
+		this.buffer.put(index, (byte) value);
+	}
+
+	@Override
+	protected synchronized boolean compareAndSet(int index, int expected, int value)
+	{
+		if ((this.buffer.get(index) & 0xff) != expected)
+		{
+			return false;
+		}
+		this.buffer.put(index, (byte) value);
+		return true;
+	}
+
+	private static File temporaryFile() throws IOException
+	{
+		File file = File.createTempFile("minesweeper", ".cells");
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,217 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class places an exact number of bombs on an empty CellStore, reproducibly from a seed.
+ *
+ * Flipping a coin for every square (which is what Square and the old Board constructor did with Math.random)
+ * only gets the number of bombs right on average, and every board shares the one Random behind Math.random.
+ * Here the board is cut into bands of whole rows. First the bombs are split between the bands: the number of
+ * bombs in a band is drawn the way it falls out when mines squares are picked at random from the whole board
+ * (a hypergeometric draw), one band after the other, so the bands always add up to exactly mines. Then every band
+ * places its share with Floyd's sampling algorithm, which picks k distinct squares out of n in k steps, using
+ * the CellStore itself as the set of squares already picked. Bands are independent, so on big boards they are
+ * filled in parallel.
+ *
+ * Every band gets its own SplittableRandom, split from the one seeded with seed before any band starts, so the
+ * layout only depends on the seed, the size and the number of bombs, not on how many threads filled it.
+ *
+ * Hypergeometric draws for large bands use the normal approximation (the exact draw costs one step per square,
+ * which is what the bands are there to avoid). The total is exact either way; only the spread between bands is
+ * approximated, and with BAND_SQUARES squares per band it is indistinguishable in practice.
+ *
+ * @author DeJuan Anderson
+ */
+public class MineLayout
+{
+	/**
+	 * Roughly how many squares a band holds. Boards with fewer squares than this are filled on one thread.
+	 */
+	public static final int BAND_SQUARES = 1 << 16;
+
+	/**
+	 * The fraction of squares holding a bomb on a board whose number of bombs wasn't given.
+	 */
+	public static final double DEFAULT_DENSITY = .25;
+
+	private static final int EXACT_DRAW_LIMIT = 1 << 10;
+
+	private MineLayout()
+	{
+	}
+
+	/**
+	 * @return the number of bombs a board of size x size with the given density holds.
+	 */
+	public static long minesFor(int size, double density)
+	{
+		if (density < 0 || density > 1)
+		{
+			throw new IllegalArgumentException("The density of bombs must be between 0 and 1!");
+		}
+		return Math.round(density * size * size);
+	}
+
+	/**
+	 * Places exactly mines bombs on cells, which must not have any yet.
+	 */
+	public static void place(CellStore cells, long mines, long seed)
+	{
+		place(cells, mines, seed, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Same as place(cells, mines, seed), with the bands filled on the given pool.
+	 */
+	public static void place(CellStore cells, long mines, long seed, ForkJoinPool pool)
+	{
+		int squares = cells.getCellCount();
+		if (mines < 0 || mines > squares)
+		{
+			throw new IllegalArgumentException("The board cannot hold " + mines + " bombs!");
+		}
+		int size = cells.getSize();
+		int rowsPerBand = Math.max(1, BAND_SQUARES / size);
+		SplittableRandom random = new SplittableRandom(seed);
+		ArrayList<Band> bands = new ArrayList<Band>();
+		int squaresLeft = squares;
+		long minesLeft = mines;
+		for (int firstRow = 0; firstRow < size; firstRow += rowsPerBand)
+		{
+			int bandSquares = Math.min(rowsPerBand, size - firstRow) * size;
+			int bandMines = (int) hypergeometric(squaresLeft, minesLeft, bandSquares, random);
+			bands.add(new Band(cells, firstRow * size, bandSquares, bandMines, random.split()));
+			squaresLeft -= bandSquares;
+			minesLeft -= bandMines;
+		}
+		if (bands.size() == 1)
+		{
+			bands.get(0).fill();
+		}
+		else
+		{
+			pool.invoke(new FillTask(bands, 0, bands.size()));
+		}
+	}
+
+	/**
+	 * Draws how many of the mines bombs end up among draws squares, when mines of population squares are
+	 * picked at random.
+	 */
+	static long hypergeometric(long population, long mines, long draws, SplittableRandom random)
+	{
+		long low = Math.max(0, draws - (population - mines));
+		long high = Math.min(draws, mines);
+		if (low == high)
+		{
+			return low;
+		}
+		if (draws <= EXACT_DRAW_LIMIT)
+		{
+			long drawn = 0;
+			for (long i = 0; i < draws; i++)
+			{
+				if (random.nextLong(population - i) < mines - drawn)
+				{
+					drawn++;
+				}
+			}
+			return drawn;
+		}
+		double p = mines / (double) population;
+		double mean = draws * p;
+		double variance = mean * (1 - p) * (population - draws) / (population - 1);
+		long drawn = Math.round(mean + Math.sqrt(variance) * gaussian(random));
+		return Math.max(low, Math.min(high, drawn));
+	}
+
+	/**
+	 * A standard normal deviate (Box-Muller), since SplittableRandom has no nextGaussian.
+	 */
+	private static double gaussian(SplittableRandom random)
+	{
+		return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+	}
+
+	/**
+	 * A run of consecutive squares that gets exactly mines of the bombs.
+	 */
+	private static class Band
+	{
+		private final CellStore cells;
+		private final int first;
+		private final int squares;
+		private final int mines;
+		private final SplittableRandom random;
+
+		Band(CellStore cells, int first, int squares, int mines, SplittableRandom random)
+		{
+			this.cells = cells;
+			this.first = first;
+			this.squares = squares;
+			this.mines = mines;
+			this.random = random;
+		}
+
+		/**
+		 * Floyd's algorithm. When more than half the band gets a bomb, it is cheaper to fill the band and
+		 * pick the squares that stay empty instead.
+		 */
+		void fill()
+		{
+			boolean dense = this.mines > this.squares / 2;
+			int picks = dense ? this.squares - this.mines : this.mines;
+			if (dense)
+			{
+				for (int offset = 0; offset < this.squares; offset++)
+				{
+					this.cells.setBomb(this.first + offset, true);
+				}
+			}
+			for (int j = this.squares - picks; j < this.squares; j++)
+			{
+				int pick = this.first + this.random.nextInt(j + 1);
+				if (this.cells.isBomb(pick) == dense)
+				{
+					this.cells.setBomb(pick, !dense);
+				}
+				else
+				{
+					this.cells.setBomb(this.first + j, !dense);
+				}
+			}
+		}
+	}
+
+	private static class FillTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayList<Band> bands;
+		private final int from;
+		private final int to;
+
+		FillTask(ArrayList<Band> bands, int from, int to)
+		{
+			this.bands = bands;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (this.to - this.from == 1)
+			{
+				this.bands.get(this.from).fill();
+				return;
+			}
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new FillTask(this.bands, this.from, middle), new FillTask(this.bands, middle, this.to));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package ast;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MineLayoutTest {
+
+	/**
+	 * My testing strategy for mine placement is:
+	 * 1) The number of bombs placed is exactly the number asked for, sparse, dense, empty and full.
+	 * 2) The layout only depends on the seed, not on how many threads fill the bands.
+	 * 3) Asking for more bombs than squares is rejected.
+	 */
+
+	private static int countBombs(CellStore cells)
+	{
+		int bombs = 0;
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			if (cells.isBomb(index))
+			{
+				bombs++;
+			}
+		}
+		return bombs;
+	}
+
+	@Test
+	public void placesExactlyTheNumberAskedFor()
+	{
+		int size = 700; //big enough for several bands
+		long[] counts = {0, 1, 1000, size*size/4, size*size*3/4, size*size - 1, size*size};
+		for (long mines : counts)
+		{
+			CellStore cells = new CellStore(size);
+			MineLayout.place(cells, mines, mines);
+			assertEquals(mines, countBombs(cells));
+		}
+	}
+
+	@Test
+	public void sameSeedSameLayoutOnAnyPool()
+	{
+		CellStore serial = new CellStore(600);
+		CellStore parallel = new CellStore(600);
+		MineLayout.place(serial, 90000, 12345, new ForkJoinPool(1));
+		MineLayout.place(parallel, 90000, 12345, new ForkJoinPool(4));
+		for (int index = 0; index < serial.getCellCount(); index++)
+		{
+			assertEquals(serial.isBomb(index), parallel.isBomb(index));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManyBombs()
+	{
+		MineLayout.place(new CellStore(3), 10, 0);
+	}
+}
@@ -0,0 +1,141 @@
+package ast;
+
+/**
+ * This class computes the adjacent bomb count of every square of a CellStore at once.
+ *
+ * Rather than visiting the eight neighbors of each square one at a time, it works a row at a time on
+ * bitboards: each row's bombs are packed into a long[] with one bit per column, so one long covers 64 squares.
+ * Shifting a row's words one bit left or right lines every square up with its west or east neighbor,
+ * so the eight neighbor masks of 64 squares are available as eight longs. Those are summed with a
+ * bit-sliced adder (four longs s0..s3 hold the binary digits of 64 counts in parallel), and the
+ * resulting counts are written back into the store.
+ *
+ * Only three rows of bitboards are ever held, so the work is linear in the number of squares and nothing
+ * is allocated per square.
+ *
+ * @author DeJuan Anderson
+ */
+public class NeighborCounter
+{
+	private NeighborCounter()
+	{
+	}
+
+	/**
+	 * Sets the count of every square in the store to the number of bombs adjacent to it.
+	 */
+	public static void countAll(CellStore cells)
+	{
+		int size = cells.getSize();
+		int words = (size + 63) >>> 6;
+		long[] above = new long[words];
+		long[] current = new long[words];
+		long[] below = new long[words];
+		long[] neighbors = new long[8];
+		loadRow(cells, 0, current);
+
+		for (int row = 0; row < size; row++)
+		{
+			if (row + 1 < size)
+			{
+				loadRow(cells, row + 1, below);
+			}
+			else
+			{
+				clear(below);
+			}
+
+			for (int w = 0; w < words; w++)
+			{
+				// The eight neighbors: the whole row above and below, plus west and east on all three rows.
+				neighbors[0] = above[w];
+				neighbors[1] = west(above, w);
+				neighbors[2] = east(above, w);
+				neighbors[3] = west(current, w);
+				neighbors[4] = east(current, w);
+				neighbors[5] = below[w];
+				neighbors[6] = west(below, w);
+				neighbors[7] = east(below, w);
+
+				long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+				for (int n = 0; n < neighbors.length; n++)
+				{
+					// Ripple-carry add of a one-bit input into the four-bit counters.
+					long carry0 = s0 & neighbors[n];
+					s0 ^= neighbors[n];
+					long carry1 = s1 & carry0;
+					s1 ^= carry0;
+					long carry2 = s2 & carry1;
+					s2 ^= carry1;
+					s3 |= carry2;
+				}
+
+				int firstCol = w << 6;
+				int lastCol = Math.min(firstCol + 64, size);
+				int index = cells.index(row, firstCol);
+				for (int col = firstCol, bit = 0; col < lastCol; col++, bit++, index++)
+				{
+					int count = (int) (((s0 >>> bit) & 1) | (((s1 >>> bit) & 1) << 1)
+							| (((s2 >>> bit) & 1) << 2) | (((s3 >>> bit) & 1) << 3));
+					cells.setCount(index, count);
+				}
+			}
+
+			long[] recycled = above;
+			above = current;
+			current = below;
+			below = recycled;
+		}
+	}
+
+	/**
+	 * Packs the bombs of one row into bits, column c going to bit (c % 64) of word (c / 64).
+	 */
+	private static void loadRow(CellStore cells, int row, long[] bits)
+	{
+		clear(bits);
+		int size = cells.getSize();
+		int index = cells.index(row, 0);
+		for (int col = 0; col < size; col++, index++)
+		{
+			if (cells.isBomb(index))
+			{
+				bits[col >>> 6] |= 1L << (col & 63);
+			}
+		}
+	}
+
+	/**
+	 * Returns word w of the row shifted so that each column holds the bit of the column to its west.
+	 */
+	private static long west(long[] bits, int w)
+	{
+		long shifted = bits[w] << 1;
+		if (w > 0)
+		{
+			shifted |= bits[w - 1] >>> 63;
+		}
+		return shifted;
+	}
+
+	/**
+	 * Returns word w of the row shifted so that each column holds the bit of the column to its east.
+	 */
+	private static long east(long[] bits, int w)
+	{
+		long shifted = bits[w] >>> 1;
+		if (w + 1 < bits.length)
+		{
+			shifted |= bits[w + 1] << 63;
+		}
+		return shifted;
+	}
+
+	private static void clear(long[] bits)
+	{
+		for (int i = 0; i < bits.length; i++)
+		{
+			bits[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package ast;
+
+import java.util.Arrays;
+
+/**
+ * This class carries out a whole dig cascade while holding locks only for the moment it takes to write it.
+ *
+ * It works in two steps. First it plans the cascade without taking any lock, exactly the way FloodFill would
+ * carry it out, but only reading the board: before it reads any square, it reads the stamp of that square's
+ * tile (see TileLocks.tryOptimisticRead), and it remembers every stamp it read. Then it commits: it takes the
+ * lock of every tile it read, in increasing order, but only if the tile hasn't been written since its stamp was
+ * read (TileLocks.tryLockIfUnchanged). If every tile is still unchanged, so is everything the plan was based
+ * on, and the planned squares are revealed, in the order they were planned, before the tiles are let go.
+ * Otherwise nothing is written, every tile taken so far is let go, and tryFill says so; the Board then tries
+ * again, or falls back to a cascade that holds its tiles throughout.
+ *
+ * Flags are like any other write: a flag or deflag holds its square's tile while it makes its compare-and-set,
+ * so one placed on a square the plan read since its stamp was taken changes that stamp, and tryLockIfUnchanged
+ * makes the commit fail. Once the commit holds its tiles, no flag can land on them until every planned square is
+ * revealed, so the squares need no checking of their own.
+ *
+ * Like FloodFill, the queue and visited set are kept between cascades and only the squares visited are
+ * cleared, so an OptimisticFill must only be used by one thread at a time.
+ *
+ * @author DeJuan Anderson
+ */
+public class OptimisticFill
+{
+	private static final int INITIAL_QUEUE = 64;
+
+	private final CellStore cells;
+	private final TileLocks locks;
+	private final int size;
+	private final long[] visited;
+	private int[] queue = new int[INITIAL_QUEUE];
+	private int tail;
+
+	/**
+	 * The squares to reveal, in the order they were planned.
+	 */
+	private int[] planned = new int[INITIAL_QUEUE];
+	private int plannedCount;
+
+	/**
+	 * The stamp read for every tile the plan read from, 0 for the others, and the list of those tiles.
+	 */
+	private final long[] stamps;
+	private int[] tiles = new int[INITIAL_QUEUE];
+	private int tileCount;
+	private int lockedCount;
+
+	private long commitNanos;
+
+	public OptimisticFill(CellStore cells, TileLocks locks)
+	{
+		this.cells = cells;
+		this.locks = locks;
+		this.size = cells.getSize();
+		this.visited = new long[(cells.getCellCount() + 63) >>> 6];
+		this.stamps = new long[locks.getTileCount()];
+	}
+
+	/**
+	 * Digs the square at origin and carries out the cascade from it, if the square is neither a bomb, flagged nor
+	 * already dug. A dig on a dug square does nothing, even if a flag has kept squares around it hidden since, so
+	 * its cascade is never carried out again.
+	 * @return true if the cascade was written; false, having written nothing, if the board changed under the
+	 *         plan, or the origin turned out to be a bomb, flagged or already dug
+	 */
+	public boolean tryFill(int origin)
+	{
+		this.commitNanos = 0;
+		this.plannedCount = 0;
+		try
+		{
+			return plan(origin) && commit();
+		}
+		finally
+		{
+			clear();
+		}
+	}
+
+	/**
+	 * @return how long, in nanoseconds, the last call to tryFill held tiles, 0 if it never took one.
+	 */
+	public long getCommitNanos()
+	{
+		return this.commitNanos;
+	}
+
+	/**
+	 * @return the number of squares the last successful call to tryFill planned to reveal.
+	 */
+	public int getPlannedCount()
+	{
+		return this.plannedCount;
+	}
+
+	/**
+	 * Works out every square the cascade from origin reveals, reading the board without any lock.
+	 * @return false if a tile was being written, or the origin can't be dug or already is
+	 */
+	private boolean plan(int origin)
+	{
+		if (!stampArea(origin))
+		{
+			return false;
+		}
+		int cell = this.cells.get(origin);
+		if ((cell & (CellStore.BOMB | CellStore.FLAGGED | CellStore.DUG)) != 0)
+		{
+			return false;
+		}
+		visit(origin);
+		for (int head = 0; head < this.tail; head++)
+		{
+			int current = this.queue[head];
+			if (current != origin)
+			{
+				cell = this.cells.get(current);
+				if ((cell & (CellStore.BOMB | CellStore.FLAGGED)) != 0)
+				{
+					continue;
+				}
+			}
+			//Every square read from here on is in the 3x3 area around current.
+			if (!stampArea(current))
+			{
+				return false;
+			}
+			addPlanned(current);
+			if (this.cells.peekCount(current) != 0)
+			{
+				continue;
+			}
+			int row = current / this.size;
+			int col = current - row*this.size;
+			for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, this.size - 1); r++)
+			{
+				for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, this.size - 1); c++)
+				{
+					visit(r*this.size + c);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the tiles the plan read from, checks nothing changed, and reveals the planned squares.
+	 * @return false, having written nothing, if something changed
+	 */
+	private boolean commit()
+	{
+		Arrays.sort(this.tiles, 0, this.tileCount);
+		long start = System.nanoTime();
+		try
+		{
+			for (int i = 0; i < this.tileCount; i++)
+			{
+				int tile = this.tiles[i];
+				if (!this.locks.tryLockIfUnchanged(tile, this.stamps[tile]))
+				{
+					return false;
+				}
+				this.lockedCount++;
+			}
+			for (int i = 0; i < this.plannedCount; i++)
+			{
+				int index = this.planned[i];
+				this.cells.getCount(index);
+				this.cells.tryReveal(index);
+			}
+			return true;
+		}
+		finally
+		{
+			for (int i = this.lockedCount - 1; i >= 0; i--)
+			{
+				this.locks.unlock(this.tiles[i]);
+			}
+			if (this.lockedCount > 0)
+			{
+				this.commitNanos = System.nanoTime() - start;
+			}
+		}
+	}
+
+	/**
+	 * Reads the stamps of the tiles of the square at index and the squares around it, unless already read.
+	 * @return false if one of them is being written right now
+	 */
+	private boolean stampArea(int index)
+	{
+		int row = index / this.size;
+		int col = index - row*this.size;
+		int firstTileRow = Math.max(row - 1, 0) >>> TileLocks.TILE_SHIFT;
+		int lastTileRow = Math.min(row + 1, this.size - 1) >>> TileLocks.TILE_SHIFT;
+		int firstTileCol = Math.max(col - 1, 0) >>> TileLocks.TILE_SHIFT;
+		int lastTileCol = Math.min(col + 1, this.size - 1) >>> TileLocks.TILE_SHIFT;
+		int tilesPerRow = this.locks.getTilesPerRow();
+		for (int tileRow = firstTileRow; tileRow <= lastTileRow; tileRow++)
+		{
+			for (int tileCol = firstTileCol; tileCol <= lastTileCol; tileCol++)
+			{
+				int tile = tileRow*tilesPerRow + tileCol;
+				if (this.stamps[tile] != 0)
+				{
+					continue;
+				}
+				long stamp = this.locks.tryOptimisticRead(tile);
+				if (stamp == 0)
+				{
+					return false;
+				}
+				this.stamps[tile] = stamp;
+				if (this.tileCount == this.tiles.length)
+				{
+					this.tiles = Arrays.copyOf(this.tiles, this.tileCount*2);
+				}
+				this.tiles[this.tileCount++] = tile;
+			}
+		}
+		return true;
+	}
+
+	private void addPlanned(int index)
+	{
+		if (this.plannedCount == this.planned.length)
+		{
+			this.planned = Arrays.copyOf(this.planned, Math.min(this.plannedCount*2, this.cells.getCellCount()));
+		}
+		this.planned[this.plannedCount++] = index;
+	}
+
+	/**
+	 * Queues the square unless it has already been visited in this cascade.
+	 */
+	private void visit(int index)
+	{
+		long bit = 1L << index;
+		int word = index >>> 6;
+		if ((this.visited[word] & bit) != 0)
+		{
+			return;
+		}
+		this.visited[word] |= bit;
+		if (this.tail == this.queue.length)
+		{
+			this.queue = Arrays.copyOf(this.queue, Math.min(this.tail*2, this.cells.getCellCount()));
+		}
+		this.queue[this.tail++] = index;
+	}
+
+	/**
+	 * Forgets the visited squares and the stamps, ready for the next cascade. The planned squares are only
+	 * forgotten by the next call to tryFill, so getPlannedCount can still be asked.
+	 */
+	private void clear()
+	{
+		for (int i = 0; i < this.tail; i++)
+		{
+			this.visited[this.queue[i] >>> 6] = 0;
+		}
+		for (int i = 0; i < this.tileCount; i++)
+		{
+			this.stamps[this.tiles[i]] = 0;
+		}
+		this.tail = 0;
+		this.tileCount = 0;
+		this.lockedCount = 0;
+	}
+}
@@ -0,0 +1,210 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class carries out very large dig cascades on a ForkJoinPool.
+ *
+ * A cascade always starts on the serial FloodFill. Only if it is still running after SERIAL_BUDGET squares
+ * does this class take over: the squares the serial fill has visited are copied into a shared visited bitmap,
+ * and the serial fill's unprocessed queue becomes the first frontier. From then on the cascade proceeds one
+ * frontier at a time. Each frontier is split into contiguous chunks of at most CHUNK squares (neighboring
+ * entries of a breadth-first frontier are neighbors on the board too, so each chunk covers one stretch of the
+ * region's edge), and the chunks are expanded in parallel. A square is claimed by whichever task first sets its
+ * bit in the visited bitmap with a compare-and-set, so every square is revealed and expanded exactly once.
+ * Frontiers smaller than CHUNK are expanded on the calling thread.
+ *
+ * Squares are only ever written by the task that claimed them, and ForkJoinPool.invoke does not return until
+ * every task has finished, so the Board lock held by the caller still covers the whole cascade.
+ *
+ * @author DeJuan Anderson
+ */
+public class ParallelFloodFill
+{
+	/**
+	 * Cascades that visit fewer squares than this never leave the serial FloodFill.
+	 */
+	public static final int SERIAL_BUDGET = 1 << 16;
+
+	/**
+	 * Largest piece of a frontier handled by a single task.
+	 */
+	public static final int CHUNK = 1 << 12;
+
+	private final CellStore cells;
+	private final int size;
+	private final ForkJoinPool pool;
+	private final AtomicLongArray visited;
+
+	public ParallelFloodFill(CellStore cells, ForkJoinPool pool)
+	{
+		this.cells = cells;
+		this.size = cells.getSize();
+		this.pool = pool;
+		this.visited = new AtomicLongArray((cells.getCellCount() + 63) >>> 6);
+	}
+
+	/**
+	 * Runs the cascade from the square at origin, which the caller has already dug, using serial
+	 * for small regions and the pool for the rest of large ones.
+	 * @return the number of squares visited, including the origin
+	 */
+	public int fill(FloodFill serial, int origin)
+	{
+		serial.begin(origin);
+		if (serial.advance(SERIAL_BUDGET))
+		{
+			return serial.finish();
+		}
+
+		int[] processed = new int[serial.getProcessedCount()];
+		for (int i = 0; i < processed.length; i++)
+		{
+			processed[i] = serial.getVisited(i);
+			claim(processed[i]);
+		}
+		int[] frontier = new int[serial.getVisitedCount() - processed.length];
+		for (int i = 0; i < frontier.length; i++)
+		{
+			frontier[i] = serial.getVisited(processed.length + i);
+			claim(frontier[i]);
+		}
+		int visitedCount = serial.finish();
+
+		ArrayList<int[]> frontiers = new ArrayList<int[]>();
+		frontiers.add(processed);
+		while (frontier.length > 0)
+		{
+			frontiers.add(frontier);
+			if (frontier.length <= CHUNK)
+			{
+				frontier = expand(frontier, 0, frontier.length);
+			}
+			else
+			{
+				frontier = this.pool.invoke(new ExpandTask(frontier, 0, frontier.length));
+			}
+			visitedCount += frontier.length;
+		}
+
+		for (int[] done : frontiers)
+		{
+			for (int index : done)
+			{
+				this.visited.set(index >>> 6, 0);
+			}
+		}
+		return visitedCount;
+	}
+
+	/**
+	 * Expands frontier[from, to) and returns the squares newly visited by it: the next frontier.
+	 */
+	private int[] expand(int[] frontier, int from, int to)
+	{
+		int[] next = new int[Math.max(16, (to - from)*2)];
+		int count = 0;
+		for (int i = from; i < to; i++)
+		{
+			int current = frontier[i];
+			if (this.cells.isBomb(current))
+			{
+				continue;
+			}
+			int adjacentBombs = this.cells.getCount(current);
+			if (!this.cells.tryReveal(current) || adjacentBombs != 0)
+			{
+				continue;
+			}
+			int row = current / this.size;
+			int col = current - row*this.size;
+			int firstRow = row > 0 ? row - 1 : row;
+			int lastRow = row < this.size - 1 ? row + 1 : row;
+			int firstCol = col > 0 ? col - 1 : col;
+			int lastCol = col < this.size - 1 ? col + 1 : col;
+			for (int r = firstRow; r <= lastRow; r++)
+			{
+				int rowStart = r*this.size;
+				for (int c = firstCol; c <= lastCol; c++)
+				{
+					int adjacent = rowStart + c;
+					if (claim(adjacent))
+					{
+						if (count == next.length)
+						{
+							int[] grown = new int[next.length*2];
+							System.arraycopy(next, 0, grown, 0, count);
+							next = grown;
+						}
+						next[count++] = adjacent;
+					}
+				}
+			}
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(next, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/**
+	 * Sets the visited bit of a square.
+	 * @return true if this call set it, false if the square had already been visited
+	 */
+	private boolean claim(int index)
+	{
+		int word = index >>> 6;
+		long bit = 1L << index;
+		while (true)
+		{
+			long old = this.visited.get(word);
+			if ((old & bit) != 0)
+			{
+				return false;
+			}
+			if (this.visited.compareAndSet(word, old, old | bit))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Expands a slice of a frontier, splitting it in half until the pieces are at most CHUNK long.
+	 */
+	private class ExpandTask extends RecursiveTask<int[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int[] frontier;
+		private final int from;
+		private final int to;
+
+		ExpandTask(int[] frontier, int from, int to)
+		{
+			this.frontier = frontier;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected int[] compute()
+		{
+			if (this.to - this.from <= CHUNK)
+			{
+				return expand(this.frontier, this.from, this.to);
+			}
+			int middle = (this.from + this.to) >>> 1;
+			ExpandTask left = new ExpandTask(this.frontier, this.from, middle);
+			left.fork();
+			int[] right = new ExpandTask(this.frontier, middle, this.to).compute();
+			int[] leftResult = left.join();
+			int[] merged = new int[leftResult.length + right.length];
+			System.arraycopy(leftResult, 0, merged, 0, leftResult.length);
+			System.arraycopy(right, 0, merged, leftResult.length, right.length);
+			return merged;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package ast;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is a CellStore that can be forked in constant time: fork returns a second store holding exactly
+ * the same squares, and from then on each store can be written without the other seeing it. A fork nobody
+ * writes to is a snapshot, which spectators, saving and analytics can read at leisure while the game goes on.
+ *
+ * The squares live in leaves of TILE x TILE squares, the same tiles as TileLocks, packed 4 to an int like in
+ * CellStore. The leaves hang off a tree of nodes with FANOUT children each, so the square at an index is found by
+ * walking from the root through the digits of its tile number. Two stores share every node they haven't written
+ * since they were forked; writing a square copies its leaf and the nodes above it (path copying), and no other.
+ * A store starts out with every leaf the same, empty, shared leaf, so untouched tiles cost nothing either.
+ *
+ * Which nodes a store may write in place is decided by an edit token: a node belongs to the store whose current
+ * token it was created with. Forking gives both stores new tokens, so every existing node becomes shared and is
+ * copied before it is next written; the first write to a tile after a fork copies it, every later one writes the
+ * copy in place. Writers to different tiles may copy the nodes above them at the same time, so a node's children
+ * are swapped in with compare-and-set, and a writer that loses just carries on with the winner's copy.
+ *
+ * Reading takes no lock. Writing takes the read lock of freeze, which forking takes the write lock of for the
+ * moment it takes to swap the tokens, so no write can land in a node after it has been shared. That only makes
+ * each square consistent; to fork a whole board between two commands, Board.fork also holds every tile.
+ *
+ * @author DeJuan Anderson
+ */
+public class PersistentCellStore extends CellStore
+{
+	private static final int FANOUT_SHIFT = 5;
+	private static final int FANOUT = 1 << FANOUT_SHIFT;
+	private static final int LEAF_SHIFT = 2*TileLocks.TILE_SHIFT;
+	private static final int LEAF_INTS = (1 << LEAF_SHIFT) >>> 2;
+
+	/**
+	 * The leaf of every tile nobody has written yet. It belongs to no store, so it is always copied.
+	 */
+	private static final Leaf EMPTY = new Leaf(null, new AtomicIntegerArray(LEAF_INTS));
+
+	private final int tilesPerRow;
+	private final int height;
+	private final AtomicReference<Node> root;
+	private final StampedLock freeze = new StampedLock();
+	private volatile Object edit = new Object();
+
+	/**
+	 * The number of leaves copied so far, shared by a store and all its forks.
+	 */
+	private final AtomicLong copiedTiles;
+
+	/**
+	 * One level of the tree. children holds Nodes above the last level, and Leaves on it.
+	 */
+	private static class Node
+	{
+		final Object edit;
+		final AtomicReferenceArray<Object> children;
+
+		Node(Object edit, AtomicReferenceArray<Object> children)
+		{
+			this.edit = edit;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * The squares of one tile, row by row, 4 to an int.
+	 */
+	private static class Leaf
+	{
+		final Object edit;
+		final AtomicIntegerArray cells;
+
+		Leaf(Object edit, AtomicIntegerArray cells)
+		{
+			this.edit = edit;
+			this.cells = cells;
+		}
+	}
+
+	/**
+	 * Creates a store of size x size squares, all untouched, unflagged and without a bomb.
+	 */
+	public PersistentCellStore(int size)
+	{
+		super(size, false);
+		this.tilesPerRow = (size + TileLocks.TILE - 1) >>> TileLocks.TILE_SHIFT;
+		int tiles = this.tilesPerRow*this.tilesPerRow;
+		int height = 1;
+		while ((long) 1 << (FANOUT_SHIFT*height) < tiles)
+		{
+			height++;
+		}
+		this.height = height;
+		this.root = new AtomicReference<Node>(emptyTree(height));
+		this.copiedTiles = new AtomicLong();
+	}
+
+	private PersistentCellStore(PersistentCellStore original, Node root)
+	{
+		super(original.getSize(), false);
+		this.tilesPerRow = original.tilesPerRow;
+		this.height = original.height;
+		this.root = new AtomicReference<Node>(root);
+		this.copiedTiles = original.copiedTiles;
+	}
+
+	/**
+	 * @return a store holding the same squares as this one does right now, in constant time. Writes to either
+	 *         store are never seen by the other.
+	 */
+	public PersistentCellStore fork()
+	{
+		long stamp = this.freeze.writeLock();
+		try
+		{
+			this.edit = new Object();
+			return new PersistentCellStore(this, this.root.get());
+		}
+		finally
+		{
+			this.freeze.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of tiles copied because they were written after a fork, by this store and every store
+	 *         forked from it or from which it was forked.
+	 */
+	public long getCopiedTiles()
+	{
+		return this.copiedTiles.get();
+	}
+
+	@Override
+	protected int get(int index)
+	{
+		int row = index / getSize();
+		int col = index - row*getSize();
+		int tile = (row >>> TileLocks.TILE_SHIFT)*this.tilesPerRow + (col >>> TileLocks.TILE_SHIFT);
+		int offset = ((row & (TileLocks.TILE - 1)) << TileLocks.TILE_SHIFT) | (col & (TileLocks.TILE - 1));
+		Node node = this.root.get();
+		for (int level = this.height - 1; level > 0; level--)
+		{
+			node = (Node) node.children.get((tile >>> (FANOUT_SHIFT*level)) & (FANOUT - 1));
+		}
+		int word = ((Leaf) node.children.get(tile & (FANOUT - 1))).cells.get(offset >>> 2);
+		return (word >>> ((offset & 3) << 3)) & 0xff;
+	}
+
+	@Override
+	protected void set(int index, int value)
+	{
+		int offset = offsetOf(index);
+		int shift = (offset & 3) << 3;
+		long stamp = this.freeze.readLock();
+		try
+		{
+			AtomicIntegerArray cells = writableLeaf(index).cells;
+			while (true)
+			{
+				int word = cells.get(offset >>> 2);
+				if (cells.compareAndSet(offset >>> 2, word, (word & ~(0xff << shift)) | ((value & 0xff) << shift)))
+				{
+					return;
+				}
+			}
+		}
+		finally
+		{
+			this.freeze.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	protected boolean compareAndSet(int index, int expected, int value)
+	{
+		int offset = offsetOf(index);
+		int shift = (offset & 3) << 3;
+		long stamp = this.freeze.readLock();
+		try
+		{
+			AtomicIntegerArray cells = writableLeaf(index).cells;
+			while (true)
+			{
+				int word = cells.get(offset >>> 2);
+				if (((word >>> shift) & 0xff) != expected)
+				{
+					return false;
+				}
+				if (cells.compareAndSet(offset >>> 2, word, (word & ~(0xff << shift)) | ((value & 0xff) << shift)))
+				{
+					return true;
+				}
+			}
+		}
+		finally
+		{
+			this.freeze.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of the tile holding the square at index, as numbered by TileLocks.
+	 */
+	private int tileOf(int index)
+	{
+		int row = index / getSize();
+		int col = index - row*getSize();
+		return (row >>> TileLocks.TILE_SHIFT)*this.tilesPerRow + (col >>> TileLocks.TILE_SHIFT);
+	}
+
+	/**
+	 * @return where the square at index is within its leaf.
+	 */
+	private int offsetOf(int index)
+	{
+		int row = index / getSize();
+		int col = index - row*getSize();
+		return ((row & (TileLocks.TILE - 1)) << TileLocks.TILE_SHIFT) | (col & (TileLocks.TILE - 1));
+	}
+
+	/**
+	 * @return the leaf of the square at index, after copying it and the nodes above it if they don't belong to
+	 *         this store. The caller must hold the read lock of freeze, so the token can't change meanwhile.
+	 */
+	private Leaf writableLeaf(int index)
+	{
+		Object edit = this.edit;
+		int tile = tileOf(index);
+		Node node = this.root.get();
+		while (node.edit != edit)
+		{
+			Node copy = new Node(edit, copyChildren(node.children));
+			if (this.root.compareAndSet(node, copy))
+			{
+				node = copy;
+			}
+			else
+			{
+				node = this.root.get();
+			}
+		}
+		for (int level = this.height - 1; level >= 0; level--)
+		{
+			int slot = (tile >>> (FANOUT_SHIFT*level)) & (FANOUT - 1);
+			Object child = node.children.get(slot);
+			if (level == 0)
+			{
+				Leaf leaf = (Leaf) child;
+				while (leaf.edit != edit)
+				{
+					Leaf copy = new Leaf(edit, copyCells(leaf.cells));
+					if (node.children.compareAndSet(slot, leaf, copy))
+					{
+						this.copiedTiles.incrementAndGet();
+						leaf = copy;
+					}
+					else
+					{
+						leaf = (Leaf) node.children.get(slot);
+					}
+				}
+				return leaf;
+			}
+			Node next = (Node) child;
+			while (next.edit != edit)
+			{
+				Node copy = new Node(edit, copyChildren(next.children));
+				if (node.children.compareAndSet(slot, next, copy))
+				{
+					next = copy;
+				}
+				else
+				{
+					next = (Node) node.children.get(slot);
+				}
+			}
+			node = next;
+		}
+		throw new AssertionError("The tree has no leaves!");
+	}
+
+	/**
+	 * @return a tree of the given height whose leaves are all EMPTY. Its nodes belong to no store either, so
+	 *         every level can share one node, and the first write to a tile copies its path.
+	 */
+	private static Node emptyTree(int height)
+	{
+		Object child = height == 1 ? EMPTY : emptyTree(height - 1);
+		AtomicReferenceArray<Object> children = new AtomicReferenceArray<Object>(FANOUT);
+		for (int slot = 0; slot < FANOUT; slot++)
+		{
+			children.set(slot, child);
+		}
+		return new Node(null, children);
+	}
+
+	private static AtomicReferenceArray<Object> copyChildren(AtomicReferenceArray<Object> children)
+	{
+		AtomicReferenceArray<Object> copy = new AtomicReferenceArray<Object>(FANOUT);
+		for (int slot = 0; slot < FANOUT; slot++)
+		{
+			copy.set(slot, children.get(slot));
+		}
+		return copy;
+	}
+
+	private static AtomicIntegerArray copyCells(AtomicIntegerArray cells)
+	{
+		AtomicIntegerArray copy = new AtomicIntegerArray(LEAF_INTS);
+		for (int i = 0; i < LEAF_INTS; i++)
+		{
+			copy.set(i, cells.get(i));
+		}
+		return copy;
+	}
+}
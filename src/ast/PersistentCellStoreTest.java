@@ -0,0 +1,132 @@
+package ast;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PersistentCellStoreTest {
+
+	/**
+	 * My testing strategy for the persistent store is:
+	 * 1) A board kept in it plays exactly like one kept on the heap.
+	 * 2) After a fork, writes to either copy are invisible to the other, and only the tiles written are copied,
+	 *    whether the store or the whole Board is forked.
+	 * 3) Forks taken while another thread writes each hold the squares as they were at one moment.
+	 * 4) Forking a board kept on the heap is refused.
+	 */
+
+	@Test
+	public void playsLikeAHeapBoard()
+	{
+		Board heap = new Board(100, 1500, 17, Storage.HEAP);
+		Board persistent = new Board(100, 1500, 17, Storage.PERSISTENT);
+		Random random = new Random(17);
+		assertEquals(heap.processLook(), persistent.processLook());
+		for (int move = 0; move < 200; move++)
+		{
+			String location = random.nextInt(100) + " " + random.nextInt(100);
+			if (move % 4 == 3)
+			{
+				assertEquals(heap.processFlag("flag " + location), persistent.processFlag("flag " + location));
+			}
+			else
+			{
+				assertEquals(heap.processDig("dig " + location), persistent.processDig("dig " + location));
+			}
+			assertEquals(heap.processSpy("spy " + location), persistent.processSpy("spy " + location));
+		}
+		//A practice game forked from the live one starts where it is, and doesn't change it.
+		Board practice = persistent.fork();
+		String live = persistent.processLook();
+		assertEquals(live, practice.processLook());
+		for (int move = 0; move < 50; move++)
+		{
+			practice.processDig("dig " + random.nextInt(100) + " " + random.nextInt(100));
+		}
+		assertEquals(live, persistent.processLook());
+		assertEquals(heap.processLook(), persistent.processLook());
+	}
+
+	@Test
+	public void forksDontSeeEachOther()
+	{
+		PersistentCellStore live = new PersistentCellStore(300);
+		live.setBomb(live.index(5, 5), true);
+		long copiedBefore = live.getCopiedTiles();
+		PersistentCellStore fork = live.fork();
+		assertTrue(fork.isBomb(fork.index(5, 5)));
+
+		live.setFlagged(live.index(6, 6), true);
+		fork.setBomb(fork.index(5, 5), false);
+		fork.setDug(fork.index(299, 299));
+		assertTrue(live.isBomb(live.index(5, 5)));
+		assertFalse(live.isDug(live.index(299, 299)));
+		assertFalse(fork.isFlagged(fork.index(6, 6)));
+		assertFalse(fork.isBomb(fork.index(5, 5)));
+		assertTrue(fork.isDug(fork.index(299, 299)));
+		//(5, 5) and (6, 6) share a tile, copied once by each store; (299, 299) was never written before the fork.
+		assertEquals(3, live.getCopiedTiles() - copiedBefore);
+	}
+
+	@Test
+	public void forksTakenDuringWritesAreConsistent() throws InterruptedException
+	{
+		final PersistentCellStore live = new PersistentCellStore(200);
+		final int squares = live.getCellCount();
+		Thread writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				//Square i is only flagged after every square before it, so a fork must show a run of flags from 0.
+				for (int index = 0; index < squares; index++)
+				{
+					live.setFlagged(index, true);
+				}
+			}
+		});
+		writer.start();
+		ArrayList<PersistentCellStore> forks = new ArrayList<PersistentCellStore>();
+		while (writer.isAlive())
+		{
+			forks.add(live.fork());
+		}
+		writer.join();
+		forks.add(live.fork());
+		for (PersistentCellStore fork : forks)
+		{
+			int flagged = 0;
+			while (flagged < squares && fork.isFlagged(flagged))
+			{
+				flagged++;
+			}
+			for (int index = flagged; index < squares; index++)
+			{
+				assertFalse(fork.isFlagged(index));
+			}
+		}
+		assertEquals(squares, countFlags(forks.get(forks.size() - 1)));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void heapBoardsCantBeForked()
+	{
+		new Board(10).fork();
+	}
+
+	private static int countFlags(CellStore cells)
+	{
+		int flags = 0;
+		for (int index = 0; index < cells.getCellCount(); index++)
+		{
+			if (cells.isFlagged(index))
+			{
+				flags++;
+			}
+		}
+		return flags;
+	}
+}
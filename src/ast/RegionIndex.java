@@ -0,0 +1,280 @@
+package ast;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class labels the connected regions of squares with no adjacent bombs, so digging one of them can
+ * reveal its whole region directly instead of rediscovering it square by square.
+ *
+ * A square belongs to a region if it holds no bomb and its count is 0. Two such squares are in the same
+ * region if they are adjacent (diagonals included), which is exactly how far a dig cascade spreads. The regions
+ * are kept in a union-find structure: parent[i] leads to the representative of the region of square i,
+ * or is -1 if square i is in no region. Each region's squares are also linked into a circular list through
+ * next[], so a region can be walked without searching for it, and two lists are joined in constant time.
+ *
+ * A cascade treats a flagged square as a wall, so a region with a flagged square in it cannot be revealed
+ * in bulk. The number of flagged squares in each region is tracked so Board knows when to fall back to FloodFill.
+ *
+ * Regions only ever grow: counts only go down (when a bomb is dug up) and squares never gain bombs,
+ * so the bomb path of processDig only has to add squares, never split a region.
+ *
+ * Every public method holds the index's lock, since squares can be flagged from any thread at any time. It is a
+ * ReentrantLock rather than a monitor so a virtual thread waiting for it parks instead of pinning its carrier.
+ * The Board only reveals regions while holding every tile, and never waits for a tile while inside a RegionIndex
+ * method.
+ * A square is flagged a moment before flagChanged is called for it, so reveal checks every square's flag
+ * itself and never reveals a flagged one.
+ *
+ * @author DeJuan Anderson
+ */
+public class RegionIndex
+{
+	private final CellStore cells;
+	private final int size;
+	private final int[] parent;
+	private final int[] next;
+	private final HashMap<Integer, Integer> flagsInRegion = new HashMap<Integer, Integer>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Labels every region of the store, whose counts must already be set.
+	 */
+	public RegionIndex(CellStore cells)
+	{
+		this.cells = cells;
+		this.size = cells.getSize();
+		this.parent = new int[cells.getCellCount()];
+		this.next = new int[cells.getCellCount()];
+		for (int index = 0; index < this.parent.length; index++)
+		{
+			this.parent[index] = -1;
+		}
+		for (int index = 0; index < this.parent.length; index++)
+		{
+			if (belongs(index))
+			{
+				add(index);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the square is in some region.
+	 */
+	public boolean isMember(int index)
+	{
+		this.lock.lock();
+		try
+		{
+			return this.parent[index] != -1;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the region of this member square contains a flagged square.
+	 */
+	public boolean hasFlag(int member)
+	{
+		this.lock.lock();
+		try
+		{
+			return this.flagsInRegion.containsKey(find(member));
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called whenever a square is flagged or unflagged.
+	 */
+	public void flagChanged(int index, boolean flagged)
+	{
+		this.lock.lock();
+		try
+		{
+			if (!isMember(index))
+			{
+				return;
+			}
+			int root = find(index);
+			Integer flags = this.flagsInRegion.get(root);
+			int updated = (flags == null ? 0 : flags) + (flagged ? 1 : -1);
+			if (updated == 0)
+			{
+				this.flagsInRegion.remove(root);
+			}
+			else
+			{
+				this.flagsInRegion.put(root, updated);
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called after a bomb has been removed and the counts around it updated: adds the former
+	 * bomb square and its neighbors to the regions if they now qualify.
+	 */
+	public void bombRemoved(int index)
+	{
+		this.lock.lock();
+		try
+		{
+			int row = index / this.size;
+			int col = index - row*this.size;
+			for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, this.size - 1); r++)
+			{
+				for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, this.size - 1); c++)
+				{
+					int square = r*this.size + c;
+					if (!isMember(square) && belongs(square))
+					{
+						add(square);
+					}
+				}
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Reveals the whole region of a member square, which must not contain a flag, together with
+	 * its border: the unflagged squares next to the region that hold no bomb.
+	 * @return the number of squares of the region revealed
+	 */
+	public int reveal(int member)
+	{
+		this.lock.lock();
+		try
+		{
+			int revealed = 0;
+			int square = member;
+			do
+			{
+				//A member flagged since the Board checked hasFlag stays hidden, and walls off its neighbors.
+				if (this.cells.tryReveal(square))
+				{
+					revealed++;
+					int row = square / this.size;
+					int col = square - row*this.size;
+					int firstRow = row > 0 ? row - 1 : row;
+					int lastRow = row < this.size - 1 ? row + 1 : row;
+					int firstCol = col > 0 ? col - 1 : col;
+					int lastCol = col < this.size - 1 ? col + 1 : col;
+					for (int r = firstRow; r <= lastRow; r++)
+					{
+						int rowStart = r*this.size;
+						for (int c = firstCol; c <= lastCol; c++)
+						{
+							int adjacent = rowStart + c;
+							if (this.parent[adjacent] == -1 && !this.cells.isDug(adjacent) && !this.cells.isBomb(adjacent))
+							{
+								this.cells.tryReveal(adjacent);
+							}
+						}
+					}
+				}
+				square = this.next[square];
+			}
+			while (square != member);
+			return revealed;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the representative of the region of a member square, halving the path as it goes.
+	 */
+	public int find(int member)
+	{
+		this.lock.lock();
+		try
+		{
+			int square = member;
+			while (this.parent[square] != square)
+			{
+				this.parent[square] = this.parent[this.parent[square]];
+				square = this.parent[square];
+			}
+			return square;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	private boolean belongs(int index)
+	{
+		return !this.cells.isBomb(index) && this.cells.getCount(index) == 0;
+	}
+
+	/**
+	 * Makes the square a region of its own, then joins it with every adjacent region.
+	 */
+	private void add(int index)
+	{
+		this.parent[index] = index;
+		this.next[index] = index;
+		if (this.cells.isFlagged(index))
+		{
+			flagChanged(index, true);
+		}
+		int row = index / this.size;
+		int col = index - row*this.size;
+		for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, this.size - 1); r++)
+		{
+			for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, this.size - 1); c++)
+			{
+				int adjacent = r*this.size + c;
+				if (adjacent != index && isMember(adjacent))
+				{
+					union(index, adjacent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins the regions of two member squares. The region of a goes under the region of b, which keeps
+	 * the trees shallow while the index is being built, since a is then always the newly added square.
+	 */
+	private void union(int a, int b)
+	{
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA == rootB)
+		{
+			return;
+		}
+		this.parent[rootA] = rootB;
+
+		// Splicing two circular lists at any one square of each joins them into one.
+		int afterA = this.next[a];
+		this.next[a] = this.next[b];
+		this.next[b] = afterA;
+
+		Integer flagsA = this.flagsInRegion.remove(rootA);
+		if (flagsA != null)
+		{
+			Integer flagsB = this.flagsInRegion.get(rootB);
+			this.flagsInRegion.put(rootB, (flagsB == null ? 0 : flagsB) + flagsA);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package ast;
+
+/**
+ * Where a Board keeps its squares.
+ *
+ * @author DeJuan Anderson
+ */
+public enum Storage
+{
+	/**
+	 * A CellStore on the heap, the default.
+	 */
+	HEAP,
+
+	/**
+	 * A MappedCellStore, in a memory-mapped file, for boards bigger than the heap.
+	 */
+	MAPPED,
+
+	/**
+	 * A PersistentCellStore, which can be forked and snapshotted in constant time (see Board.fork).
+	 */
+	PERSISTENT
+}
@@ -7,8 +7,12 @@ import java.net.ConnectException;
 import java.net.Socket;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Random;
+
 import minesweeper.server.MinesweeperServer;
 
+import static org.junit.Assert.*;
+
 public class TestUtil {
     
     private static final int port = 4444;
@@ -106,4 +110,57 @@ public class TestUtil {
                 return ret;
         }
     }
+
+    /**
+     * Plays the same 50 rounds of flag, spy and deflag, then a dig, a look and a help, on both boards, which must
+     * answer every one the same way. For classes that wrap a board (CombiningBoard, BoardActor, CommandScheduler),
+     * called with a plain 20x20 board and the wrapper around another.
+     */
+    public static void assertAnswersLike(GameBoard expected, GameBoard wrapped) {
+        Random random = new Random(20);
+        for (int move = 0; move < 50; move++) {
+            String location = random.nextInt(20) + " " + random.nextInt(20);
+            assertEquals(expected.processFlag("flag " + location), wrapped.processFlag("flag " + location));
+            assertEquals(expected.processSpy("spy " + location), wrapped.processSpy("spy " + location));
+            assertEquals(expected.processDeflag("deflag " + location), wrapped.processDeflag("deflag " + location));
+        }
+        assertEquals(expected.processDig("dig 15 15"), wrapped.processDig("dig 15 15"));
+        assertEquals(expected.processLook(), wrapped.processLook());
+        assertEquals(expected.processHelp(), wrapped.processHelp());
+    }
+
+    /**
+     * @return a 10x10 board with no bombs whose processSpy(int, int) throws an AssertionError, and whose
+     *         processDig(String) throws a NullPointerException when given null, like any Board.
+     */
+    public static Board throwingBoard() {
+        return new Board(new CellStore(10)) {
+            @Override
+            public String processSpy(int x, int y) {
+                throw new AssertionError("spied");
+            }
+        };
+    }
+
+    /**
+     * Checks that a wrapper around throwingBoard() throws what the board throws, an Error included, in the thread
+     * that issued the command, several times over, and then still answers like the board.
+     */
+    public static void assertFailuresGoBack(GameBoard wrapped) {
+        try {
+            wrapped.processDig((String) null);
+            fail("digging nothing should have thrown");
+        } catch (NullPointerException e) {
+            //expected
+        }
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                wrapped.processSpy(1, 1);
+                fail("spying should have thrown");
+            } catch (AssertionError e) {
+                assertEquals("spied", e.getMessage());
+            }
+        }
+        assertEquals(new Board(new CellStore(10)).processLook(), wrapped.processLook());
+    }
 }
@@ -0,0 +1,432 @@
+package ast;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class splits a Board into tiles of TILE x TILE squares, each with its own lock, so that commands in
+ * different parts of the board don't have to wait for each other. Tiles are numbered row by row.
+ *
+ * Deadlock is avoided with one rule: a thread only ever waits for the lock of a tile whose number is higher
+ * than that of every tile it already holds. Commands that know up front which tiles they need (a dig and the
+ * squares around it) just take them in increasing order.
+ * A cascade only finds out which tiles it needs as it spreads, so it goes through a Holder: a tile numbered
+ * above everything held is waited for, and any other tile is only tried. If the try fails, the Holder is
+ * blocked, and the caller has to restart it, which gives up every tile and takes them all back, together with
+ * the one it wanted, in increasing order. A Holder only ever restarts with more tiles than before, so a
+ * cascade restarts at most once per tile.
+ *
+ * The locks are StampedLocks. Everything above takes them for writing, and they are not reentrant, so no
+ * command may take a tile it already holds. Commands that only read (look, spy, and the board sent back
+ * after every command) don't take them at all: they read the stamps of every tile they need, read the squares,
+ * and check that none of those tiles was written in the meantime, retrying if one was. Only a reader that keeps
+ * losing that race falls back to taking read locks (see readAll), in increasing order like everyone else.
+ *
+ * A board that only ever has one thread working on it (see BoardActor) can use unlocked(size) instead, whose
+ * methods keep track of tiles exactly the same way but never lock anything.
+ *
+ * @author DeJuan Anderson
+ */
+public class TileLocks
+{
+	public static final int TILE_SHIFT = 6;
+	public static final int TILE = 1 << TILE_SHIFT;
+
+	private final int size;
+	private final int tilesPerRow;
+	private final int tileCount;
+	private final StampedLock[] locks;
+
+	public TileLocks(int size)
+	{
+		this(size, true);
+	}
+
+	private TileLocks(int size, boolean locking)
+	{
+		this.size = size;
+		this.tilesPerRow = (size + TILE - 1) >>> TILE_SHIFT;
+		this.tileCount = this.tilesPerRow*this.tilesPerRow;
+		this.locks = new StampedLock[locking ? this.tileCount : 0];
+		for (int tile = 0; tile < this.locks.length; tile++)
+		{
+			this.locks[tile] = new StampedLock();
+		}
+	}
+
+	/**
+	 * @return TileLocks for a board of size x size that only one thread ever uses: nothing is locked, every
+	 *         optimistic read succeeds, and a Holder is never blocked.
+	 */
+	public static TileLocks unlocked(int size)
+	{
+		return new Unlocked(size);
+	}
+
+	public int getTileCount()
+	{
+		return this.tileCount;
+	}
+
+	public int getTilesPerRow()
+	{
+		return this.tilesPerRow;
+	}
+
+	/**
+	 * @return the number of the tile holding the square at the given index of the board's CellStore.
+	 */
+	public int tileOf(int index)
+	{
+		int row = index / this.size;
+		int col = index - row*this.size;
+		return (row >>> TILE_SHIFT)*this.tilesPerRow + (col >>> TILE_SHIFT);
+	}
+
+	public void lock(int tile)
+	{
+		this.locks[tile].writeLock();
+	}
+
+	public void unlock(int tile)
+	{
+		this.locks[tile].tryUnlockWrite();
+	}
+
+	/**
+	 * Takes the lock of the tile only if nobody holds it.
+	 * @return true if it was taken
+	 */
+	public boolean tryLock(int tile)
+	{
+		return this.locks[tile].tryWriteLock() != 0;
+	}
+
+	/**
+	 * @return a stamp to validate after reading the tile, or 0 if the tile is being written right now.
+	 */
+	public long tryOptimisticRead(int tile)
+	{
+		return this.locks[tile].tryOptimisticRead();
+	}
+
+	/**
+	 * @return true if the tile hasn't been written since the stamp was taken.
+	 */
+	public boolean validate(int tile, long stamp)
+	{
+		return this.locks[tile].validate(stamp);
+	}
+
+	/**
+	 * Takes the lock of the tile if it hasn't been written since the stamp was taken and nobody holds it.
+	 * @return false, having taken nothing, otherwise
+	 */
+	public boolean tryLockIfUnchanged(int tile, long stamp)
+	{
+		return this.locks[tile].tryConvertToWriteLock(stamp) != 0;
+	}
+
+	/**
+	 * Reads the stamp of every tile into stamps, which must have getTileCount() of them.
+	 * @return false if one of them is being written right now
+	 */
+	public boolean tryOptimisticReadAll(long[] stamps)
+	{
+		for (int tile = 0; tile < this.tileCount; tile++)
+		{
+			stamps[tile] = this.locks[tile].tryOptimisticRead();
+			if (stamps[tile] == 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if no tile has been written since tryOptimisticReadAll took the stamps, so everything read
+	 *         in between is the board as it was at one moment.
+	 */
+	public boolean validateAll(long[] stamps)
+	{
+		for (int tile = 0; tile < this.tileCount; tile++)
+		{
+			if (!this.locks[tile].validate(stamps[tile]))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the read lock of every tile, in increasing order, for readers whose optimistic reads keep failing.
+	 * The caller must not hold any tile.
+	 */
+	public void readAll()
+	{
+		for (StampedLock lock : this.locks)
+		{
+			lock.readLock();
+		}
+	}
+
+	public void unreadAll()
+	{
+		for (int tile = this.locks.length - 1; tile >= 0; tile--)
+		{
+			this.locks[tile].tryUnlockRead();
+		}
+	}
+
+	public void readLock(int tile)
+	{
+		this.locks[tile].readLock();
+	}
+
+	public void unread(int tile)
+	{
+		this.locks[tile].tryUnlockRead();
+	}
+
+	/**
+	 * Takes the lock of every tile, which is what the whole Board monitor used to be. The caller must not hold any tile.
+	 */
+	public void lockAll()
+	{
+		for (StampedLock lock : this.locks)
+		{
+			lock.writeLock();
+		}
+	}
+
+	public void unlockAll()
+	{
+		for (int tile = this.locks.length - 1; tile >= 0; tile--)
+		{
+			this.locks[tile].tryUnlockWrite();
+		}
+	}
+
+	/**
+	 * @return a new Holder, holding no tile. A Holder must only be used by one thread.
+	 */
+	public Holder newHolder()
+	{
+		return new Holder();
+	}
+
+	/**
+	 * Keeps track of the tiles one command holds, and takes more of them as the command needs them.
+	 */
+	public class Holder
+	{
+		private final long[] held = new long[(TileLocks.this.tileCount + 63) >>> 6];
+		private int[] list = new int[4];
+		private int count = 0;
+		private int highest = -1;
+		private boolean all = false;
+		private int wanted = -1;
+
+		/**
+		 * Takes the tiles holding the square at (row, col) and the squares around it. Must hold nothing.
+		 */
+		public void lockArea(int row, int col)
+		{
+			int firstTileRow = Math.max(row - 1, 0) >>> TILE_SHIFT;
+			int lastTileRow = Math.min(row + 1, TileLocks.this.size - 1) >>> TILE_SHIFT;
+			int firstTileCol = Math.max(col - 1, 0) >>> TILE_SHIFT;
+			int lastTileCol = Math.min(col + 1, TileLocks.this.size - 1) >>> TILE_SHIFT;
+			for (int tileRow = firstTileRow; tileRow <= lastTileRow; tileRow++)
+			{
+				for (int tileCol = firstTileCol; tileCol <= lastTileCol; tileCol++)
+				{
+					int tile = tileRow*TileLocks.this.tilesPerRow + tileCol;
+					lock(tile);
+					add(tile);
+				}
+			}
+		}
+
+		/**
+		 * Takes every tile. Must hold nothing.
+		 */
+		public void lockAll()
+		{
+			TileLocks.this.lockAll();
+			this.all = true;
+		}
+
+		/**
+		 * Makes sure the tile of the square at index is held, taking it if it can be taken without risking
+		 * a deadlock.
+		 * @return false if it couldn't be taken; the Holder is then blocked and must be restarted
+		 */
+		public boolean cover(int index)
+		{
+			if (this.all)
+			{
+				return true;
+			}
+			int tile = tileOf(index);
+			if ((this.held[tile >>> 6] & (1L << tile)) != 0)
+			{
+				return true;
+			}
+			if (tile > this.highest)
+			{
+				lock(tile);
+			}
+			else if (!tryLock(tile))
+			{
+				this.wanted = tile;
+				return false;
+			}
+			add(tile);
+			return true;
+		}
+
+		public boolean isBlocked()
+		{
+			return this.wanted != -1;
+		}
+
+		/**
+		 * Gives up every tile, then takes them back together with the tile the Holder was blocked on,
+		 * in increasing order.
+		 */
+		public void restart()
+		{
+			int[] tiles = Arrays.copyOf(this.list, this.count + 1);
+			tiles[this.count] = this.wanted;
+			Arrays.sort(tiles);
+			releaseAll();
+			for (int tile : tiles)
+			{
+				lock(tile);
+				add(tile);
+			}
+		}
+
+		/**
+		 * Gives up every tile held. The Holder can then be used again.
+		 */
+		public void releaseAll()
+		{
+			if (this.all)
+			{
+				TileLocks.this.unlockAll();
+				this.all = false;
+			}
+			for (int i = this.count - 1; i >= 0; i--)
+			{
+				int tile = this.list[i];
+				unlock(tile);
+				this.held[tile >>> 6] &= ~(1L << tile);
+			}
+			this.count = 0;
+			this.highest = -1;
+			this.wanted = -1;
+		}
+
+		private void add(int tile)
+		{
+			this.held[tile >>> 6] |= 1L << tile;
+			if (this.count == this.list.length)
+			{
+				this.list = Arrays.copyOf(this.list, this.count*2);
+			}
+			this.list[this.count++] = tile;
+			this.highest = Math.max(this.highest, tile);
+		}
+	}
+
+	/**
+	 * The TileLocks of a board only one thread uses.
+	 */
+	private static class Unlocked extends TileLocks
+	{
+		Unlocked(int size)
+		{
+			super(size, false);
+		}
+
+		@Override
+		public void lock(int tile)
+		{
+		}
+
+		@Override
+		public void unlock(int tile)
+		{
+		}
+
+		@Override
+		public boolean tryLock(int tile)
+		{
+			return true;
+		}
+
+		@Override
+		public long tryOptimisticRead(int tile)
+		{
+			return 1;
+		}
+
+		@Override
+		public boolean validate(int tile, long stamp)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean tryLockIfUnchanged(int tile, long stamp)
+		{
+			return true;
+		}
+
+		@Override
+		public boolean tryOptimisticReadAll(long[] stamps)
+		{
+			Arrays.fill(stamps, 1);
+			return true;
+		}
+
+		@Override
+		public boolean validateAll(long[] stamps)
+		{
+			return true;
+		}
+
+		@Override
+		public void readAll()
+		{
+		}
+
+		@Override
+		public void unreadAll()
+		{
+		}
+
+		@Override
+		public void readLock(int tile)
+		{
+		}
+
+		@Override
+		public void unread(int tile)
+		{
+		}
+
+		@Override
+		public void lockAll()
+		{
+		}
+
+		@Override
+		public void unlockAll()
+		{
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package minesweeper.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of worker threads running players' commands against the board, fed by a queue of bounded
+ * length. A server using one never has more commands in flight than workers plus queue, however many players
+ * send commands at once; a command finding the queue full is turned away at once, to be answered with
+ * MinesweeperServer.BUSY, instead of making everyone's commands wait longer.
+ *
+ * The depth of the queue and every command turned away are counted in the server's ServerStats.
+ *
+ * Thread safety: submit may be called from any thread.
+ */
+public class CommandPool {
+    private final ThreadPoolExecutor executor;
+    private final ServerStats stats;
+
+    /**
+     * Start options.workers workers, with room for options.queue commands waiting for them.
+     */
+    public CommandPool(ServerOptions options, ServerStats stats) {
+        this.stats = stats;
+        final AtomicInteger workers = new AtomicInteger();
+        executor = new ThreadPoolExecutor(options.workers, options.workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(options.queue), new ThreadFactory() {
+                    public Thread newThread(Runnable worker) {
+                        Thread thread = new Thread(worker, "minesweeper-worker-" + workers.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queue command to be run by a worker.
+     *
+     * @return false, and command will never run, if the queue is full
+     */
+    public boolean submit(final Runnable command) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    stats.commandDequeued();
+                    command.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stats.commandRejected();
+            return false;
+        }
+        //A worker may already have taken it; then the count is one low for a moment.
+        stats.commandQueued();
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package minesweeper.server;
+
+import ast.CommandParser;
+
+/**
+ * The rate limits of one connection: a token bucket for its reads (look, help, spy and anything not understood)
+ * and one for its writes (dig, flag, deflag), as set by the server's options, and the bookkeeping of a command
+ * held until its bucket has a token again. Every command held or rejected is counted in the server's ServerStats.
+ *
+ * How a command is held is up to the server: the thread-per-connection server sleeps, the event-loop server
+ * stops reading from the connection until then.
+ *
+ * A ConnectionLimits belongs to one connection and is only used by whichever thread serves it at the moment, so
+ * it is not threadsafe.
+ */
+public class ConnectionLimits {
+    /**
+     * What admit and resume return when the command must be rejected.
+     */
+    public static final long REJECT = -1;
+
+    private final TokenBucket reads;
+    private final TokenBucket writes;
+    private final long maxDelayNanos;
+    private final ServerStats stats;
+    private final int player;
+
+    /**
+     * The bucket the command being held waits on, and when it must have run by.
+     */
+    private TokenBucket held;
+    private long deadline;
+
+    public ConnectionLimits(ServerOptions options, ServerStats stats, int player) {
+        this.reads = bucket(options.readRate, options.burst);
+        this.writes = bucket(options.writeRate, options.burst);
+        this.maxDelayNanos = options.maxDelayMillis * 1000000L;
+        this.stats = stats;
+        this.player = player;
+    }
+
+    /**
+     * Decide whether a command may run now. bye is never limited.
+     *
+     * @param command the command, as read by a CommandParser
+     * @return 0 if it may run now, REJECT if it must be rejected, or else how many nanoseconds to hold it before
+     *         asking resume
+     */
+    public long admit(int command) {
+        if (command == CommandParser.BYE) {
+            return 0;
+        }
+        boolean write = CommandParser.isWrite(command);
+        TokenBucket bucket = write ? writes : reads;
+        if (bucket == null) {
+            return 0;
+        }
+        long wait = bucket.tryTake();
+        if (wait == 0) {
+            return 0;
+        }
+        if (wait > maxDelayNanos) {
+            stats.throttled(player, write ? ServerStats.WRITES_REJECTED : ServerStats.READS_REJECTED);
+            return REJECT;
+        }
+        stats.throttled(player, write ? ServerStats.WRITES_DELAYED : ServerStats.READS_DELAYED);
+        held = bucket;
+        deadline = System.nanoTime() + maxDelayNanos;
+        return wait;
+    }
+
+    /**
+     * Decide again whether the command admit said to hold may run, once it has been held as long as it said.
+     *
+     * @return 0 if it may run now, REJECT if it must be rejected after all, or how many more nanoseconds to hold it
+     */
+    public long resume() {
+        long wait = held.tryTake();
+        if (wait > 0 && System.nanoTime() + wait > deadline) {
+            wait = REJECT;
+        }
+        if (wait <= 0) {
+            held = null;
+        }
+        return wait;
+    }
+
+    /**
+     * @return a full bucket for the given rate, or null if the rate is 0, i.e. unlimited
+     */
+    private static TokenBucket bucket(double rate, int burst) {
+        if (rate <= 0) {
+            return null;
+        }
+        return new TokenBucket(rate, burst > 0 ? burst : (int) Math.max(1, Math.ceil(rate)));
+    }
+}
@@ -1,26 +1,69 @@
 package minesweeper.server;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 import ast.Board;
+import ast.BoardActor;
+import ast.ChunkedBoard;
+import ast.CombiningBoard;
+import ast.CommandParser;
+import ast.CommandScheduler;
+import ast.GameBoard;
+import ast.MineLayout;
+import ast.Storage;
 /**
- * This server is threadsafe because although the board is a public object and everyone is using it, all Board methods
- * that have any sort of danger towards concurrency enforce the monitor pattern. Even if multiple threads here
- * call those methods simultaneously, the instructions will be processed in sequence, preventing any possible
- * executions which would violate our representation.
+ * This server is threadsafe because although the board is a public object and everyone is using it, every Board
+ * method that changes the board holds the locks of the tiles it touches (see ast.TileLocks), and every square is
+ * changed with a compare-and-set on its cell (see ast.CellStore), so two commands on the same part of the board
+ * are processed in sequence. Commands that only read the board (look, spy, and the board sent back after every
+ * command) take no lock, but check the tiles' stamps and read again if anything was written meanwhile, so every
+ * board sent back is one the game really was in. Even if multiple threads here call those methods
+ * simultaneously, no execution can violate our representation.
  *
  */
 public class MinesweeperServer {
     private final ServerSocket serverSocket;
     private int playerCounter;
-    private Object lock = new Object(); //Made so that I don't lock on the class. 
-    public static Board board;
+    private final ReentrantLock lock = new ReentrantLock(); //Made so that I don't lock on the class. Not a monitor, so virtual threads don't pin on it.
+    public static GameBoard board;
     /**
      * True if the server should _not_ disconnect a client after a BOOM message.
      */
     private final boolean debug;
+    /**
+     * The rate limits every connection is held to.
+     */
+    private final ServerOptions options;
+    private final ServerStats stats = new ServerStats();
+    private int playersSeen;
+    /**
+     * The reply to a command over its client's rate limit.
+     */
+    static final String THROTTLED = "Slow down!";
+    /**
+     * The reply to a connection over the server's session limit, and to a command that finds the command queue
+     * full.
+     */
+    static final String BUSY = "Server busy, try again later.";
+    /**
+     * The workers commands run on, or null if they run on their connection's thread.
+     */
+    private final CommandPool pool;
+    /**
+     * Thread.startVirtualThread, or null if this Java has no virtual threads (before Java 21). It is looked up
+     * by reflection so the server still builds and runs on older versions.
+     */
+    private static final Method START_VIRTUAL_THREAD = startVirtualThread();
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -28,24 +71,107 @@ public class MinesweeperServer {
      * @param port port number, requires 0 <= port <= 65535
      */
     public MinesweeperServer(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
-        this.debug = debug;
+        this(options(port, debug));
+    }
+
+    /**
+     * Make a MinesweeperServer that listens for connections on options.port, with the given debug mode, rate
+     * limits, session limit and command workers.
+     */
+    public MinesweeperServer(ServerOptions options) throws IOException {
+        serverSocket = new ServerSocket(options.port, options.backlog);
+        this.debug = options.debug;
+        this.options = options;
+        this.pool = options.workers > 0 ? new CommandPool(options, stats) : null;
+    }
+
+    private static ServerOptions options(int port, boolean debug) {
+        ServerOptions options = new ServerOptions();
+        options.port = port;
+        options.debug = debug;
+        return options;
+    }
+
+    /**
+     * @return the port the server listens on, which is picked by the system if it was made with port 0
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the counters kept across all connections, such as how often each client was throttled
+     */
+    public ServerStats getStats() {
+        return stats;
     }
     
-    public void incrementPlayers()
+    /**
+     * @return a number identifying the new player among everyone who has connected, or -1 if the server already
+     *         has options.maxSessions players and the new one must be turned away
+     */
+    public int incrementPlayers()
     {
-    	synchronized(lock) //So I don't hang up the rest of the class or cause any disturbance to current players when a new one connects
+    	lock.lock(); //So I don't hang up the rest of the class or cause any disturbance to current players when a new one connects
+    	try
     	{
+    		if (options.maxSessions > 0 && playerCounter >= options.maxSessions)
+    		{
+    			return -1;
+    		}
     		playerCounter+=1;
+    		playersSeen+=1;
+    		return playersSeen;
+    	}
+    	finally
+    	{
+    		lock.unlock();
     	}
     }
 
     public void decrementPlayers()
     {
-    	synchronized(lock) //Same, so there's no problem when someone disconnects.
+    	lock.lock(); //Same, so there's no problem when someone disconnects.
+    	try
     	{
     		playerCounter -=1;
     	}
+    	finally
+    	{
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * @return true if this Java can run connections on virtual threads (see ServerOptions.virtualThreads)
+     */
+    public static boolean virtualThreadsAvailable() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    private static Method startVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start a thread for a connection: a virtual one if the server was asked for them, else a platform thread.
+     */
+    private void start(Runnable connection) {
+        if (!options.virtualThreads) {
+            new Thread(connection).start();
+            return;
+        }
+        try {
+            START_VIRTUAL_THREAD.invoke(null, connection);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
     }
     /**
      * Run the server, listening for client connections and handling them.
@@ -58,14 +184,19 @@ public class MinesweeperServer {
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
-            Thread t = new Thread(new Runnable()
+            final int player = incrementPlayers();
+            if (player < 0)
+            {
+            	turnAway(socket);
+            	continue;
+            }
+            start(new Runnable()
             {
             	public void run() 
             	{
             		try 
             		{
-            			incrementPlayers();
-                        handleConnection(socket, board);
+                        handleConnection(socket, board, player);
                     } 
             		catch (IOException e) 
                     {
@@ -86,13 +217,29 @@ public class MinesweeperServer {
             	}
             }
         );
-            t.start();
            
             }}
             
             // handle the client
             
     
+    /**
+     * Tell a player the server is full and hang up, without giving them a thread.
+     */
+    private void turnAway(Socket socket) {
+        stats.sessionRejected();
+        try {
+            socket.getOutputStream().write((BUSY + System.lineSeparator()).getBytes("US-ASCII"));
+        } catch (IOException e) {
+            // They'll find out when the connection closes.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
      * Handle a single client connection. Returns when client disconnects.
@@ -100,13 +247,29 @@ public class MinesweeperServer {
      * @param socket socket where the client is connected
      * @throws IOException if connection has an error or terminates unexpectedly
      */
-    private void handleConnection(Socket socket, Board board) throws IOException {
+    private void handleConnection(Socket socket, GameBoard board, int player) throws IOException {
         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-        out.println("Welcome to Minesweeper. " + playerCounter + " people are playing including you. Type 'help' for help. \r\n");
+        out.println(welcome(playerCounter));
+        ConnectionLimits limits = new ConnectionLimits(options, stats, player);
+        CommandParser parser = new CommandParser();
+        V2Session session = null;
+        stats.connected(player);
         try {
             for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line, board);
+                if (session != null) {
+                    if (!session.handle(line, parser, limits)) {
+                        break;
+                    }
+                    continue;
+                }
+                int command = parser.parse(line);
+                if (command == CommandParser.V2) {
+                    out.println(ProtocolV2.ACCEPTED);
+                    session = new V2Session(socket);
+                    continue;
+                }
+                String output = throttle(command, limits) ? THROTTLED : run(command, parser, board);
                 if (output != null) 
                 {
                     out.println(output);
@@ -124,52 +287,225 @@ public class MinesweeperServer {
                 }
             }
         } finally {
+            if (session != null) {
+                session.drain();
+            }
+            reportThrottled(player, stats.disconnected(player));
             out.close();
             in.close();
         }
     }
 
+    /**
+     * The protocol v2 side of a connection (see ProtocolV2), once its client has switched to it. Its lines are
+     * still read by handleConnection, one at a time; with workers, each command is handed to them without waiting
+     * for the one before, and the worker writes the tagged answer itself when it is done.
+     */
+    private class V2Session {
+        private final Socket socket;
+        private final Writer out;
+        /**
+         * Answers are written whole, one at a time, by whichever thread has one.
+         */
+        private final ReentrantLock writing = new ReentrantLock();
+        private final Semaphore inFlight = new Semaphore(ProtocolV2.MAX_IN_FLIGHT);
+
+        V2Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1"));
+            // Answers go out one write each, often several before the client has read any.
+            socket.setTcpNoDelay(true);
+        }
+
+        /**
+         * Run the command on line and answer it, or hand it to the workers to.
+         *
+         * @return false once no more lines must be read: after bye, or BOOM! outside debug mode
+         */
+        boolean handle(String line, CommandParser parser, ConnectionLimits limits) throws IOException {
+            final int command = parser.parseTagged(line);
+            final long id = parser.getId();
+            if (throttle(command, limits)) {
+                answer(id, THROTTLED);
+                return true;
+            }
+            if (command == CommandParser.BYE) {
+                drain();
+                answer(id, "Baibai!");
+                return false;
+            }
+            if (pool == null) {
+                String output = handleRequest(command, parser.getX(), parser.getY(), board);
+                answer(id, output);
+                return debug || !output.equals("BOOM!");
+            }
+            final int x = parser.getX();
+            final int y = parser.getY();
+            inFlight.acquireUninterruptibly();
+            boolean queued = pool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        String output = handleRequest(command, x, y, board);
+                        answer(id, output);
+                        if (!debug && output.equals("BOOM!")) {
+                            // Stop reading; handleConnection waits for the rest of the commands, then closes.
+                            socket.shutdownInput();
+                        }
+                    } catch (IOException e) {
+                        // The connection's thread finds out when it next reads.
+                    } catch (Throwable e) {
+                        // On the connection's thread this would have ended the connection, so end it, Errors
+                        // included, or the client would wait for this ID's answer forever.
+                        e.printStackTrace();
+                        close();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+            if (!queued) {
+                inFlight.release();
+                answer(id, BUSY);
+            }
+            return true;
+        }
+
+        /**
+         * Wait for every command with the workers to be answered.
+         */
+        void drain() {
+            inFlight.acquireUninterruptibly(ProtocolV2.MAX_IN_FLIGHT);
+            inFlight.release(ProtocolV2.MAX_IN_FLIGHT);
+        }
+
+        private void answer(long id, String output) throws IOException {
+            writing.lock();
+            try {
+                ProtocolV2.write(out, id, output);
+                out.flush();
+            } finally {
+                writing.unlock();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the greeting for a player who just connected, when players are connected including them
+     */
+    static String welcome(int players) {
+        return "Welcome to Minesweeper. " + players + " people are playing including you. Type 'help' for help. \r\n";
+    }
+
+    /**
+     * Log how often a player who just disconnected was throttled, if at all.
+     */
+    static void reportThrottled(int player, long[] throttled) {
+        if (throttled[ServerStats.READS_DELAYED] + throttled[ServerStats.READS_REJECTED]
+                + throttled[ServerStats.WRITES_DELAYED] + throttled[ServerStats.WRITES_REJECTED] > 0) {
+            System.err.println("player " + player + " disconnected: " + ServerStats.describe(throttled));
+        }
+    }
+
+    /**
+     * Run a command on the board, on one of the workers if the server has any, and wait for its answer.
+     * 
+     * @return its answer, or BUSY if the command queue is full
+     */
+    private String run(final int command, final CommandParser parser, final GameBoard board) {
+        if (pool == null) {
+            return handleRequest(command, parser, board);
+        }
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                return handleRequest(command, parser, board);
+            }
+        });
+        if (!pool.submit(task)) {
+            return BUSY;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return BUSY;
+        } catch (ExecutionException e) {
+            // As if it had run on this thread.
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw (Error) e.getCause();
+        }
+    }
+
+    /**
+     * Hold the player to their rate limits, sleeping for as long as limits says to hold the command.
+     * 
+     * @return true if the command must be rejected, false if it may run
+     */
+    private boolean throttle(int command, ConnectionLimits limits) {
+        long wait = limits.admit(command);
+        while (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            wait = limits.resume();
+        }
+        return wait == ConnectionLimits.REJECT;
+    }
+
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
-     * @param input message from client
+     * @param command what the client asked for, as read from their input by parser, which holds its coordinates
      * @return message to client
      */
-    private String handleRequest(String input, Board board) {
-        String regex = "(look)|(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|"
-                + "(deflag -?\\d+ -?\\d+)|(help)|(bye)|(spy -?\\d+ -?\\d+)";
-        if ( ! input.matches(regex)) {
+    static String handleRequest(int command, CommandParser parser, GameBoard board) {
+        return handleRequest(command, parser.getX(), parser.getY(), board);
+    }
+
+    /**
+     * handleRequest for a command whose coordinates, if it has any, are x and y.
+     */
+    static String handleRequest(int command, int x, int y, GameBoard board) {
+        switch (command) {
+        case CommandParser.INVALID:
             // invalid input
             return board.processLook();
-        }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
+        case CommandParser.V2:
+            // 'v2' from a client already speaking it: nothing to switch to
+            return board.processLook();
+        case CommandParser.LOOK:
             // 'look' request
-           return board.processLook();
-
-        } else if (tokens[0].equals("help")) {
+            return board.processLook();
+        case CommandParser.HELP:
             // 'help' request
             return board.processHelp();
-        } else if (tokens[0].equals("bye")) {
+        case CommandParser.BYE:
             // 'bye' request
             return "Baibai!";
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig x y' request
-                return board.processDig(input);
-            } else if (tokens[0].equals("flag")) {
-                // 'flag x y' request
-                return board.processFlag(input);
-            } else if (tokens[0].equals("deflag")) {
-                // 'deflag x y' request
-                return board.processDeflag(input);
-            }
-            else if(tokens[0].equals("spy")){
-            	// "spy x y" request, specifically for me to debug
-            	return board.processSpy(input);
-            }
+        case CommandParser.DIG:
+            // 'dig x y' request
+            return board.processDig(x, y);
+        case CommandParser.FLAG:
+            // 'flag x y' request
+            return board.processFlag(x, y);
+        case CommandParser.DEFLAG:
+            // 'deflag x y' request
+            return board.processDeflag(x, y);
+        case CommandParser.SPY:
+            // "spy x y" request, specifically for me to debug
+            return board.processSpy(x, y);
         }
         // Should never get here--make sure to return in each of the valid cases above.
         throw new UnsupportedOperationException();
@@ -178,7 +514,14 @@ public class MinesweeperServer {
     /**
      * Start a MinesweeperServer using the given arguments.
      * 
-     * Usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]
+     * Usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE] [--reveal-threads THREADS]
+     *                          [--reveal-chunk CHUNK] [--chunked] [--mapped] [--seed SEED] [--mines MINES]
+     *                          [--lazy-counts] [--combining | --actor | --fair] [--optimistic-reveal] [--region-index]
+     *                          [--persistent]
+     *                          [--read-rate RATE] [--write-rate RATE] [--burst BURST] [--max-delay MILLIS]
+     *                          [--nio] [--io-threads THREADS] [--virtual-threads]
+     *                          [--max-sessions SESSIONS] [--backlog BACKLOG] [--workers WORKERS] [--queue QUEUE]
+     *                          [--stats-interval SECONDS]
      * 
      * The --debug argument means the server should run in debug mode. The server should disconnect
      * a client after a BOOM message if and only if the debug flag argument was NOT given. E.g.
@@ -210,36 +553,214 @@ public class MinesweeperServer {
      * If neither FILE nor SIZE is given, generate a random board of size 10x10.
      * 
      * Note that FILE and SIZE may not be specified simultaneously.
+     * 
+     * THREADS is an optional positive integer. If it is greater than 1, dig cascades that reveal a very
+     * large region are finished on a pool of that many threads (see ast.ParallelFloodFill).
+     * 
+     * CHUNK is an optional non-negative integer. If it is greater than 0, dig cascades are carried out
+     * CHUNK squares at a time and other players' commands can run in between (see
+     * ast.Board.setIncrementalReveal). It takes precedence over THREADS.
+     * 
+     * The --optimistic-reveal argument makes dig cascades work out which squares they reveal without holding any
+     * lock, and only take the locks to check nothing changed and reveal them (see ast.Board.setOptimisticReveal).
+     * It takes precedence over THREADS, but not over CHUNK.
+     * 
+     * The --region-index argument makes the board label every region of squares with no bombs around them up
+     * front, so a dig into one reveals it whole without searching for it, at the cost of 8 bytes per square and of
+     * every cascade taking the whole board (see ast.Board.setRegionIndex). It cannot be combined with --chunked.
+     * 
+     * The --chunked argument starts the server with an ast.ChunkedBoard instead: a random board with no right
+     * or bottom edge whose squares are only created when a command first touches them. SIZE is then the side of
+     * the window of the board sent back to players. It cannot be combined with FILE, or with THREADS, CHUNK,
+     * --optimistic-reveal or --region-index, which only apply to a Board of a fixed size.
+     * 
+     * The --mapped argument keeps the squares of the board in a memory-mapped temporary file instead of on the
+     * heap, so a board larger than the heap can be served (see ast.MappedCellStore). It cannot be combined with
+     * --chunked.
+     * 
+     * The --persistent argument keeps the squares of the board in a tree of tiles that can be copied in constant
+     * time, so snapshots of the game can be taken without pausing players (see ast.Board.fork). It cannot be
+     * combined with --mapped or --chunked.
+     * 
+     * SEED is an optional integer deciding where the bombs of a random board go: the same SEED, SIZE and MINES
+     * always give the same board. Without it a new seed is picked every time the server starts.
+     * 
+     * MINES is an optional number of bombs for a random board, placed exactly (see ast.MineLayout). It may also
+     * be given as a percentage of the squares, e.g. "--mines 15%". Without it a quarter of the squares hold a
+     * bomb. It cannot be negative or more than SIZE*SIZE, and cannot be combined with FILE or --chunked.
+     * 
+     * The --lazy-counts argument skips counting the bombs around every square of a FILE board before the
+     * server starts; each square is counted the first time it is revealed instead. It only applies to FILE.
+     * 
+     * The --combining argument runs players' commands against the board by flat combining: whichever thread
+     * gets there first runs every command waiting at that moment, instead of each thread waiting for the board
+     * in turn (see ast.CombiningBoard).
+     * 
+     * The --actor argument gives the board to a thread of its own, which runs every player's command in the order
+     * they arrive, so the board takes no locks (see ast.BoardActor). It cannot be combined with --combining.
+     * 
+     * The --fair argument makes players' commands wait their turn, at most one per core at once, with digs and
+     * flags going ahead of waiting looks and spies, so a crowd of spectators can't hold up the players (see
+     * ast.CommandScheduler). It cannot be combined with --combining or --actor.
+     * 
+     * The --read-rate and --write-rate arguments limit how many reads (look, help, spy, and anything not
+     * understood, which is answered with the board) and writes (dig, flag, deflag) a second each client may issue,
+     * each through a token bucket of its own that holds BURST commands (by default a second's worth). A command
+     * over the limit is held until the bucket has a token again, for up to MILLIS milliseconds (100 by default,
+     * 0 to never hold), and otherwise answered with "Slow down!" instead of being run. How often each client was
+     * held or turned away is counted in the server's ServerStats, and reported when it disconnects.
+     * 
+     * The --nio argument serves every connection from THREADS I/O threads (by default one per core) waiting on
+     * selectors, instead of from a thread per connection, so a few thousand players don't need a few thousand
+     * threads (see NioMinesweeperServer). The protocol is the same either way. --io-threads only applies to --nio.
+     * 
+     * The --virtual-threads argument keeps a thread per connection, but makes them virtual threads, which cost
+     * little more than their stacks while the player isn't typing. It needs Java 21 or later, and cannot be
+     * combined with --nio.
+     * 
+     * The --max-sessions argument caps how many players may be connected at once; anyone connecting beyond that
+     * is answered "Server busy, try again later." and disconnected straight away. BACKLOG (50 by default) is how
+     * many connections the system holds waiting to be accepted. The --workers argument runs every command on one
+     * of WORKERS threads (see CommandPool) rather than on the thread that read it, with up to QUEUE commands (64 by
+     * default) waiting for them; a command finding the queue full is answered "Server busy, try again later."
+     * instead of being run. --queue only applies to --workers. The --stats-interval argument logs every SECONDS
+     * seconds how many players are connected, how many sessions and commands were turned away, and how deep the
+     * command queue is.
+     * 
+     * Either server also speaks protocol v2 to any client that asks for it by sending "v2": commands tagged with
+     * IDs, answers tagged with them and prefixed with their length, so a client can send many commands without
+     * waiting for each answer. With --workers, the answers come back as the commands finish, in any order. See
+     * ProtocolV2.
      */
     public static void main(String[] args) {
-        // Command-line argument parsing is provided. Do not change this method.
-        boolean debug = false;
-        int port = 4444; // default port
-        Integer size = 10; // default size
-        File file = null;
+        ServerOptions options = new ServerOptions();
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        boolean minesGiven = false;
+        boolean ioThreadsGiven = false;
+        boolean queueGiven = false;
         try {
             while ( ! arguments.isEmpty()) {
                 String flag = arguments.remove();
                 try {
                     if (flag.equals("--debug")) {
-                        debug = true;
+                        options.debug = true;
                     } else if (flag.equals("--no-debug")) {
-                        debug = false;
+                        options.debug = false;
                     } else if (flag.equals("--port")) {
-                        port = Integer.parseInt(arguments.remove());
-                        if (port < 0 || port > 65535) {
-                            throw new IllegalArgumentException("port " + port + " out of range");
+                        options.port = Integer.parseInt(arguments.remove());
+                        if (options.port < 0 || options.port > 65535) {
+                            throw new IllegalArgumentException("port " + options.port + " out of range");
                         }
                     } else if (flag.equals("--size")) {
-                        size = Integer.parseInt(arguments.remove());
-                        file = null;
+                        options.size = Integer.parseInt(arguments.remove());
+                        options.file = null;
                     } else if (flag.equals("--file")) {
-                        size = null;
-                        file = new File(arguments.remove());
-                        if ( ! file.isFile()) {
-                            throw new IllegalArgumentException("file not found: \"" + file + "\"");
+                        options.size = null;
+                        options.file = new File(arguments.remove());
+                        if ( ! options.file.isFile()) {
+                            throw new IllegalArgumentException("file not found: \"" + options.file + "\"");
+                        }
+                    } else if (flag.equals("--reveal-threads")) {
+                        options.revealThreads = Integer.parseInt(arguments.remove());
+                        if (options.revealThreads < 1) {
+                            throw new IllegalArgumentException("reveal threads must be at least 1");
+                        }
+                    } else if (flag.equals("--chunked")) {
+                        options.chunked = true;
+                    } else if (flag.equals("--seed")) {
+                        options.seed = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--mines")) {
+                        String mines = arguments.remove();
+                        if (mines.endsWith("%")) {
+                            options.mineDensity = Double.parseDouble(mines.substring(0, mines.length() - 1)) / 100;
+                            options.mines = -1;
+                            if (options.mineDensity < 0 || options.mineDensity > 1) {
+                                throw new IllegalArgumentException("mines must be between 0% and 100%");
+                            }
+                        } else {
+                            options.mines = Long.parseLong(mines);
+                            if (options.mines < 0) {
+                                throw new IllegalArgumentException("mines cannot be negative");
+                            }
+                        }
+                        minesGiven = true;
+                    } else if (flag.equals("--lazy-counts")) {
+                        options.lazyCounts = true;
+                    } else if (flag.equals("--combining")) {
+                        options.combining = true;
+                    } else if (flag.equals("--optimistic-reveal")) {
+                        options.optimisticReveal = true;
+                    } else if (flag.equals("--region-index")) {
+                        options.regionIndex = true;
+                    } else if (flag.equals("--actor")) {
+                        options.actor = true;
+                    } else if (flag.equals("--fair")) {
+                        options.fair = true;
+                    } else if (flag.equals("--read-rate")) {
+                        options.readRate = Double.parseDouble(arguments.remove());
+                        if (options.readRate <= 0) {
+                            throw new IllegalArgumentException("read rate must be positive");
+                        }
+                    } else if (flag.equals("--write-rate")) {
+                        options.writeRate = Double.parseDouble(arguments.remove());
+                        if (options.writeRate <= 0) {
+                            throw new IllegalArgumentException("write rate must be positive");
+                        }
+                    } else if (flag.equals("--burst")) {
+                        options.burst = Integer.parseInt(arguments.remove());
+                        if (options.burst < 1) {
+                            throw new IllegalArgumentException("burst must be at least 1");
+                        }
+                    } else if (flag.equals("--max-delay")) {
+                        options.maxDelayMillis = Long.parseLong(arguments.remove());
+                        if (options.maxDelayMillis < 0) {
+                            throw new IllegalArgumentException("max delay cannot be negative");
+                        }
+                    } else if (flag.equals("--nio")) {
+                        options.nio = true;
+                    } else if (flag.equals("--max-sessions")) {
+                        options.maxSessions = Integer.parseInt(arguments.remove());
+                        if (options.maxSessions < 1) {
+                            throw new IllegalArgumentException("max sessions must be at least 1");
+                        }
+                    } else if (flag.equals("--backlog")) {
+                        options.backlog = Integer.parseInt(arguments.remove());
+                        if (options.backlog < 1) {
+                            throw new IllegalArgumentException("backlog must be at least 1");
+                        }
+                    } else if (flag.equals("--workers")) {
+                        options.workers = Integer.parseInt(arguments.remove());
+                        if (options.workers < 1) {
+                            throw new IllegalArgumentException("workers must be at least 1");
+                        }
+                    } else if (flag.equals("--queue")) {
+                        options.queue = Integer.parseInt(arguments.remove());
+                        queueGiven = true;
+                        if (options.queue < 1) {
+                            throw new IllegalArgumentException("queue must be at least 1");
+                        }
+                    } else if (flag.equals("--stats-interval")) {
+                        options.statsInterval = Integer.parseInt(arguments.remove());
+                        if (options.statsInterval < 1) {
+                            throw new IllegalArgumentException("stats interval must be at least 1");
+                        }
+                    } else if (flag.equals("--virtual-threads")) {
+                        options.virtualThreads = true;
+                    } else if (flag.equals("--io-threads")) {
+                        options.ioThreads = Integer.parseInt(arguments.remove());
+                        ioThreadsGiven = true;
+                        if (options.ioThreads < 1) {
+                            throw new IllegalArgumentException("io threads must be at least 1");
+                        }
+                    } else if (flag.equals("--persistent")) {
+                        options.persistent = true;
+                    } else if (flag.equals("--mapped")) {
+                        options.mapped = true;
+                    } else if (flag.equals("--reveal-chunk")) {
+                        options.revealChunk = Integer.parseInt(arguments.remove());
+                        if (options.revealChunk < 0) {
+                            throw new IllegalArgumentException("reveal chunk cannot be negative");
                         }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
@@ -250,14 +771,64 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (options.chunked && options.file != null) {
+                throw new IllegalArgumentException("--chunked cannot be combined with --file");
+            }
+            if (options.chunked && options.mapped) {
+                throw new IllegalArgumentException("--chunked cannot be combined with --mapped");
+            }
+            if (options.chunked && options.regionIndex) {
+                throw new IllegalArgumentException("--chunked cannot be combined with --region-index");
+            }
+            if (options.chunked && (options.revealThreads > 1 || options.revealChunk > 0 || options.optimisticReveal)) {
+                throw new IllegalArgumentException(
+                        "--chunked cannot be combined with --reveal-threads, --reveal-chunk or --optimistic-reveal");
+            }
+            if (options.persistent && (options.mapped || options.chunked)) {
+                throw new IllegalArgumentException("--persistent cannot be combined with --mapped or --chunked");
+            }
+            if (minesGiven && (options.chunked || options.file != null)) {
+                throw new IllegalArgumentException("--mines only applies to random boards of a fixed size");
+            }
+            if (options.size != null && options.mines > (long) options.size * options.size) {
+                throw new IllegalArgumentException("mines cannot be more than the " + (long) options.size * options.size
+                        + " squares of the board");
+            }
+            if (options.combining && options.actor) {
+                throw new IllegalArgumentException("--combining cannot be combined with --actor");
+            }
+            if (options.fair && (options.combining || options.actor)) {
+                throw new IllegalArgumentException("--fair cannot be combined with --combining or --actor");
+            }
+            if (options.lazyCounts && options.file == null) {
+                throw new IllegalArgumentException("--lazy-counts only applies to --file boards");
+            }
+            if (ioThreadsGiven && !options.nio) {
+                throw new IllegalArgumentException("--io-threads only applies to --nio");
+            }
+            if (queueGiven && options.workers == 0) {
+                throw new IllegalArgumentException("--queue only applies to --workers");
+            }
+            if (options.virtualThreads && options.nio) {
+                throw new IllegalArgumentException("--virtual-threads cannot be combined with --nio");
+            }
+            if (options.virtualThreads && !virtualThreadsAvailable()) {
+                throw new IllegalArgumentException("--virtual-threads needs Java 21 or later");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]"
+                    + " [--reveal-threads THREADS] [--reveal-chunk CHUNK] [--chunked] [--mapped]"
+                    + " [--seed SEED] [--mines MINES] [--lazy-counts] [--combining | --actor | --fair]"
+                    + " [--optimistic-reveal] [--region-index] [--persistent] [--read-rate RATE] [--write-rate RATE]"
+                    + " [--burst BURST] [--max-delay MILLIS] [--nio] [--io-threads THREADS]"
+                    + " [--virtual-threads] [--max-sessions SESSIONS] [--backlog BACKLOG] [--workers WORKERS]"
+                    + " [--queue QUEUE] [--stats-interval SECONDS]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, size, port);
+            runMinesweeperServer(options);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -275,18 +846,96 @@ public class MinesweeperServer {
      * @param port The network port on which the server should listen.
      */
     public static void runMinesweeperServer(boolean debug, File file, Integer size, int port) throws IOException {
-        
-        // TODO: Continue your implementation here.
-        
-        MinesweeperServer server = new MinesweeperServer(port, debug);
-        if (file != null){
+        ServerOptions options = new ServerOptions();
+        options.debug = debug;
+        options.file = file;
+        options.size = size;
+        options.port = port;
+        runMinesweeperServer(options);
+    }
+
+    /**
+     * Start a MinesweeperServer with the given options, which must have either file or size null, but not both.
+     */
+    public static void runMinesweeperServer(ServerOptions options) throws IOException {
+        long seed = options.seed != null ? options.seed : new Random().nextLong();
+        if (options.chunked) {
+            board = new ChunkedBoard(seed, options.size == null ? 10 : options.size);
+            if (options.combining) {
+                board = new CombiningBoard(board);
+            } else if (options.actor) {
+                board = new BoardActor(board);
+            } else if (options.fair) {
+                board = new CommandScheduler(board);
+            }
+            serve(options);
+            return;
+        }
+        Storage storage = options.persistent ? Storage.PERSISTENT : options.mapped ? Storage.MAPPED : Storage.HEAP;
+        Board fixedBoard = null;
+        if (options.file != null){
         	
-        	board = new Board(file);
+        	fixedBoard = new Board(options.file, storage, options.lazyCounts);
         	
         }
-        else if(size != null){
-        	board = new Board(size);
+        else if(options.size != null){
+        	long mines = options.mines >= 0 ? options.mines : MineLayout.minesFor(options.size, options.mineDensity);
+        	fixedBoard = new Board(options.size, mines, seed, storage);
+        }
+        if (options.revealThreads > 1) {
+            fixedBoard.setParallelReveal(new ForkJoinPool(options.revealThreads));
+        }
+        fixedBoard.setIncrementalReveal(options.revealChunk);
+        fixedBoard.setOptimisticReveal(options.optimisticReveal);
+        fixedBoard.setRegionIndex(options.regionIndex);
+        if (options.combining) {
+            board = new CombiningBoard(fixedBoard);
+        } else if (options.actor) {
+            fixedBoard.setSingleWriter();
+            board = new BoardActor(fixedBoard);
+        } else if (options.fair) {
+            board = new CommandScheduler(fixedBoard);
+        } else {
+            board = fixedBoard;
+        }
+        serve(options);
+    }
+
+    /**
+     * Serve board with whichever server options asks for. Never returns unless an exception is thrown.
+     */
+    private static void serve(ServerOptions options) throws IOException {
+        if (options.nio) {
+            NioMinesweeperServer server = new NioMinesweeperServer(options, board);
+            reportLoad(server.getStats(), options.statsInterval);
+            server.serve();
+        } else {
+            MinesweeperServer server = new MinesweeperServer(options);
+            reportLoad(server.getStats(), options.statsInterval);
+            server.serve();
+        }
+    }
+
+    /**
+     * Log stats.describeLoad() every seconds seconds from a thread of its own, if seconds is greater than 0.
+     */
+    private static void reportLoad(final ServerStats stats, final int seconds) {
+        if (seconds <= 0) {
+            return;
         }
-        server.serve();
+        Thread reporter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(seconds * 1000L);
+                        System.err.println(stats.describeLoad());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "minesweeper-stats");
+        reporter.setDaemon(true);
+        reporter.start();
     }
 }
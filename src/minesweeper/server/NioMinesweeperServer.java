@@ -0,0 +1,632 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.nio.channels.Channels;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ast.CommandParser;
+import ast.GameBoard;
+
+/**
+ * A Minesweeper server speaking the same text protocol as MinesweeperServer, but serving every connection from
+ * a small, fixed set of I/O threads instead of a thread per connection, so thousands of players cost a few
+ * kilobytes each rather than a thread stack each.
+ *
+ * The thread calling serve accepts connections and hands them out in turn to the I/O threads. Each I/O thread
+ * waits on a Selector for any of its connections to have input or room for output, cuts the input into lines
+ * in a buffer kept for the connection, reads each line's command right out of that buffer with the connection's
+ * CommandParser, without making a String of it, runs it on the board itself and writes the answer through a
+ * buffer it keeps for all its connections. Only an answer that doesn't fit in the socket at once is copied into a
+ * buffer of the connection's own, and until it has been sent no more of the connection's commands are run, so a
+ * client that doesn't read its answers can't make the server buffer them without end.
+ *
+ * Rate limits are those of MinesweeperServer (see ConnectionLimits). A command held by them isn't slept on,
+ * which would hold up every other connection of the thread: the connection stops being read from until its
+ * bucket has a token again, and the thread's Selector wakes up in time for it.
+ *
+ * So are the session limit and the command workers. A connection over the session limit is answered BUSY and
+ * closed by the accepting thread, before any I/O thread sees it. With workers, an I/O thread only hands each
+ * command to the CommandPool and stops reading from its connection; the worker hands the answer back to the
+ * I/O thread, which sends it and goes on with the connection's next command. So a long dig cascade holds up
+ * a worker instead of every connection of an I/O thread.
+ *
+ * A connection switched to protocol v2 (see ProtocolV2) keeps being read from while its commands are with the
+ * workers, up to ProtocolV2.MAX_IN_FLIGHT of them, and each answer is sent as soon as it comes back, tagged with
+ * its command's ID; one that comes back while an earlier one is still waiting for room in the socket is queued
+ * behind it in the connection's buffer. Without workers a v2 connection's commands run one after another like
+ * any other's, only tagged.
+ *
+ * A line longer than LONGEST_LINE can't be a valid command, so it is answered like any other invalid input,
+ * with the board.
+ *
+ * Thread safety: a connection is only ever touched by the I/O thread it was handed to. The board is shared by
+ * all of them, like in MinesweeperServer, and every GameBoard is threadsafe. The counters of players are atomic.
+ */
+public class NioMinesweeperServer {
+    /**
+     * The longest line read from a client, in bytes, including its line terminator.
+     */
+    public static final int LONGEST_LINE = 1024;
+
+    /**
+     * What Connection.nextCommand returns when there is no complete line yet.
+     */
+    private static final int NO_LINE = -1;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocketChannel serverChannel;
+    private final GameBoard board;
+    private final ServerOptions options;
+    private final ServerStats stats = new ServerStats();
+    private final AtomicInteger players = new AtomicInteger();
+    private final AtomicInteger playersSeen = new AtomicInteger();
+    private final IoThread[] ioThreads;
+    private final CommandPool pool;
+
+    /**
+     * Make a server that listens on options.port, with options.ioThreads I/O threads, for players of board.
+     */
+    public NioMinesweeperServer(ServerOptions options, GameBoard board) throws IOException {
+        this.options = options;
+        this.board = board;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(options.port), options.backlog);
+        pool = options.workers > 0 ? new CommandPool(options, stats) : null;
+        ioThreads = new IoThread[Math.max(1, options.ioThreads)];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(i);
+        }
+    }
+
+    /**
+     * @return the port the server listens on, which is picked by the system if it was made with port 0
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the counters kept across all connections, such as how often each client was throttled
+     */
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the number of players connected right now
+     */
+    public int getPlayers() {
+        return players.get();
+    }
+
+    /**
+     * Start the I/O threads and accept connections, handing them out to the I/O threads in turn.
+     * Never returns unless an exception is thrown.
+     *
+     * @throws IOException if the server socket is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    public void serve() throws IOException {
+        for (IoThread ioThread : ioThreads) {
+            ioThread.start();
+        }
+        for (int next = 0; ; next = (next + 1) % ioThreads.length) {
+            SocketChannel channel = serverChannel.accept();
+            if (!admit()) {
+                turnAway(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            ioThreads[next].add(channel);
+        }
+    }
+
+    /**
+     * Count a new player, unless there are already options.maxSessions.
+     *
+     * @return false if the player must be turned away
+     */
+    private boolean admit() {
+        while (true) {
+            int connected = players.get();
+            if (options.maxSessions > 0 && connected >= options.maxSessions) {
+                return false;
+            }
+            if (players.compareAndSet(connected, connected + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Tell a player the server is full and hang up. The channel is still blocking, and the answer is short
+     * enough to go straight into the socket's empty buffer.
+     */
+    private void turnAway(SocketChannel channel) {
+        stats.sessionRejected();
+        try {
+            Channels.newOutputStream(channel).write(
+                    (MinesweeperServer.BUSY + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            // They'll find out when the connection closes.
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A connected player, as seen by the I/O thread serving it.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final int player;
+        final ConnectionLimits limits;
+        final CommandParser parser = new CommandParser();
+        final ByteBuffer in = ByteBuffer.allocate(LONGEST_LINE);
+        SelectionKey key;
+
+        /**
+         * The part of an answer that didn't fit in the socket, or null if everything has been sent.
+         */
+        ByteBuffer out;
+
+        /**
+         * True if the last line ended in \r, so a \n at the start of the next input ends no line.
+         */
+        boolean skipNewline;
+
+        /**
+         * True if the current line has overflowed the input buffer and is being skipped.
+         */
+        boolean overlong;
+
+        /**
+         * True once the client stopped sending; what it sent before is still run.
+         */
+        boolean ended;
+
+        /**
+         * True once the client said bye, or blew up outside debug mode, or sent its last command.
+         */
+        boolean closing;
+
+        /**
+         * True while a command of the connection is with the workers.
+         */
+        boolean running;
+
+        /**
+         * True once the client switched to protocol v2. Its commands with the workers are counted in inFlight
+         * instead of running, and nextCommand leaves the ID of the line it read in id.
+         */
+        boolean v2;
+        int inFlight;
+        long id;
+
+        /**
+         * The command held by the rate limits, and when to ask about it again; heldUntil is 0 if there is none.
+         * Its coordinates stay in the parser, which reads no more lines until it has run.
+         */
+        int held;
+        long heldUntil;
+
+        Connection(SocketChannel channel, int player, ConnectionLimits limits) {
+            this.channel = channel;
+            this.player = player;
+            this.limits = limits;
+        }
+
+        /**
+         * Parse the next complete line of input, leaving its coordinates in parser.
+         *
+         * @return the line's command, or NO_LINE if there is no complete line yet. A line that overflowed the
+         *         buffer is INVALID.
+         */
+        int nextCommand() {
+            byte[] bytes = in.array();
+            int end = in.position();
+            int start = 0;
+            if (skipNewline && end > 0) {
+                skipNewline = false;
+                if (bytes[0] == '\n') {
+                    start = 1;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    int command;
+                    if (overlong) {
+                        command = CommandParser.INVALID;
+                        id = ProtocolV2.NO_ID;
+                    } else if (v2) {
+                        command = parser.parseTagged(bytes, start, i - start);
+                        id = parser.getId();
+                    } else {
+                        command = parser.parse(bytes, start, i - start);
+                    }
+                    overlong = false;
+                    int consumed = i + 1;
+                    if (bytes[i] == '\r') {
+                        if (consumed < end) {
+                            if (bytes[consumed] == '\n') {
+                                consumed++;
+                            }
+                        } else {
+                            skipNewline = true;
+                        }
+                    }
+                    System.arraycopy(bytes, consumed, bytes, 0, end - consumed);
+                    in.position(end - consumed);
+                    return command;
+                }
+            }
+            if (start > 0) {
+                System.arraycopy(bytes, start, bytes, 0, end - start);
+                in.position(end - start);
+            }
+            if (!in.hasRemaining()) {
+                //No command is this long; keep skipping until the line ends.
+                overlong = true;
+                in.clear();
+            }
+            return NO_LINE;
+        }
+    }
+
+    /**
+     * One of the threads serving connections.
+     */
+    private class IoThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+        /**
+         * The answers of commands the workers have run, each with its connection and, for protocol v2, its ID,
+         * waiting to be sent.
+         */
+        private final ConcurrentLinkedQueue<Object[]> answered = new ConcurrentLinkedQueue<Object[]>();
+
+        /**
+         * The connections whose command is held by their rate limits.
+         */
+        private final ArrayList<Connection> held = new ArrayList<Connection>();
+
+        /**
+         * Every answer is written through this buffer, which grows to the longest answer.
+         */
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+
+        IoThread(int number) throws IOException {
+            super("minesweeper-io-" + number);
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand a connection to this thread. May be called from any thread.
+         */
+        void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    long timeout = 0;
+                    for (Connection connection : held) {
+                        long millis = Math.max(1, (connection.heldUntil - System.nanoTime() + 999999) / 1000000);
+                        timeout = timeout == 0 ? millis : Math.min(timeout, millis);
+                    }
+                    selector.select(timeout);
+                    for (SocketChannel channel = accepted.poll(); channel != null; channel = accepted.poll()) {
+                        open(channel);
+                    }
+                    for (Object[] answer = answered.poll(); answer != null; answer = answered.poll()) {
+                        finish((Connection) answer[0], (Long) answer[2], (String) answer[1]);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                flush(connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                        } catch (IOException e) {
+                            close(connection);
+                        }
+                    }
+                    resumeHeld();
+                } catch (IOException e) {
+                    e.printStackTrace(); // but keep serving the other connections
+                }
+            }
+        }
+
+        private void open(SocketChannel channel) throws IOException {
+            int player = playersSeen.incrementAndGet();
+            Connection connection = new Connection(channel, player, new ConnectionLimits(options, stats, player));
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                players.decrementAndGet();
+                return;
+            }
+            stats.connected(player);
+            try {
+                send(connection, MinesweeperServer.welcome(players.get()));
+                interest(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            if (connection.channel.read(connection.in) < 0) {
+                //Like readLine, take whatever the client sent last as a line even if it wasn't finished.
+                if (connection.in.position() > 0 && connection.in.hasRemaining()) {
+                    connection.in.put((byte) '\n');
+                }
+                connection.ended = true;
+            }
+            process(connection);
+        }
+
+        /**
+         * Run the connection's commands, as long as it has complete lines of input, all its answers have been
+         * sent, and no command is held by its rate limits or with the workers (or, in protocol v2, no more than
+         * ProtocolV2.MAX_IN_FLIGHT are).
+         */
+        private void process(Connection connection) throws IOException {
+            while (!connection.closing && connection.out == null && connection.heldUntil == 0 && !connection.running
+                    && connection.inFlight < ProtocolV2.MAX_IN_FLIGHT) {
+                int command = connection.nextCommand();
+                if (command == NO_LINE) {
+                    connection.closing = connection.ended;
+                    break;
+                }
+                if (command == CommandParser.V2 && !connection.v2) {
+                    send(connection, ProtocolV2.ACCEPTED);
+                    connection.v2 = true;
+                    connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    continue;
+                }
+                long wait = connection.limits.admit(command);
+                if (wait > 0) {
+                    connection.held = command;
+                    connection.heldUntil = System.nanoTime() + wait;
+                    held.add(connection);
+                    break;
+                }
+                if (command == CommandParser.BYE && connection.v2 && wait != ConnectionLimits.REJECT) {
+                    // Not with the workers, so no line after it is run while it waits for them.
+                    reply(connection, connection.id, "Baibai!");
+                    continue;
+                }
+                answer(connection, command, wait == ConnectionLimits.REJECT);
+            }
+            interest(connection);
+        }
+
+        private void resumeHeld() throws IOException {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                Connection connection = held.get(i);
+                if (connection.heldUntil - System.nanoTime() > 0) {
+                    continue;
+                }
+                long wait = connection.limits.resume();
+                if (wait > 0) {
+                    connection.heldUntil = System.nanoTime() + wait;
+                    continue;
+                }
+                held.remove(i);
+                connection.heldUntil = 0;
+                try {
+                    answer(connection, connection.held, wait == ConnectionLimits.REJECT);
+                    process(connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void answer(final Connection connection, final int command, boolean rejected) throws IOException {
+            final long id = connection.id;
+            final int x = connection.parser.getX();
+            final int y = connection.parser.getY();
+            if (rejected) {
+                reply(connection, id, MinesweeperServer.THROTTLED);
+            } else if (pool == null) {
+                reply(connection, id, run(command, x, y));
+            } else if (pool.submit(new Runnable() {
+                public void run() {
+                    answered.add(new Object[] {connection, IoThread.this.run(command, x, y), id});
+                    selector.wakeup();
+                }
+            })) {
+                if (connection.v2) {
+                    connection.inFlight++;
+                } else {
+                    connection.running = true;
+                }
+            } else {
+                reply(connection, id, MinesweeperServer.BUSY);
+            }
+        }
+
+        /**
+         * @return the answer to the command, or null if running it failed and the connection must be closed
+         */
+        private String run(int command, int x, int y) {
+            try {
+                return MinesweeperServer.handleRequest(command, x, y, board);
+            } catch (Throwable e) {
+                //In MinesweeperServer this would end the connection's thread, so end the connection. Errors too:
+                //on a worker, letting one escape would mean finish never runs and the connection hangs.
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * Send the answer to a command of the connection that came back from the workers, and go on with the
+         * connection's next ones.
+         */
+        private void finish(Connection connection, long id, String output) {
+            if (connection.v2) {
+                connection.inFlight--;
+            } else {
+                connection.running = false;
+            }
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            try {
+                reply(connection, id, output);
+                process(connection);
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        /**
+         * Send output as the answer to a command, tagged id if the connection speaks protocol v2, or close the
+         * connection if there is none.
+         */
+        private void reply(Connection connection, long id, String output) throws IOException {
+            if (output == null) {
+                connection.closing = true;
+                return;
+            }
+            if (connection.v2) {
+                sendTagged(connection, id, output);
+            } else {
+                send(connection, output);
+            }
+            if ((!options.debug && output.equals("BOOM!")) || output.equals("Baibai!")) {
+                connection.closing = true;
+            }
+        }
+
+        /**
+         * Write text and a line separator to the connection, keeping whatever doesn't fit for later.
+         */
+        private void send(Connection connection, String text) throws IOException {
+            byte[] bytes = buffer(text.length() + NEWLINE.length);
+            copy(text, bytes, 0);
+            System.arraycopy(NEWLINE, 0, bytes, text.length(), NEWLINE.length);
+            write(connection, text.length() + NEWLINE.length);
+        }
+
+        /**
+         * Write text to the connection as the protocol v2 answer tagged id, keeping whatever doesn't fit for later.
+         */
+        private void sendTagged(Connection connection, long id, String text) throws IOException {
+            byte[] bytes = buffer(ProtocolV2.longestHeader() + text.length());
+            int header = ProtocolV2.header(bytes, 0, id, text.length());
+            copy(text, bytes, header);
+            write(connection, header + text.length());
+        }
+
+        /**
+         * @return the array of out, cleared and grown to hold at least length bytes
+         */
+        private byte[] buffer(int length) {
+            if (out.capacity() < length) {
+                out = ByteBuffer.allocate(Math.max(length, out.capacity() * 2));
+            }
+            out.clear();
+            return out.array();
+        }
+
+        private void copy(String text, byte[] bytes, int at) {
+            for (int i = 0; i < text.length(); i++) {
+                bytes[at + i] = (byte) text.charAt(i);
+            }
+        }
+
+        /**
+         * Write the first length bytes of out to the connection, after whatever it still has waiting to be sent.
+         */
+        private void write(Connection connection, int length) throws IOException {
+            out.limit(length);
+            if (connection.out == null) {
+                connection.channel.write(out);
+                if (!out.hasRemaining()) {
+                    return;
+                }
+            }
+            ByteBuffer waiting = ByteBuffer.allocate((connection.out == null ? 0 : connection.out.remaining())
+                    + out.remaining());
+            if (connection.out != null) {
+                waiting.put(connection.out);
+            }
+            waiting.put(out);
+            waiting.flip();
+            connection.out = waiting;
+        }
+
+        private void flush(Connection connection) throws IOException {
+            connection.channel.write(connection.out);
+            if (!connection.out.hasRemaining()) {
+                connection.out = null;
+                process(connection);
+            }
+        }
+
+        /**
+         * Wait for whatever the connection needs next: room for the rest of an answer, more input, its held
+         * command's time or the workers' answer; or close it, once it is closing and has nothing left to send or
+         * to wait for.
+         */
+        private void interest(Connection connection) throws IOException {
+            if (connection.out != null) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            } else if (connection.closing && connection.inFlight == 0) {
+                close(connection);
+            } else if (connection.closing || connection.heldUntil != 0 || connection.running || connection.ended
+                    || connection.inFlight >= ProtocolV2.MAX_IN_FLIGHT) {
+                connection.key.interestOps(0);
+            } else {
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void close(Connection connection) {
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            held.remove(connection);
+            connection.key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            players.decrementAndGet();
+            MinesweeperServer.reportThrottled(connection.player, stats.disconnected(connection.player));
+        }
+    }
+}
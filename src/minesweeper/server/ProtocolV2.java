@@ -0,0 +1,103 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Protocol v2, which a client may switch its connection to so it can send commands without waiting for the
+ * answers to the ones before, and still tell which answer is which.
+ *
+ * In the original protocol every line is a command and every answer is the bare text of a board, help or
+ * goodbye, a line or many, so a client has to wait for one answer to know where the next one starts. A client
+ * wanting v2 sends the line "v2" (at any time, but usually straight after the greeting), and the server answers
+ * ACCEPTED on a line of its own. From then on:
+ *
+ *   REQUEST  :== ID SPACE COMMAND NEWLINE
+ *   RESPONSE :== ID SPACE LENGTH "\n" BODY
+ *
+ * where ID is 1 to CommandParser.LONGEST_ID digits picked by the client, COMMAND is any command of the original
+ * protocol, LENGTH is the number of bytes of BODY in decimal, and BODY is exactly what the original protocol
+ * would have answered, without the line separator after it. A line that doesn't start with an ID is answered as
+ * an invalid command, with ID -1.
+ *
+ * A client may send as many commands as it likes before reading any answer. Without workers every connection's
+ * commands run one after another and are answered in the order they were sent. With workers (see CommandPool)
+ * up to MAX_IN_FLIGHT commands of a connection run at once, and each is answered as soon as it is done, so a
+ * quick look needn't wait behind a long dig cascade: answers may come back in any order, and commands sent
+ * together may run in any order. A client that needs one command to happen before another waits for the
+ * first one's answer before sending the second.
+ *
+ * A connection switched to v2 has Nagle's algorithm turned off (TCP_NODELAY): its answers are written one at a
+ * time, several of them before the client reads any, and each would otherwise wait for the previous one to be
+ * acknowledged, which a client may delay by tens of milliseconds.
+ *
+ * After "bye", or BOOM! outside debug mode, the connection closes once every command already running has been
+ * answered; lines sent after it aren't run.
+ */
+public class ProtocolV2 {
+    /**
+     * The line the server answers "v2" with, before switching the connection.
+     */
+    public static final String ACCEPTED = "v2 ok";
+
+    /**
+     * The most commands of one v2 connection the workers run at once. Past that, the connection isn't read from
+     * until one of them is answered, like a connection whose answer doesn't fit in its socket.
+     */
+    public static final int MAX_IN_FLIGHT = 32;
+
+    /**
+     * The ID an answer is tagged with when its line had none.
+     */
+    public static final long NO_ID = -1;
+
+    private ProtocolV2() {
+    }
+
+    /**
+     * Write body to out as the answer tagged id.
+     */
+    static void write(Writer out, long id, String body) throws IOException {
+        out.write(Long.toString(id));
+        out.write(' ');
+        out.write(Integer.toString(body.length()));
+        out.write('\n');
+        out.write(body);
+    }
+
+    /**
+     * Write the header of the answer tagged id, whose body is length bytes long, into bytes from at on.
+     *
+     * @return where the header ends
+     */
+    static int header(byte[] bytes, int at, long id, int length) {
+        at = digits(bytes, at, id);
+        bytes[at++] = ' ';
+        at = digits(bytes, at, length);
+        bytes[at++] = '\n';
+        return at;
+    }
+
+    /**
+     * @return the most bytes header writes
+     */
+    static int longestHeader() {
+        // The longest ID, or -1, a space, an int and the newline.
+        return 20 + 1 + 10 + 1;
+    }
+
+    private static int digits(byte[] bytes, int at, long value) {
+        if (value < 0) {
+            bytes[at++] = '-';
+            value = -value;
+        }
+        long power = 1;
+        while (power <= value / 10) {
+            power *= 10;
+        }
+        for (; power > 0; power /= 10) {
+            bytes[at++] = (byte) ('0' + value / power % 10);
+        }
+        return at;
+    }
+}
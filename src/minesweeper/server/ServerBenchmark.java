@@ -0,0 +1,484 @@
+package minesweeper.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ast.Board;
+import ast.DelayHistogram;
+import ast.GameBoard;
+
+/**
+ * Not part of the game: measurements of the servers I run by hand (it has a main method), to compare the
+ * thread-per-connection MinesweeperServer with the event-loop NioMinesweeperServer, and on Java 21 or later with
+ * a MinesweeperServer on virtual threads too. The servers are started in this JVM on ports picked by the system,
+ * serving a 20x20 board with no bombs in debug mode, and are talked to over loopback sockets exactly like a player
+ * would.
+ *
+ * Usage: ServerBenchmark (connections | throughput | load | pipelined) [COUNT ...]
+ *
+ * connections: for every COUNT given (default 1000 4000) opens that many connections to each server and reads
+ * their greetings, then reports how long connecting took, how many threads and how much heap the JVM uses with
+ * all of them open (the clients themselves use no threads), and the median time a look takes on one of them.
+ * Run it with a high enough limit of open files: every connection takes two.
+ *
+ * throughput: for every COUNT given (default 1 16 64) runs that many clients, each on a thread of its own,
+ * issuing looks, flags and deflags for a second and reading every answer, and reports commands per second.
+ *
+ * load: the COUNTs come in pairs, IDLE ACTIVE (default 50000 5000). For every pair opens IDLE connections that
+ * stay quiet and ACTIVE ones whose players each look every THINK_MILLIS, on a thread each, for LOAD_SECONDS, and
+ * reports the percentiles of how long the looks took, with the threads and heap used. Both ends of every
+ * connection are in this JVM, so the default needs well over 100000 open files.
+ *
+ * pipelined: PIPELINE_CLIENTS clients, each on a thread of its own, issue looks, flags and deflags for a second,
+ * first in the original protocol, one command per round trip, then in protocol v2 (see ProtocolV2) for every
+ * COUNT given (default 1 16 256), sending COUNT commands at once and then reading their COUNT answers. It reports
+ * commands per second for each server, including one with workers, which answers v2 commands as they finish.
+ */
+public class ServerBenchmark {
+    private static final int SIZE = 20;
+    private static final long THINK_MILLIS = 100;
+    private static final long LOAD_SECONDS = 5;
+    private static final int PIPELINE_CLIENTS = 4;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "connections";
+        if (mode.equals("connections")) {
+            connections(counts(args, 1000, 4000));
+        } else if (mode.equals("throughput")) {
+            throughput(counts(args, 1, 16, 64));
+        } else if (mode.equals("load") && args.length % 2 == 1) {
+            load(counts(args, 50000, 5000));
+        } else if (mode.equals("pipelined")) {
+            pipelined(counts(args, 1, 16, 256));
+        } else {
+            System.err.println("usage: ServerBenchmark (connections | throughput | load | pipelined) [COUNT ...]");
+            return;
+        }
+        System.exit(0);
+    }
+
+    private static int[] counts(String[] args, int... defaults) {
+        if (args.length <= 1) {
+            return defaults;
+        }
+        int[] counts = new int[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            counts[i - 1] = Integer.parseInt(args[i]);
+        }
+        return counts;
+    }
+
+    private static void connections(int[] counts) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("server\tconnections\tconnect ms\tthreads\theap MB\tlook p50 us");
+        List<Server> servers = startServers();
+        for (int count : counts) {
+            for (Server server : servers) {
+                connectionReport(server.name, server.port, count);
+            }
+        }
+    }
+
+    private static void connectionReport(String server, int port, int count) throws Exception {
+        List<Client> clients = new ArrayList<Client>();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                clients.add(new Client(port));
+            }
+            long connected = System.nanoTime();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            double heapMegabytes = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+            List<Long> looks = new ArrayList<Long>();
+            Random random = new Random(count);
+            for (int i = 0; i < 200; i++) {
+                Client client = clients.get(random.nextInt(clients.size()));
+                long lookStart = System.nanoTime();
+                client.command("look");
+                looks.add(System.nanoTime() - lookStart);
+            }
+            Collections.sort(looks);
+            System.out.printf("%s\t%d\t%.0f\t%d\t%.1f\t%.1f%n", server, count, (connected - start) / 1e6, threads,
+                    heapMegabytes, looks.get(looks.size() / 2) / 1e3);
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            settle();
+        }
+    }
+
+    private static void load(int[] counts) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("server\tidle\tactive\tlooks/s\tp50 us\tp99 us\tp99.9 us\tmax us\tthreads\theap MB");
+        List<Server> servers = startServers();
+        for (int pair = 0; pair < counts.length; pair += 2) {
+            for (Server server : servers) {
+                loadReport(server, counts[pair], counts[pair + 1]);
+            }
+        }
+    }
+
+    private static void loadReport(Server server, int idle, int active) throws Exception {
+        final List<Client> clients = new ArrayList<Client>();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final DelayHistogram looks = new DelayHistogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            for (int i = 0; i < idle + active; i++) {
+                clients.add(new Client(server.port));
+            }
+            for (int c = idle; c < idle + active; c++) {
+                final Client client = clients.get(c);
+                final long firstLook = c;
+                // Small stacks, so thousands of players fit in the heap.
+                Thread thread = new Thread(null, new Runnable() {
+                    public void run() {
+                        try {
+                            // Spread the players' first looks over a think time.
+                            Thread.sleep(firstLook % THINK_MILLIS);
+                            while (!stop.get()) {
+                                long start = System.nanoTime();
+                                client.command("look");
+                                looks.record(System.nanoTime() - start);
+                                Thread.sleep(THINK_MILLIS);
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "player", 128 * 1024);
+                thread.start();
+                threads.add(thread);
+            }
+            Thread.sleep(LOAD_SECONDS * 1000);
+            int threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+            Runtime runtime = Runtime.getRuntime();
+            double heapMegabytes = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            System.out.printf("%s\t%d\t%d\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f\t%d\t%.1f%n", server.name, idle, active,
+                    looks.getCount() / (double) LOAD_SECONDS, looks.getPercentileNanos(50) / 1e3,
+                    looks.getPercentileNanos(99) / 1e3, looks.getPercentileNanos(99.9) / 1e3,
+                    looks.getMaxNanos() / 1e3, threadCount, heapMegabytes);
+        } finally {
+            stop.set(true);
+            for (Client client : clients) {
+                client.close();
+            }
+            settle();
+        }
+    }
+
+    /**
+     * Lets the servers see the connections just closed go, so the next measurement doesn't count them.
+     */
+    private static void settle() throws InterruptedException {
+        System.gc();
+        Thread.sleep(1000);
+    }
+
+    private static void throughput(int[] counts) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        List<Server> servers = startServers();
+        System.out.print("clients");
+        for (Server server : servers) {
+            System.out.print("\t" + server.name + " commands/s");
+        }
+        System.out.println();
+        for (int count : counts) {
+            System.out.print(count);
+            for (Server server : servers) {
+                System.out.print("\t" + play(server.port, count));
+            }
+            System.out.println();
+        }
+    }
+
+    private static void pipelined(int[] depths) throws Exception {
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        List<Server> servers = startServers();
+        ServerOptions workers = options();
+        workers.workers = Runtime.getRuntime().availableProcessors();
+        workers.queue = PIPELINE_CLIENTS * ProtocolV2.MAX_IN_FLIGHT;
+        servers.add(new Server("nio workers", startNio(board(), workers)));
+        System.out.print("protocol\tdepth");
+        for (Server server : servers) {
+            System.out.print("\t" + server.name + " commands/s");
+        }
+        System.out.println();
+        System.out.print("v1\t1");
+        for (Server server : servers) {
+            System.out.print("\t" + play(server.port, PIPELINE_CLIENTS));
+        }
+        System.out.println();
+        for (int depth : depths) {
+            System.out.print("v2\t" + depth);
+            for (Server server : servers) {
+                System.out.print("\t" + pipeline(server.port, PIPELINE_CLIENTS, depth));
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Runs clients threads issuing looks, flags and deflags to the server on port for a second, in protocol v2,
+     * depth commands at a time.
+     *
+     * @return the number of commands answered
+     */
+    private static long pipeline(int port, int clients, final int depth) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final long[] commands = new long[clients];
+        final List<Client> connections = new ArrayList<Client>();
+        for (int c = 0; c < clients; c++) {
+            Client connection = new Client(port);
+            connection.switchToV2();
+            connections.add(connection);
+        }
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(client);
+                    Client connection = connections.get(client);
+                    StringBuilder batch = new StringBuilder();
+                    try {
+                        for (long id = 0; !stop.get(); ) {
+                            batch.setLength(0);
+                            for (int i = 0; i < depth; i++, id++) {
+                                String location = random.nextInt(SIZE) + " " + random.nextInt(SIZE);
+                                int command = random.nextInt(3);
+                                batch.append(id).append(' ').append(command == 0 ? "look" : command == 1
+                                        ? "flag " + location : "deflag " + location).append('\n');
+                            }
+                            connection.pipeline(batch, depth);
+                            commands[client] += depth;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        Thread.sleep(1000);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Client connection : connections) {
+            connection.close();
+        }
+        long total = 0;
+        for (long count : commands) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Runs clients threads issuing looks, flags and deflags to the server on port for a second.
+     *
+     * @return the number of commands answered
+     */
+    private static long play(int port, int clients) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final long[] commands = new long[clients];
+        final List<Client> connections = new ArrayList<Client>();
+        for (int c = 0; c < clients; c++) {
+            connections.add(new Client(port));
+        }
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            threads[c] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(client);
+                    Client connection = connections.get(client);
+                    try {
+                        while (!stop.get()) {
+                            String location = random.nextInt(SIZE) + " " + random.nextInt(SIZE);
+                            int command = random.nextInt(3);
+                            connection.command(command == 0 ? "look" : command == 1 ? "flag " + location
+                                    : "deflag " + location);
+                            commands[client]++;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        Thread.sleep(1000);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Client connection : connections) {
+            connection.close();
+        }
+        long total = 0;
+        for (long count : commands) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static ServerOptions options() {
+        ServerOptions options = new ServerOptions();
+        options.port = 0;
+        options.debug = true;
+        return options;
+    }
+
+    /**
+     * A server started by this benchmark.
+     */
+    private static class Server {
+        final String name;
+        final int port;
+
+        Server(String name, int port) {
+            this.name = name;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Starts one server of every kind this Java can run, all serving the same board.
+     */
+    private static List<Server> startServers() throws IOException {
+        GameBoard board = board();
+        List<Server> servers = new ArrayList<Server>();
+        servers.add(new Server("threads", startThreaded(board, false)));
+        if (MinesweeperServer.virtualThreadsAvailable()) {
+            servers.add(new Server("virtual", startThreaded(board, true)));
+        }
+        servers.add(new Server("nio", startNio(board)));
+        return servers;
+    }
+
+    private static GameBoard board() {
+        return new Board(SIZE, 0, 0, false);
+    }
+
+    /**
+     * Starts a MinesweeperServer on a thread of its own and returns its port.
+     */
+    private static int startThreaded(GameBoard board, boolean virtualThreads) throws IOException {
+        ServerOptions options = options();
+        options.virtualThreads = virtualThreads;
+        final MinesweeperServer server = new MinesweeperServer(options);
+        MinesweeperServer.board = board;
+        start(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        return server.getPort();
+    }
+
+    /**
+     * Starts a NioMinesweeperServer on a thread of its own and returns its port.
+     */
+    private static int startNio(GameBoard board) throws IOException {
+        return startNio(board, options());
+    }
+
+    private static int startNio(GameBoard board, ServerOptions options) throws IOException {
+        final NioMinesweeperServer server = new NioMinesweeperServer(options, board);
+        start(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        return server.getPort();
+    }
+
+    private static void start(Runnable server) {
+        Thread thread = new Thread(server);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A player's connection, past the greeting.
+     */
+    private static class Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            // The greeting ends with a blank line.
+            in.readLine();
+            in.readLine();
+        }
+
+        /**
+         * Sends a command answered with the board and reads the answer: a line per row and a blank line.
+         */
+        void command(String command) throws IOException {
+            out.println(command);
+            for (int row = 0; row <= SIZE; row++) {
+                in.readLine();
+            }
+        }
+
+        /**
+         * Switches the connection to protocol v2.
+         */
+        void switchToV2() throws IOException {
+            out.println("v2");
+            in.readLine();
+        }
+
+        /**
+         * Sends commands, a batch of lines of protocol v2, at once and reads the answers to all count of them.
+         */
+        void pipeline(CharSequence commands, int count) throws IOException {
+            out.append(commands);
+            out.flush();
+            for (int i = 0; i < count; i++) {
+                String header = in.readLine();
+                long length = Long.parseLong(header.substring(header.indexOf(' ') + 1));
+                while (length > 0) {
+                    length -= in.skip(length);
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
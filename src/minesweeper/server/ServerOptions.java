@@ -0,0 +1,167 @@
+package minesweeper.server;
+
+import java.io.File;
+
+import ast.MineLayout;
+
+/**
+ * The settings a MinesweeperServer is started with, as parsed from the command line by MinesweeperServer.main.
+ * Every field starts out with the value used when its option isn't given.
+ */
+public class ServerOptions {
+    /**
+     * True if the server should _not_ disconnect a client after a BOOM message.
+     */
+    public boolean debug = false;
+
+    /**
+     * Port to listen on, 0 to 65535 inclusive.
+     */
+    public int port = 4444;
+
+    /**
+     * If not null, start with a random board of size size * size. Either size or file must be null.
+     */
+    public Integer size = 10;
+
+    /**
+     * If not null, start with the board stored in this file. Either size or file must be null.
+     */
+    public File file = null;
+
+    /**
+     * Number of threads finishing large dig cascades. 1 means every cascade runs on the thread that dug.
+     */
+    public int revealThreads = 1;
+
+    /**
+     * If greater than 0, dig cascades release the board lock after every revealChunk squares.
+     */
+    public int revealChunk = 0;
+
+    /**
+     * If true, dig cascades are worked out without holding the board's locks and only take them to commit.
+     */
+    public boolean optimisticReveal = false;
+
+    /**
+     * If true, the board keeps a RegionIndex, so a dig into a region of squares with no bombs around them reveals
+     * it without searching for it, at the cost of 8 bytes per square (see ast.Board.setRegionIndex).
+     */
+    public boolean regionIndex = false;
+
+    /**
+     * If true, serve a ChunkedBoard, whose tiles are created as players touch them, and use size as its view size.
+     */
+    public boolean chunked = false;
+
+    /**
+     * If true, keep the squares of the board in a memory-mapped file instead of on the heap.
+     */
+    public boolean mapped = false;
+
+    /**
+     * If true, keep the squares of the board in a PersistentCellStore, so the board can be forked and snapshotted.
+     */
+    public boolean persistent = false;
+
+    /**
+     * If not null, decides where the bombs of a random board go. Otherwise a new seed is picked at startup.
+     */
+    public Long seed = null;
+
+    /**
+     * If not negative, the exact number of bombs on a random board of size size * size.
+     */
+    public long mines = -1;
+
+    /**
+     * The fraction of squares holding a bomb on a random board, used when mines is negative.
+     */
+    public double mineDensity = MineLayout.DEFAULT_DENSITY;
+
+    /**
+     * If true, a board loaded from file only counts the bombs around a square when the square is first revealed.
+     */
+    public boolean lazyCounts = false;
+
+    /**
+     * If true, players' commands are run against the board by flat combining (see ast.CombiningBoard).
+     */
+    public boolean combining = false;
+
+    /**
+     * If true, the board is owned by a single thread that runs every player's command (see ast.BoardActor).
+     */
+    public boolean actor = false;
+
+    /**
+     * If true, players' commands wait their turn in a CommandScheduler, which lets commands that change the board
+     * go ahead of waiting looks (see ast.CommandScheduler).
+     */
+    public boolean fair = false;
+
+    /**
+     * If greater than 0, the number of reads (look, help, spy) a second each client may issue on average.
+     */
+    public double readRate = 0;
+
+    /**
+     * If greater than 0, the number of writes (dig, flag, deflag) a second each client may issue on average.
+     */
+    public double writeRate = 0;
+
+    /**
+     * How many commands of each kind a client may issue at once before its rate applies. 0 means one second's worth.
+     */
+    public int burst = 0;
+
+    /**
+     * How long, in milliseconds, a command over its client's rate may be held until the rate allows it. Commands
+     * that would have to wait longer are rejected straight away.
+     */
+    public long maxDelayMillis = 100;
+
+    /**
+     * If true, serve every connection from a few I/O threads (see NioMinesweeperServer) instead of a thread each.
+     */
+    public boolean nio = false;
+
+    /**
+     * How many I/O threads serve connections when nio is true.
+     */
+    public int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * If true, the thread each connection gets is a virtual thread. Needs Java 21 or later.
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * If greater than 0, the most players connected at once. Anyone connecting beyond that is told the server is
+     * busy and disconnected.
+     */
+    public int maxSessions = 0;
+
+    /**
+     * How many connections the system may hold waiting to be accepted before it refuses more.
+     */
+    public int backlog = 50;
+
+    /**
+     * If greater than 0, commands run on this many workers (see CommandPool) instead of their connection's
+     * thread.
+     */
+    public int workers = 0;
+
+    /**
+     * How many commands may wait for a worker when workers is greater than 0. A command beyond that is told the
+     * server is busy.
+     */
+    public int queue = 64;
+
+    /**
+     * If greater than 0, how often, in seconds, the server logs how loaded it is (see ServerStats.describeLoad).
+     */
+    public int statsInterval = 0;
+}
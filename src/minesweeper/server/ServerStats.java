@@ -0,0 +1,182 @@
+package minesweeper.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters kept by a MinesweeperServer across all its connections: how many of each client's commands were
+ * throttled by its rate limits, split into reads (look, help, spy and anything not understood) and writes (dig,
+ * flag and deflag), and into commands that were only delayed and commands that were rejected.
+ *
+ * It also counts what the server turned away because it was full: connections over its session limit, and
+ * commands that found its command queue full (see CommandPool), along with how many commands are queued now and
+ * the most that ever were.
+ *
+ * Clients are counted while connected; when one disconnects its counts are only kept in the totals.
+ * Every method may be called from any thread.
+ */
+public class ServerStats {
+    public static final int READS_DELAYED = 0;
+    public static final int READS_REJECTED = 1;
+    public static final int WRITES_DELAYED = 2;
+    public static final int WRITES_REJECTED = 3;
+    private static final int COUNTERS = 4;
+
+    private final ConcurrentHashMap<Integer, AtomicLongArray> clients = new ConcurrentHashMap<Integer, AtomicLongArray>();
+    private final AtomicLongArray totals = new AtomicLongArray(COUNTERS);
+    private final AtomicLong sessionsRejected = new AtomicLong();
+    private final AtomicLong commandsRejected = new AtomicLong();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger mostQueued = new AtomicInteger();
+
+    /**
+     * Start counting for a client that just connected.
+     */
+    public void connected(int client) {
+        clients.put(client, new AtomicLongArray(COUNTERS));
+    }
+
+    /**
+     * Stop counting for a client that disconnected.
+     *
+     * @return what was counted for it, as by getThrottled
+     */
+    public long[] disconnected(int client) {
+        long[] counts = getThrottled(client);
+        clients.remove(client);
+        return counts;
+    }
+
+    /**
+     * Count a throttled command of a connected client.
+     *
+     * @param counter one of READS_DELAYED, READS_REJECTED, WRITES_DELAYED and WRITES_REJECTED
+     */
+    public void throttled(int client, int counter) {
+        AtomicLongArray counts = clients.get(client);
+        if (counts != null) {
+            counts.incrementAndGet(counter);
+        }
+        totals.incrementAndGet(counter);
+    }
+
+    /**
+     * @return the client's counts, indexed by READS_DELAYED, READS_REJECTED, WRITES_DELAYED and WRITES_REJECTED;
+     *         all 0 if the client isn't connected
+     */
+    public long[] getThrottled(int client) {
+        return snapshot(clients.get(client));
+    }
+
+    /**
+     * @return the counts of every client that ever connected, as by getThrottled
+     */
+    public long[] getTotalThrottled() {
+        return snapshot(totals);
+    }
+
+    /**
+     * Count a connection turned away because the server already had as many as it takes.
+     */
+    public void sessionRejected() {
+        sessionsRejected.incrementAndGet();
+    }
+
+    /**
+     * Count a command put in the command queue.
+     */
+    public void commandQueued() {
+        int depth = queued.incrementAndGet();
+        int most = mostQueued.get();
+        while (depth > most && !mostQueued.compareAndSet(most, depth)) {
+            most = mostQueued.get();
+        }
+    }
+
+    /**
+     * Count a command taken out of the command queue to run.
+     */
+    public void commandDequeued() {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Count a command turned away because the command queue was full.
+     */
+    public void commandRejected() {
+        commandsRejected.incrementAndGet();
+    }
+
+    public long getSessionsRejected() {
+        return sessionsRejected.get();
+    }
+
+    public long getCommandsRejected() {
+        return commandsRejected.get();
+    }
+
+    /**
+     * @return the number of commands waiting in the command queue right now
+     */
+    public int getQueueDepth() {
+        return Math.max(0, queued.get());
+    }
+
+    /**
+     * @return the most commands that were ever waiting in the command queue at once
+     */
+    public int getMostQueued() {
+        return mostQueued.get();
+    }
+
+    /**
+     * @return one line on how loaded the server is: players connected, what it turned away and its command queue
+     */
+    public String describeLoad() {
+        return clients.size() + " players, sessions rejected " + getSessionsRejected() + ", commands queued "
+                + getQueueDepth() + " (at most " + getMostQueued() + "), commands rejected " + getCommandsRejected();
+    }
+
+    /**
+     * @return one line with the load (see describeLoad), one with the totals, then one line per connected client
+     *         that has been throttled at all
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder(describeLoad());
+        report.append("\nall clients: ").append(describe(getTotalThrottled()));
+        Map<Integer, long[]> sorted = new TreeMap<Integer, long[]>();
+        for (Map.Entry<Integer, AtomicLongArray> entry : clients.entrySet()) {
+            long[] counts = snapshot(entry.getValue());
+            if (counts[READS_DELAYED] + counts[READS_REJECTED] + counts[WRITES_DELAYED] + counts[WRITES_REJECTED] > 0) {
+                sorted.put(entry.getKey(), counts);
+            }
+        }
+        for (Map.Entry<Integer, long[]> entry : sorted.entrySet()) {
+            report.append("\nclient ").append(entry.getKey()).append(": ").append(describe(entry.getValue()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return the counts as one line of text
+     */
+    public static String describe(long[] counts) {
+        return "reads delayed " + counts[READS_DELAYED] + ", reads rejected " + counts[READS_REJECTED]
+                + ", writes delayed " + counts[WRITES_DELAYED] + ", writes rejected " + counts[WRITES_REJECTED];
+    }
+
+    private static long[] snapshot(AtomicLongArray counts) {
+        long[] copy = new long[COUNTERS];
+        if (counts != null) {
+            for (int i = 0; i < COUNTERS; i++) {
+                copy[i] = counts.get(i);
+            }
+        }
+        return copy;
+    }
+}
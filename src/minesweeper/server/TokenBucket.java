@@ -0,0 +1,50 @@
+package minesweeper.server;
+
+/**
+ * A token bucket: it holds up to burst tokens, gains rate tokens a second, and every command spends one, so a
+ * client can run burst commands at once but no more than rate a second for long.
+ *
+ * A bucket belongs to one connection, whose thread is the only one to use it, so it is not threadsafe.
+ */
+public class TokenBucket {
+    private final long nanosPerToken;
+    private final long capacityNanos;
+
+    /**
+     * The tokens in the bucket, as the time it took to gain them, so refilling is just adding elapsed time.
+     */
+    private long creditNanos;
+    private long lastRefill;
+
+    /**
+     * Make a full bucket.
+     *
+     * @param rate tokens gained a second, requires rate > 0
+     * @param burst the most tokens the bucket holds, requires burst >= 1
+     */
+    public TokenBucket(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("a token bucket needs a positive rate and room for a token");
+        }
+        this.nanosPerToken = Math.max(1, (long) (1e9 / rate));
+        this.capacityNanos = nanosPerToken * burst;
+        this.creditNanos = capacityNanos;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Spend a token if there is one.
+     *
+     * @return 0 if a token was spent, otherwise how many nanoseconds until there is one (none is spent)
+     */
+    public long tryTake() {
+        long now = System.nanoTime();
+        creditNanos = Math.min(capacityNanos, creditNanos + (now - lastRefill));
+        lastRefill = now;
+        if (creditNanos >= nanosPerToken) {
+            creditNanos -= nanosPerToken;
+            return 0;
+        }
+        return nanosPerToken - creditNanos;
+    }
+}